@@ -0,0 +1,550 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
+
+/**
+ * A B-epsilon tree.  This is a B+ Tree where every inner node also holds a
+ * buffer of pending put and remove messages for its subtree.
+ * 
+ * A put or remove only adds a message to the root's buffer.  Once a buffer
+ * holds more than bufferSize messages, the messages for the child that
+ * would receive the most of them are moved down to that child as one
+ * batch.  Messages that reach a leaf's parent are applied to the leaf.  So
+ * each message is only handled a few times on its way down, in batches,
+ * instead of every write walking from the root to a leaf on its own.
+ * 
+ * A message higher up in the tree is always newer than one lower down, so
+ * get and containsKey return the first message they find on the way from
+ * the root to the leaf.  Anything that needs the whole tree (size, range
+ * queries, saving, the key, value and entry sets, ...) flushes every
+ * buffer first.
+ * 
+ * Like WriteBufferedBPTree, put and remove can only return the old value if
+ * it is still in the root's buffer.  Otherwise they return null.
+ * 
+ * @author Nathan
+ *
+ * @param <K>  Type of the key
+ * @param <V>  Type of the value
+ */
+public class BEpsilonTree<K extends Comparable<K>, V> extends BPTree<K, V> {
+	private static final Object TOMBSTONE = new Object();  // Marks a remove
+	
+	/**
+	 * Inner node with a buffer of messages for its subtree.
+	 * 
+	 * @author Nathan
+	 *
+	 */
+	protected static class BufferedInnerNode<K extends Comparable<K>, V> extends InnerNode<K,V> {
+		protected TreeMap<K,Object> buffer = new TreeMap<K,Object>();
+		
+		public BufferedInnerNode(BPTree<K,V> bpTree) {
+			super(bpTree);
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public BufferedInnerNode<K,V> copy(BPTree<K,V> bpTree) {
+			BufferedInnerNode<K,V> node = (BufferedInnerNode<K,V>)super.copy(bpTree);
+			node.buffer = new TreeMap<K,Object>(buffer);
+			return node;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void reset(BPTree<K,V> bpTree) {
+			super.reset(bpTree);
+			buffer.clear();
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * 
+		 * A message for the key in this node's buffer is newer than anything
+		 * further down.
+		 */
+		@Override
+		public boolean contains(BPTree<K,V> bpTree, K key) {
+			Object value = buffer.get(key);
+			
+			if (value == null && !buffer.containsKey(key))
+				return super.contains(bpTree, key);
+			
+			return value != TOMBSTONE;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * 
+		 * A message for the key in this node's buffer is newer than anything
+		 * further down.
+		 */
+		@SuppressWarnings("unchecked")
+		@Override
+		public V get(BPTree<K,V> bpTree, K key) {
+			Object value = buffer.get(key);
+			
+			if (value == null && !buffer.containsKey(key))
+				return super.get(bpTree, key);
+			
+			return (value == TOMBSTONE) ? null : (V)value;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * 
+		 * Messages for the split node's children go with it.
+		 */
+		@Override
+		public SplitResult<K,V> split(BPTree<K,V> bpTree) {
+			SplitResult<K,V> sr = super.split(bpTree);
+			
+			@SuppressWarnings("unchecked")
+			BufferedInnerNode<K,V> node = (BufferedInnerNode<K,V>)sr.splitNode;
+			moveMessages(node, sr.midKey);
+			
+			return sr;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void merge(BPTree<K,V> bpTree, Node<K,V> other, K parentKey) {
+			super.merge(bpTree, other, parentKey);
+			
+			@SuppressWarnings("unchecked")
+			BufferedInnerNode<K,V> node = (BufferedInnerNode<K,V>)other;
+			buffer.putAll(node.buffer);
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * 
+		 * Messages follow the children they are for.
+		 */
+		@Override
+		public RedistResult<K,V> redistribute(BPTree<K,V> bpTree, Node<K,V> other, K parentKey) {
+			RedistResult<K,V> rr = super.redistribute(bpTree, other, parentKey);
+			
+			if (rr.redistSuccess) {
+				@SuppressWarnings("unchecked")
+				BufferedInnerNode<K,V> node = (BufferedInnerNode<K,V>)other;
+				buffer.putAll(node.buffer);
+				node.buffer.clear();
+				moveMessages(node, rr.middleKey);
+			}
+			
+			return rr;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * 
+		 * Messages follow the children they are for.
+		 */
+		@Override
+		public K shiftFrom(BPTree<K,V> bpTree, Node<K,V> other, K parentKey, int count) {
+			K midKey = super.shiftFrom(bpTree, other, parentKey, count);
+			
+			@SuppressWarnings("unchecked")
+			BufferedInnerNode<K,V> node = (BufferedInnerNode<K,V>)other;
+			if (midKey == null) {
+				buffer.putAll(node.buffer);
+				node.buffer.clear();
+			}
+			else {
+				SortedMap<K,Object> lower = node.buffer.headMap(midKey);
+				buffer.putAll(lower);
+				lower.clear();
+			}
+			
+			return midKey;
+		}
+		
+		/**
+		 * Moves messages with keys greater than or equal to a key into
+		 * another node's buffer.
+		 * 
+		 * @param node  Node to move the messages to.
+		 * @param key   Smallest key to move.
+		 */
+		private void moveMessages(BufferedInnerNode<K,V> node, K key) {
+			SortedMap<K,Object> upper = buffer.tailMap(key, true);
+			node.buffer.putAll(upper);
+			upper.clear();
+		}
+		
+		/**
+		 * Checks if the node has to be split, merged or collapsed before it
+		 * can take any more changes.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @return  True if the parent (or the tree, for the root) has to
+		 *          fix this node first.
+		 */
+		protected boolean needsFix(BEpsilonTree<K,V> bpTree) {
+			if (tooLarge(bpTree) || size() < 2)
+				return true;
+			return this != bpTree.root && tooSmall(bpTree);
+		}
+		
+		/**
+		 * Flushes messages until the buffer is no longer over full, or until
+		 * the node has to be fixed by its parent.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 */
+		protected void flush(BEpsilonTree<K,V> bpTree) {
+			while (buffer.size() > bpTree.bufferSize && !needsFix(bpTree)) {
+				flushLargestGroup(bpTree);
+			}
+		}
+		
+		/**
+		 * Moves the messages for the child that would receive the most of
+		 * them down to that child.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 */
+		@SuppressWarnings("unchecked")
+		protected void flushLargestGroup(BEpsilonTree<K,V> bpTree) {
+			// The buffer is sorted, so each child's messages come together
+			int bestIndex = 0;
+			int bestCount = 0;
+			int index = 0;
+			int count = 0;
+			K upper = keyAt(bpTree, 0);
+			
+			for (K key : buffer.keySet()) {
+				while (index < size()-1 && key.compareTo(upper) >= 0) {
+					index++;
+					upper = keyAt(bpTree, index);
+					count = 0;
+				}
+				
+				count++;
+				if (count > bestCount) {
+					bestIndex = index;
+					bestCount = count;
+				}
+			}
+			
+			SortedMap<K,Object> group = buffer;
+			if (bestIndex > 0)
+				group = group.tailMap(keyAt(bpTree, bestIndex-1));
+			if (bestIndex < size()-1)
+				group = group.headMap(keyAt(bpTree, bestIndex));
+			
+			TreeMap<K,Object> messages = new TreeMap<K,Object>(group);
+			group.clear();
+			
+			Node<K,V> child = writableChild(bpTree, bestIndex);
+			
+			if (child instanceof BEpsilonTree.BufferedInnerNode) {
+				BufferedInnerNode<K,V> node = (BufferedInnerNode<K,V>)child;
+				
+				// These messages are newer than any already in the child
+				node.buffer.putAll(messages);
+				node.flush(bpTree);
+				
+				if (node.tooLarge(bpTree)) {
+					splitChild(bpTree, bestIndex, node);
+				} else if (node.tooSmall(bpTree)) {
+					fixUnderflow(bpTree, bestIndex, node);
+				}
+			} else {
+				// Apply the messages to the leaf, splitting and merging it
+				// as needed, until this node has to be fixed itself
+				for (Map.Entry<K,Object> message : messages.entrySet()) {
+					if (needsFix(bpTree)) {
+						buffer.put(message.getKey(), message.getValue());
+					} else if (message.getValue() == TOMBSTONE) {
+						remove(bpTree, message.getKey());
+					} else {
+						insert(bpTree, bpTree.makeEntry(message.getKey(), (V)message.getValue()));
+					}
+				}
+			}
+		}
+	}
+	
+	
+	private int bufferSize;  // Most messages in an inner node's buffer
+	
+	/**
+	 * BEpsilonTree Constructor
+	 * 
+	 * Uses a default size for nodes and buffers.
+	 */
+	public BEpsilonTree() {
+		this(16, 16, 64);
+	}
+	
+	/**
+	 * BEpsilonTree Constructor
+	 * 
+	 * @param innerSize   Maximum size of inner nodes.
+	 * @param leafSize    Maximum size of leaf nodes.
+	 * @param bufferSize  Most messages an inner node buffers before
+	 *                    flushing some of them to a child.
+	 */
+	public BEpsilonTree(int innerSize, int leafSize, int bufferSize) {
+		super(innerSize, leafSize);
+		this.bufferSize = Math.max(1, bufferSize);
+	}
+	
+	/**
+	 * Gets the most messages an inner node buffers.
+	 * 
+	 * @return  Buffer size
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected InnerNode<K,V> createInnerNode() {
+		InnerNode<K,V> node = reuseInnerNode();
+		return (node != null) ? node : new BufferedInnerNode<K,V>(this);
+	}
+	
+	/**
+	 * Applies every pending message in the tree, leaving all buffers empty.
+	 */
+	@SuppressWarnings("unchecked")
+	public void flush() {
+		if (!(root instanceof BEpsilonTree.BufferedInnerNode))
+			return;
+		
+		root = writable(root);
+		TreeMap<K,Object> messages = new TreeMap<K,Object>();
+		takeMessages((BufferedInnerNode<K,V>)root, messages);
+		
+		if (messages.isEmpty())
+			return;
+		
+		ArrayList<KeyVal<K,V>> puts = new ArrayList<KeyVal<K,V>>(messages.size());
+		
+		for (Map.Entry<K,Object> message : messages.entrySet()) {
+			if (message.getValue() == TOMBSTONE) {
+				super.remove(message.getKey());
+			} else {
+				puts.add(makeEntry(message.getKey(), (V)message.getValue()));
+			}
+		}
+		
+		insertSorted(puts);
+	}
+	
+	/**
+	 * Empties the buffers of a node and every inner node below it.  Each
+	 * key keeps its newest message, which is the one highest up.
+	 * 
+	 * @param node      Writable node to take messages from.
+	 * @param messages  Map to collect the messages in.
+	 */
+	@SuppressWarnings("unchecked")
+	private void takeMessages(BufferedInnerNode<K,V> node, TreeMap<K,Object> messages) {
+		for (Map.Entry<K,Object> message : node.buffer.entrySet()) {
+			messages.putIfAbsent(message.getKey(), message.getValue());
+		}
+		node.buffer.clear();
+		
+		if (!(node.child(this, 0) instanceof BEpsilonTree.BufferedInnerNode))
+			return;
+		
+		for (int i=0; i<node.size(); i++) {
+			takeMessages((BufferedInnerNode<K,V>)node.writableChild(this, i), messages);
+		}
+	}
+	
+	/**
+	 * Adds a message to the root's buffer, or applies it directly while the
+	 * root is still a leaf.
+	 * 
+	 * @param key    Key of the message
+	 * @param value  New value or TOMBSTONE
+	 * @return       The old value, if it was still in the root's buffer.
+	 */
+	@SuppressWarnings("unchecked")
+	private V write(K key, Object value) {
+		if (!(root instanceof BEpsilonTree.BufferedInnerNode)) {
+			if (value == TOMBSTONE)
+				return super.remove(key);
+			return super.put(key, (V)value);
+		}
+		
+		root = writable(root);
+		BufferedInnerNode<K,V> node = (BufferedInnerNode<K,V>)root;
+		Object old = node.buffer.put(key, value);
+		node.flush(this);
+		fixRoot();
+		
+		return (old == TOMBSTONE) ? null : (V)old;
+	}
+	
+	/**
+	 * Splits the root if it has become too large, or replaces it with its
+	 * only child, passing its messages on to the child.
+	 */
+	@SuppressWarnings("unchecked")
+	private void fixRoot() {
+		BufferedInnerNode<K,V> node = (BufferedInnerNode<K,V>)root;
+		
+		if (node.tooLarge(this)) {
+			SplitResult<K,V> sr = node.split(this);
+			
+			InnerNode<K,V> newRoot = createInnerNode();
+			newRoot.makeRoot(sr.midKey, node, sr.splitNode);
+			root = newRoot;
+		}
+		else if (node.size() == 1) {
+			collapseRoot();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * The root's messages are passed on to its child.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	protected void collapseRoot() {
+		BufferedInnerNode<K,V> node = (BufferedInnerNode<K,V>)root;
+		Node<K,V> child = node.writableChild(this, 0);
+		root = child;
+		
+		if (child instanceof BEpsilonTree.BufferedInnerNode) {
+			((BufferedInnerNode<K,V>)child).buffer.putAll(node.buffer);
+			return;
+		}
+		
+		// The root is a leaf again, so apply the messages to it
+		for (Map.Entry<K,Object> message : node.buffer.entrySet()) {
+			if (message.getValue() == TOMBSTONE) {
+				super.remove(message.getKey());
+			} else {
+				super.put(message.getKey(), (V)message.getValue());
+			}
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * Only returns the old value if it was still in the root's buffer.
+	 */
+	@Override
+	public V put(K key, V value) {
+		return write(key, value);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * Only returns the old value if it was still in the root's buffer.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public V remove(Object key) {
+		return write((K)key, TOMBSTONE);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void applyBufferedWrites() {
+		flush();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * Not supported, since a lookup has to read the buffers on the way down
+	 * to the leaf, and newer writes may be waiting in them.
+	 */
+	@Override
+	public void setHashIndexCapacity(int capacity) {
+		if (capacity != 0)
+			throw new UnsupportedOperationException(
+					"A B-epsilon tree can't skip its buffers with a hash index");
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * Not supported, since a lookup has to read the buffers on the way down
+	 * to the leaf.
+	 */
+	@Override
+	public void trainLearnedRouting(int maxError) {
+		throw new UnsupportedOperationException(
+				"A B-epsilon tree can't skip its buffers with learned routing");
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * The old value is looked up with get and the new value is written with
+	 * put or remove, so the write is buffered like any other.
+	 */
+	@Override
+	protected V update(KeyVal<K,V> entry,
+			BiFunction<? super K, ? super V, ? extends V> remapping) {
+		K key = entry.getKey();
+		V oldValue = get(key);
+		V newValue = remapping.apply(key, oldValue);
+		entry.setValue(newValue);
+		
+		if (newValue == null) {
+			if (oldValue != null || containsKey(key))
+				remove(key);
+		}
+		else if (newValue != oldValue) {
+			put(key, newValue);
+		}
+		
+		return oldValue;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Collection<Entry<K,V>> getFirstToKey(Object key) {
+		flush();
+		return super.getFirstToKey(key);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Collection<Entry<K,V>> getKeyToLast(Object key) {
+		flush();
+		return super.getKeyToLast(key);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Collection<Entry<K,V>> getKeyToKey(Object key1, Object key2) {
+		flush();
+		return super.getKeyToKey(key1, key2);
+	}
+}
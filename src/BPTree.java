@@ -1,14 +1,49 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /**
  * An implementation of a B+ Tree that implements the Map interface. 
@@ -27,11 +62,11 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 	 * 
 	 * @author Nathan
 	 */
-	private class SplitResult {
-		public Node splitNode;
+	protected static class SplitResult<K extends Comparable<K>, V> {
+		public Node<K,V> splitNode;
 		public K midKey;
 		
-		public SplitResult(K midKey, Node splitNode) {
+		public SplitResult(K midKey, Node<K,V> splitNode) {
 			this.splitNode = splitNode;
 			this.midKey = midKey;
 		}
@@ -43,7 +78,7 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 	 * 
 	 * @author Nathan
 	 */
-	private class RedistResult {
+	protected static class RedistResult<K extends Comparable<K>, V> {
 		public boolean redistSuccess;
 		public K middleKey;
 		
@@ -54,25 +89,284 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 	}
 	
 	
+	/**
+	 * Where the hash index last saw a key: the leaf that holds it, and the
+	 * key's index in the leaf.  The leaf is always right, but the index is
+	 * only a hint, since inserts and removes shift the entries of a leaf.
+	 * 
+	 * @author Nathan
+	 */
+	protected class LeafSlot {
+		public LeafNode<K,V> leaf;
+		public int slot;
+		
+		public LeafSlot(LeafNode<K,V> leaf, int slot) {
+			this.leaf = leaf;
+			this.slot = slot;
+		}
+		
+		/**
+		 * Gets the entry with a key from the leaf, trying the hinted index
+		 * first and searching the leaf if the entry has moved.
+		 * 
+		 * @param key  Key of the entry, which must be in the leaf.
+		 * @return     The entry.
+		 */
+		public KeyVal<K,V> find(K key) {
+			if (slot < leaf.entries.size()) {
+				KeyVal<K,V> entry = leaf.entries.get(slot);
+				if (entry.getKey().compareTo(key) == 0)
+					return entry;
+			}
+			
+			slot = leaf.findPossibleIndex(makeEntry(key, null));
+			return leaf.entries.get(slot);
+		}
+	}
+	
+	
+	/**
+	 * Output stream that counts the bytes written through it, so the
+	 * position of every node in a binary file is known.
+	 * 
+	 * @author Nathan
+	 */
+	protected static class CountingOutputStream extends FilterOutputStream {
+		public long count = 0;
+		
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+	
+	
+	/**
+	 * File that stubs are read from, shared by every tree that still has
+	 * stubs in it.  splitAt gives the new tree the same file, and the file
+	 * is closed once the last tree using it lets go of it.
+	 * 
+	 * @author Nathan
+	 */
+	protected static class NodeFile {
+		public final FileChannel channel;
+		public int users = 1;
+		
+		public NodeFile(FileChannel channel) {
+			this.channel = channel;
+		}
+	}
+	
+	
+	/**
+	 * Iterates over the entries of two leaf chains in key order.  When both
+	 * chains have a key, the entry from the first chain comes out first.
+	 * The first chain is this tree's and the second is another tree's.
+	 * 
+	 * @author Nathan
+	 */
+	protected class MergeIterator implements Iterator<Entry<K,V>> {
+		private LeafNode<K,V> first;
+		private LeafNode<K,V> second;
+		private BPTree<K,V> secondTree;
+		private int firstIndex = 0;
+		private int secondIndex = 0;
+		
+		public MergeIterator(LeafNode<K,V> first, LeafNode<K,V> second,
+				BPTree<K,V> secondTree) {
+			this.first = first;
+			this.second = second;
+			this.secondTree = secondTree;
+			skipEmptyLeaves();
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return first != null || second != null;
+		}
+		
+		@Override
+		public Entry<K,V> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			
+			KeyVal<K,V> entry;
+			if (second == null || (first != null &&
+					first.entries.get(firstIndex).compareTo(second.entries.get(secondIndex)) <= 0)) {
+				entry = first.entries.get(firstIndex++);
+			}
+			else {
+				entry = second.entries.get(secondIndex++);
+			}
+			
+			skipEmptyLeaves();
+			return entry;
+		}
+		
+		/**
+		 * Moves each chain on to the next leaf once it has run out of
+		 * entries in the current one.
+		 */
+		private void skipEmptyLeaves() {
+			while (first != null && firstIndex >= first.size()) {
+				first = first.getNext(BPTree.this);
+				firstIndex = 0;
+			}
+			while (second != null && secondIndex >= second.size()) {
+				second = second.getNext(secondTree);
+				secondIndex = 0;
+			}
+		}
+	}
+	
+	/**
+	 * An entry handed out by entrySet and the range queries.  It is a copy
+	 * of the leaf's entry, so it never changes a node directly, and setValue
+	 * goes through put like any other write.
+	 * 
+	 * @author Nathan
+	 */
+	protected class TreeEntry extends AbstractMap.SimpleEntry<K,V> {
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * TreeEntry Constructor
+		 * 
+		 * @param key    Key of the entry
+		 * @param value  Value of the entry
+		 */
+		public TreeEntry(K key, V value) {
+			super(key, value);
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * 
+		 * The new value is put into the tree, so copy-on-write snapshots,
+		 * content hashes, Bloom filters and the change feed all see it.
+		 */
+		@Override
+		public V setValue(V value) {
+			put(getKey(), value);
+			return super.setValue(value);
+		}
+	}
+	
+	
 	/**
 	 * Node base class
 	 * 
+	 * A node does not keep a reference to its tree.  The tree is passed in
+	 * to each method that needs its settings, so a subtree can be moved to
+	 * another tree, as splitAt does, without changing any of its nodes.
+	 * 
 	 * @author Nathan
 	 *
 	 */
-	protected abstract class Node {
-		protected BPTree<K,V> bpTree;
+	protected static abstract class Node<K extends Comparable<K>, V> {
+		protected int epoch;  // Snapshot epoch the node was created in
+		protected long fileOffset = -1;  // Where a stub is read from, else -1
+		protected byte[] hash = null;    // Hash of the contents, if worked out
+		protected int entryTotal = -1;   // Entries in the subtree, or -1 if not counted
+		protected K underflowKey = null; // Path queued to fix this node, if any
 		
 		/**
-		 * Node constructor.  Simply stores reference to tree this node belongs
-		 * to.
+		 * Node constructor.  Takes the snapshot epoch of the tree that makes
+		 * the node.
 		 * 
-		 * @param bpTree  B+ Tree this node belongs to.
+		 * @param bpTree  B+ Tree that makes this node.
 		 */
 		public Node(BPTree<K,V> bpTree) {
-			this.bpTree = bpTree;
+			this.epoch = bpTree.cowEpoch;
 		}
-
+		
+		/**
+		 * Makes a copy of this node that can be modified without changing
+		 * this node.  Used for copy-on-write while a snapshot is being saved.
+		 * Child nodes are shared with the copy, not copied.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @return  Copy of this node.
+		 */
+		public abstract Node<K,V> copy(BPTree<K,V> bpTree);
+		
+		/**
+		 * Empties the node, so it can wait in the tree's free list until a
+		 * new node is needed.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 */
+		protected void reset(BPTree<K,V> bpTree) {
+			epoch = bpTree.cowEpoch;
+			fileOffset = -1;
+			hash = null;
+			entryTotal = -1;
+			underflowKey = null;
+		}
+		
+		/**
+		 * Puts back the count of entries in the subtree after one entry
+		 * under the node was put or removed.  writable() forgets the count,
+		 * since most changes do not know how much it changed by, but a
+		 * single put or remove does.
+		 * 
+		 * @param total   Count before the node was made writable, or -1 if
+		 *                it was not known.
+		 * @param change  Change in the size of the tree.
+		 */
+		protected void addToTotal(int total, int change) {
+			if (total >= 0)
+				entryTotal = total + change;
+		}
+		
+		/**
+		 * Gets a hash of every key and value in the subtree of the node, so
+		 * diff can tell quickly which parts of two trees differ.  The hash is
+		 * the first 128 bits of a SHA-256 digest of the entries, written with
+		 * the tree's hash codecs, so equal hashes mean the subtrees hold the
+		 * same entries.  The hash is worked out the first time it is needed
+		 * and kept until the node is next made writable.
+		 * 
+		 * @see BPTree#setHashCodecs
+		 * 
+		 * @param bpTree  Tree the node is in, which must have hash codecs.
+		 * @return  Hash of the subtree.
+		 * @throws UncheckedIOException  If a codec fails to write an entry.
+		 */
+		public byte[] contentHash(BPTree<K,V> bpTree) {
+			if (hash == null) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				try {
+					hashContents(bpTree, new DataOutputStream(bytes));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				hash = Arrays.copyOf(bpTree.hashDigest().digest(bytes.toByteArray()), HASH_BYTES);
+			}
+			return hash;
+		}
+		
+		/**
+		 * Writes what the hash of the node is worked out from.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param out     Output to write to.
+		 * @throws IOException  If a codec fails to write an entry.
+		 */
+		protected abstract void hashContents(BPTree<K,V> bpTree, DataOutputStream out)
+				throws IOException;
+		
 		/**
 		 * Returns the number of items in this node.
 		 * 
@@ -90,33 +384,49 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 		/**
 		 * If a node is too large, it needs to split.
 		 * 
+		 * @param bpTree  Tree the node is in.
 		 * @return  True if too large, else False.
 		 */
-		public abstract boolean tooLarge();
+		public abstract boolean tooLarge(BPTree<K,V> bpTree);
 		
 		/**
 		 * If a node is too small it needs to redistribute or merge.
 		 * 
+		 * @param bpTree  Tree the node is in.
 		 * @return  True if too small, else False.
 		 */
-		public abstract boolean tooSmall();
+		public abstract boolean tooSmall(BPTree<K,V> bpTree);
 		
 		/**
 		 * Checks if this node or a descendant node contains the specified key. 
 		 * 
+		 * @param bpTree  Tree the node is in.
 		 * @param key  Key to check for
 		 * @return     True if this or descendant node contains key, else false.
 		 */
-		public abstract boolean contains(K key);
+		public abstract boolean contains(BPTree<K,V> bpTree, K key);
+		
+		/**
+		 * Checks if the node might hold a key, without reading the node from
+		 * the tree's file if it is a stub.  Used to skip leaves that have a
+		 * Bloom filter.
+		 * 
+		 * @param key  Key to check for
+		 * @return     False if the key is definitely not in the node.
+		 */
+		public boolean mightContain(K key) {
+			return true;
+		}
 		
 		/**
 		 * Finds and returns value associated with the specified key in either
 		 * itself or a descendant node.  Returns null if not found.
 		 * 
+		 * @param bpTree  Tree the node is in.
 		 * @param key  Key to get the value for.
 		 * @return     Value at specified key or null if not found.
 		 */
-		public abstract V get(K key);
+		public abstract V get(BPTree<K,V> bpTree, K key);
 		
 		/**
 		 * Inserts a key value pair entry into the subtree of the node.  It
@@ -125,80 +435,225 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 		 * If the key already exists in the tree, the entry will be updated
 		 * with the new value.
 		 * 
+		 * @param bpTree  Tree the node is in.
 		 * @param entry  Key value pair representing the entry to insert.
 		 * 
 		 * @return  Value that was previously stored at entry, if any.
 		 */
-		public abstract V insert(KeyVal<K,V> entry);
+		public abstract V insert(BPTree<K,V> bpTree, KeyVal<K,V> entry);
+		
+		/**
+		 * Inserts a run of entries that are sorted by key, starting at index
+		 * from, into the subtree of the node.  Stops at the first entry with
+		 * a key that is not less than upper, which belongs to a different
+		 * subtree, or once the node has become too large, so its parent can
+		 * split it.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param batch  Entries sorted by key, without duplicate keys.
+		 * @param from   Index of the first entry to insert.
+		 * @param upper  Entries must have smaller keys, or null for no limit.
+		 * @return  Index of the first entry that was not inserted.
+		 */
+		public abstract int insertSorted(BPTree<K,V> bpTree, List<KeyVal<K,V>> batch, int from,
+				K upper);
+		
+		/**
+		 * Looks up a run of keys that are sorted, starting at index from, in
+		 * the subtree of the node.  Stops at the first key that is not less
+		 * than upper, which belongs to a different subtree.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param batch  Entries with the keys to look up, sorted by key,
+		 *               without duplicate keys.
+		 * @param from   Index of the first key to look up.
+		 * @param upper  Keys must be smaller, or null for no limit.
+		 * @param found  Map to put the keys that are found in, with their
+		 *               values.
+		 * @return  Index of the first key that was not looked up.
+		 */
+		public abstract int getSorted(BPTree<K,V> bpTree, List<KeyVal<K,V>> batch, int from,
+				K upper, Map<K,V> found);
 		
 		/**
 		 * Removes an entry from the subtree of the node associated with the
 		 * key.  Returns the value of the entry at that key or null if key
 		 * not found.
 		 * 
+		 * @param bpTree  Tree the node is in.
 		 * @param key  Key of entry to remove.
 		 * @return     Value of removed entry or null if no matching entry.
 		 */
-		public abstract V remove(K key);
+		public V remove(BPTree<K,V> bpTree, K key) {
+			return removeEntry(bpTree, bpTree.makeEntry(key, null));
+		}
+		
+		/**
+		 * Same as remove, but takes an entry with the key to remove, so the
+		 * same search entry is used on every level instead of each level
+		 * making its own.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param entry  Entry with the key of the entry to remove.
+		 * @return       Value of removed entry or null if no matching entry.
+		 */
+		public abstract V removeEntry(BPTree<K,V> bpTree, KeyVal<K,V> entry);
+		
+		/**
+		 * Finds the entry with the same key as the given entry and replaces
+		 * its value with the result of a function, in one pass down the
+		 * tree.  The function is given the key and the old value, or null if
+		 * there is no entry.  If it returns null the entry is removed,
+		 * otherwise the value is stored, inserting the given entry if there
+		 * was none.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param entry      Entry with the key to update.  Its value is set
+		 *                   to the function's result.
+		 * @param remapping  Function that computes the new value.
+		 * @return           The old value, or null if there was none.
+		 */
+		public abstract V update(BPTree<K,V> bpTree, KeyVal<K,V> entry,
+				BiFunction<? super K, ? super V, ? extends V> remapping);
 		
 		/**
 		 * Split the node and distribute it's elements between this node and
 		 * the newly created node.
 		 * 
+		 * @param bpTree  Tree the node is in.
 		 * @return  Results of splitting this node.
 		 */
-		public abstract SplitResult split();
+		public abstract SplitResult<K,V> split(BPTree<K,V> bpTree);
 		
 		/**
 		 * Merge another node into this node -- causing the elements of the
 		 * nodes to be combined.  Merging may require updating a key with the
 		 * key of the parent node's element of the node being merged.
 		 * 
+		 * @param bpTree  Tree the node is in.
 		 * @param other  Other node to merge into this node.
 		 * @param parentKey  Key of the element in the parent node.
 		 */
-		public abstract void merge(Node other, K parentKey);
+		public abstract void merge(BPTree<K,V> bpTree, Node<K,V> other, K parentKey);
 		
 		/**
 		 * Redistribute elements evenly between this node and another node.
 		 * Redistributing may require updating the key of one of the elements
 		 * in this node with the key of the element from the parent node.
 		 * 
+		 * @param bpTree  Tree the node is in.
 		 * @param other      Other node to distribute elements between.
 		 * @param parentKey  Key of the parent node's element.
 		 * @return           Results of the redistribution.
 		 */
-		public abstract RedistResult redistribute(Node other, K parentKey);
+		public abstract RedistResult<K,V> redistribute(BPTree<K,V> bpTree, Node<K,V> other,
+				K parentKey);
+		
+		/**
+		 * Moves elements from the front of the next node over to the end of
+		 * this node.  Used to pack nodes more densely.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param other      Next node, which elements are taken from.
+		 * @param parentKey  Key of the parent node's element for this node.
+		 * @param count      How many elements to move.
+		 * @return           New key separating the two nodes, or null if the
+		 *                   other node was emptied.
+		 */
+		public abstract K shiftFrom(BPTree<K,V> bpTree, Node<K,V> other, K parentKey, int count);
 		
 		/**
 		 * Recursively prints full tree to System.out -- for debugging.
 		 * 
+		 * @param bpTree  Tree the node is in.
 		 * @param depth  Depth of the node, used for indentation.
 		 */
-		public abstract void printFullTree(int depth);
+		public abstract void printFullTree(BPTree<K,V> bpTree, int depth);
 		
 		/**
 		 * Counts nodes in the subtree.
 		 * 
+		 * @param bpTree  Tree the node is in.
 		 * @return  Number of nodes in subtree.
 		 */
-		public abstract int countNodes();
+		public abstract int countNodes(BPTree<K,V> bpTree);
+		
+		/**
+		 * Counts entries in the subtree.  An inner node keeps its count, adds
+		 * to it on a single put or remove under it, and counts again only
+		 * after other changes.  A stub knows its count if its file recorded
+		 * it, so a subtree is seldom walked and never read just to count it.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @return  Number of entries in subtree.
+		 */
+		public abstract int countEntries(BPTree<K,V> bpTree);
+		
+		/**
+		 * Removes every entry with a key from lo to hi.  Children that are
+		 * entirely inside the range are dropped without being walked or read
+		 * from a file, since their counts are kept, and only nodes on the
+		 * paths to lo and hi are changed.  Nodes left too small are not
+		 * fixed; the tree fixes them afterwards.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param lo  Entry with the smallest key to remove, or null to remove
+		 *            from the start of the subtree.
+		 * @param hi  Entry with the largest key to remove, or null to remove
+		 *            to the end of the subtree.
+		 * @return    Number of entries removed.
+		 */
+		public abstract int removeRange(BPTree<K,V> bpTree, KeyVal<K,V> lo, KeyVal<K,V> hi);
+		
+		/**
+		 * Splits the subtree at a key.  Entries with smaller keys stay in
+		 * this node, and the rest are moved to a new node made by another
+		 * tree.  Only nodes on the path to the key are split; the children
+		 * to the right of it are moved as they are.  Nodes on either side
+		 * can be left too small, or empty.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param entry      Entry with the smallest key to move.
+		 * @param rightTree  Tree that makes the new nodes.
+		 * @return           New node holding the moved entries.
+		 */
+		public abstract Node<K,V> splitOff(BPTree<K,V> bpTree, KeyVal<K,V> entry,
+				BPTree<K,V> rightTree);
+		
+		/**
+		 * Adds the node and its subtree to tree statistics.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param stats  Statistics to add to.
+		 * @param depth  Depth of this node, the root being 0.
+		 */
+		public abstract void collectStats(BPTree<K,V> bpTree, TreeStats stats, int depth);
 		
 		/**
 		 * Get the leaf that should contain the specified key.  The leaf may
 		 * not actually contain this key.
 		 * 
+		 * @param bpTree  Tree the node is in.
 		 * @param key  Key that the leaf should contain.
 		 * @return     A leaf node
 		 */
-		public abstract LeafNode getLeaf(K key);
+		public abstract LeafNode<K,V> getLeaf(BPTree<K,V> bpTree, K key);
 		
 		/**
 		 * Get first (left most) leaf in the tree.
 		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @return  A leaf node
+		 */
+		public abstract LeafNode<K,V> getFirstLeaf(BPTree<K,V> bpTree);
+		
+		/**
+		 * Get last (right most) leaf in the tree.
+		 * 
+		 * @param bpTree  Tree the node is in.
 		 * @return  A leaf node
 		 */
-		public abstract LeafNode getFirstLeaf();
+		public abstract LeafNode<K,V> getLastLeaf(BPTree<K,V> bpTree);
 
 		/**
 		 * Save the node.
@@ -219,13 +674,14 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 		 * require an extra library and XML is more verbose than I would have
 		 * liked to have used.
 		 * 
+		 * @param bpTree  Tree the node is in.
 		 * @param depth  Depth of node (indentation level)
 		 * @param bufferedWriter  Writer to write node data to
 		 * @param keyParser    Converts between key type and string
 		 * @param valueParser  Converts between value type and string
 		 * @throws IOException  If problems saving
 		 */
-		public abstract void save(int depth, BufferedWriter bufferedWriter,
+		public abstract void save(BPTree<K,V> bpTree, int depth, BufferedWriter bufferedWriter,
 			StringParseInterface keyParser, StringParseInterface valueParser)
 			throws IOException;
 
@@ -234,6 +690,7 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 		 * 
 		 * @see LeafNode#save
 		 * 
+		 * @param bpTree  Tree the node is in.
 		 * @param size  Size of node after loading
 		 * @param prevLeaf  Previous leaf node, used for linking leaves together
 		 * @param bufferedReader  Reader to read node data from
@@ -242,10 +699,83 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 		 * @return  Last added Leaf Node
 		 * @throws IOException  If problems loading
 		 */
-		public abstract LeafNode load(int size, LeafNode prevLeaf,
+		public abstract LeafNode<K,V> load(BPTree<K,V> bpTree, int size, LeafNode<K,V> prevLeaf,
 				BufferedReader bufferedReader, StringParseInterface keyParser,
 				StringParseInterface valueParser)
 				throws IOException;
+		
+		/**
+		 * Save the node's subtree in the binary format.  Children are written
+		 * before their parent, so the parent can record where each child
+		 * starts and any node can later be read on its own.
+		 * 
+		 * @see BPTree#saveBinary
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param out         Output to write node data to
+		 * @param position    Counts the bytes written to the file so far
+		 * @param keyCodec    Converts keys to binary
+		 * @param valueCodec  Converts values to binary
+		 * @return  File offset of the node
+		 * @throws IOException  If problems saving
+		 */
+		public abstract long saveBinary(BPTree<K,V> bpTree, DataOutputStream out,
+				CountingOutputStream position, Codec<K> keyCodec,
+				Codec<V> valueCodec) throws IOException;
+		
+		/**
+		 * Writes one node to a binary file: its type, its size, the length
+		 * of its data and then the data itself.
+		 * 
+		 * @param out       Output to write to
+		 * @param position  Counts the bytes written to the file so far
+		 * @param type      'L' for a leaf or 'I' for an inner node
+		 * @param data      The node's keys, values and children
+		 * @return  File offset of the node
+		 * @throws IOException  If problems saving
+		 */
+		protected long writeRecord(DataOutputStream out,
+				CountingOutputStream position, char type,
+				ByteArrayOutputStream data) throws IOException {
+			long offset = position.count;
+			
+			out.writeByte(type);
+			out.writeInt(size());
+			out.writeInt(data.size());
+			data.writeTo(out);
+			
+			return offset;
+		}
+		
+		/**
+		 * Fills in a stub node with the data read from its place in a binary
+		 * file.  The children of an inner node start out as stubs.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param data        The node's data
+		 * @param size        Size of the node
+		 * @param keyCodec    Converts binary to keys
+		 * @param valueCodec  Converts binary to values
+		 */
+		public abstract void loadRecord(BPTree<K,V> bpTree, ByteBuffer data, int size,
+				Codec<K> keyCodec, Codec<V> valueCodec);
+		
+		/**
+		 * Load the node from the first version of the binary format, which
+		 * stored nodes in the same order as the text format.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param size  Size of node after loading
+		 * @param prevLeaf  Previous leaf node, used for linking leaves together
+		 * @param in  Input to read node data from
+		 * @param keyCodec    Converts binary to keys
+		 * @param valueCodec  Converts binary to values
+		 * @return  Last added Leaf Node
+		 * @throws IOException  If problems loading
+		 */
+		public abstract LeafNode<K,V> loadBinary(BPTree<K,V> bpTree, int size,
+				LeafNode<K,V> prevLeaf, DataInput in, Codec<K> keyCodec, Codec<V> valueCodec)
+				throws IOException;
 	}
 	
 	
@@ -261,22 +791,24 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 	 * @author Nathan
 	 *
 	 */
-	protected class LeafNode extends Node {
-		protected ArrayList<KeyVal<K,V>> entries;
-		protected LeafNode prev = null;
-		protected LeafNode next = null;
+	protected static class LeafNode<K extends Comparable<K>, V> extends Node<K,V> {
+		protected List<KeyVal<K,V>> entries;
+		protected LeafNode<K,V> prev = null;
+		protected LeafNode<K,V> next = null;
+		protected boolean nextUnlinked = false;  // Next leaf not found yet
+		protected BloomFilter filter = null;     // Keys that might be here
 		
 		/**
 		 * LeafNode constructor.
 		 * 
-		 * Stores reference to B+ Tree this node belongs to and also creates
-		 * list of key/value pairs for entries in the data structure.
+		 * Creates the list of key/value pairs for entries in the data
+		 * structure, in the format the tree uses.
 		 * 
-		 * @param bpTree  B+ Tree this node belongs to.
+		 * @param bpTree  B+ Tree that makes this node.
 		 */
 		public LeafNode(BPTree<K,V> bpTree) {
 			super(bpTree);
-			entries = new ArrayList<KeyVal<K,V>>(bpTree.leafSize+1);
+			entries = bpTree.newLeafEntries();
 		}
 		
 		/**
@@ -299,7 +831,7 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 		 * {@inheritDoc}
 		 */
 		@Override
-		public boolean tooLarge() {
+		public boolean tooLarge(BPTree<K,V> bpTree) {
 			return entries.size() > bpTree.leafSize;
 		}
 		
@@ -307,22 +839,97 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 		 * {@inheritDoc}
 		 */
 		@Override
-		public boolean tooSmall() {
+		public boolean tooSmall(BPTree<K,V> bpTree) {
 			return entries.size() < bpTree.leafHalfSize;
 		}
 		
+		/**
+		 * {@inheritDoc}
+		 * 
+		 * The copy takes this leaf's place in the linked list of leaves, so
+		 * the leaf list always links together the leaves of the live tree.
+		 */
+		@Override
+		public LeafNode<K,V> copy(BPTree<K,V> bpTree) {
+			LeafNode<K,V> node = bpTree.createLeafNode();
+			
+			for (KeyVal<K,V> entry : entries) {
+				node.entries.add(new KeyVal<K,V>(entry));
+			}
+			
+			node.prev = prev;
+			node.next = next;
+			node.nextUnlinked = nextUnlinked;
+			node.filter = (filter == null) ? null : filter.copy();
+			bpTree.relocateKeys(node.entries, node, 0);
+			bpTree.routingCurrent = false;
+			if (prev != null)
+				prev.next = node;
+			if (next != null)
+				next.prev = node;
+			
+			return node;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void reset(BPTree<K,V> bpTree) {
+			super.reset(bpTree);
+			entries.clear();
+			prev = null;
+			next = null;
+			nextUnlinked = false;
+			filter = null;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * 
+		 * A stub that was read with its filter can answer without being read.
+		 */
+		@Override
+		public boolean mightContain(K key) {
+			return filter == null || filter.mightContain(key);
+		}
+		
+		/**
+		 * Builds the leaf's Bloom filter again from the keys it holds, so keys
+		 * that were removed or moved to another leaf are dropped from it.
+		 * The filter is sized for a full leaf, so it is never overfilled.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 */
+		protected void rebuildFilter(BPTree<K,V> bpTree) {
+			if (bpTree.bloomBitsPerKey == 0) {
+				filter = null;
+				return;
+			}
+			
+			if (filter == null) {
+				filter = new BloomFilter(bpTree.leafSize+1, bpTree.bloomBitsPerKey);
+			} else {
+				filter.clear();
+			}
+			
+			for (KeyVal<K,V> entry : entries) {
+				filter.add(entry.getKey());
+			}
+		}
+		
 		/**
 		 * {@inheritDoc}
 		 * 
 		 * Since this is a leaf node, the entry might be found in this node.
 		 */
 		@Override
-		public boolean contains(K key) {
+		public boolean contains(BPTree<K,V> bpTree, K key) {
 			if (entries.size() == 0) {
 				return false;
 			}
 			
-			KeyVal<K,V> entry = new KeyVal<K,V>(key, null);
+			KeyVal<K,V> entry = bpTree.makeEntry(key, null);
 			int index = findPossibleIndex(entry);
 			
 			if (index >= entries.size()) {
@@ -336,12 +943,12 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 		 * {@inheritDoc}
 		 */
 		@Override
-		public V get(K key) {
+		public V get(BPTree<K,V> bpTree, K key) {
 			if (entries.size() == 0) {
 				return null;
 			}
 			
-			KeyVal<K,V> entry = new KeyVal<K,V>(key, null);
+			KeyVal<K,V> entry = bpTree.makeEntry(key, null);
 			int index = findPossibleIndex(entry);
 			
 			if (index >= entries.size()) {
@@ -359,14 +966,20 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 		 * {@inheritDoc}
 		 */
 		@Override
-		public V insert(KeyVal<K,V> entry) {
+		public V insert(BPTree<K,V> bpTree, KeyVal<K,V> entry) {
+			bpTree.recordPut(entry);
+			if (filter != null)
+				filter.add(entry.getKey());
+			
 			if (entries.size() == 0) {
+				bpTree.indexKey(entry.getKey(), this, 0);
 				bpTree.incSize();
 				entries.add(entry);
 				return null;
 			}
 			
 			int index = findPossibleIndex(entry);
+			bpTree.indexKey(entry.getKey(), this, index);
 			
 			if (index >= entries.size()) {
 				bpTree.incSize();
@@ -385,35 +998,145 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 			
 			return null;
 		}
-
+		
 		/**
-		 * Finds a possible index where the entry with the same key as the
-		 * given entry may reside.  The entry at this location may not be the
-		 * same, an additional check may be needed to compare them or the index
-		 * may be used as a location where a new entry should be inserted.
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void hashContents(BPTree<K,V> bpTree, DataOutputStream out)
+				throws IOException {
+			out.writeByte('L');
+			out.writeInt(entries.size());
+			for (KeyVal<K,V> entry : entries) {
+				bpTree.hashKeyCodec.encode(entry.getKey(), out);
+				bpTree.hashValueCodec.encode(entry.getValue(), out);
+			}
+		}
+		
+		/**
+		 * Gets the next leaf in the linked list of leaves.  A leaf that was
+		 * read from a file on its own is linked to the next leaf here, the
+		 * first time it is needed.
 		 * 
-		 * @param entry  Entry with same key that is being searched for.
-		 * @return       Index of the entry that searched indexy may be.
+		 * @param bpTree  Tree the node is in.
+		 * @return  The next leaf, or null if this is the last one.
 		 */
-		private int findPossibleIndex(KeyVal<K, V> entry) {
-			// TODO: Optimize -- use binary search
-			int index = 0;
-			while (index < entries.size() && entry.compareTo(entries.get(index)) > 0) {
-				index++;
+		public LeafNode<K,V> getNext(BPTree<K,V> bpTree) {
+			if (nextUnlinked) {
+				nextUnlinked = false;
+				
+				if (!entries.isEmpty()) {
+					next = bpTree.findNextLeaf(entries.get(entries.size()-1).getKey());
+					if (next != null)
+						next.prev = this;
+				}
 			}
-			return index;
+			
+			return next;
 		}
-
+		
 		/**
 		 * {@inheritDoc}
+		 * 
+		 * Since the batch is sorted, the search for each entry starts where
+		 * the last entry went.
 		 */
 		@Override
-		public V remove(K key) {
-			if (entries.size() == 0) {
+		public int insertSorted(BPTree<K,V> bpTree, List<KeyVal<K,V>> batch, int from, K upper) {
+			int index = 0;
+			
+			while (from < batch.size() && !tooLarge(bpTree)) {
+				KeyVal<K,V> entry = batch.get(from);
+				if (upper != null && entry.getKey().compareTo(upper) >= 0)
+					break;
+				
+				if (entries instanceof LeafEntryList) {
+					index = findPossibleIndex(entry);
+				} else {
+					while (index < entries.size() && entry.compareTo(entries.get(index)) > 0) {
+						index++;
+					}
+				}
+				
+				if (index < entries.size() && entries.get(index).compareTo(entry) == 0) {
+					entries.set(index, entry);
+				} else {
+					bpTree.incSize();
+					entries.add(index, entry);
+				}
+				bpTree.recordPut(entry);
+				bpTree.indexKey(entry.getKey(), this, index);
+				if (filter != null)
+					filter.add(entry.getKey());
+				
+				from++;
+			}
+			
+			return from;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int getSorted(BPTree<K,V> bpTree, List<KeyVal<K,V>> batch, int from, K upper,
+				Map<K,V> found) {
+			int index = 0;
+			
+			while (from < batch.size()) {
+				KeyVal<K,V> entry = batch.get(from);
+				if (upper != null && entry.getKey().compareTo(upper) >= 0)
+					break;
+				
+				if (entries instanceof LeafEntryList) {
+					index = findPossibleIndex(entry);
+				} else {
+					while (index < entries.size() && entry.compareTo(entries.get(index)) > 0) {
+						index++;
+					}
+				}
+				
+				if (index < entries.size() && entries.get(index).compareTo(entry) == 0) {
+					found.put(entry.getKey(), entries.get(index).getValue());
+				}
+				
+				from++;
+			}
+			
+			return from;
+		}
+
+		/**
+		 * Finds a possible index where the entry with the same key as the
+		 * given entry may reside.  The entry at this location may not be the
+		 * same, an additional check may be needed to compare them or the index
+		 * may be used as a location where a new entry should be inserted.
+		 * 
+		 * @param entry  Entry with same key that is being searched for.
+		 * @return       Index of the entry that searched indexy may be.
+		 */
+		private int findPossibleIndex(KeyVal<K, V> entry) {
+			if (entries instanceof LeafEntryList) {
+				return ((LeafEntryList<K,V>)entries).findPossibleIndex(entry.getKey());
+			}
+			
+			// TODO: Optimize -- use binary search
+			int index = 0;
+			while (index < entries.size() && entry.compareTo(entries.get(index)) > 0) {
+				index++;
+			}
+			return index;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public V removeEntry(BPTree<K,V> bpTree, KeyVal<K,V> entry) {
+			if (entries.size() == 0) {
 				return null;
 			}
 			
-			KeyVal<K,V> entry = new KeyVal<K,V>(key, null);
 			int index = findPossibleIndex(entry);
 			
 			if (index >= entries.size()) {
@@ -424,6 +1147,8 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 				V oldValue = entries.get(index).getValue();
 				bpTree.decSize();
 				entries.remove(index);
+				bpTree.recordRemove(entry);
+				bpTree.unindexKey(entry.getKey());
 				return oldValue;
 			}
 			
@@ -434,74 +1159,169 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 		 * {@inheritDoc}
 		 */
 		@Override
-		public SplitResult split() {
+		public V update(BPTree<K,V> bpTree, KeyVal<K,V> entry,
+				BiFunction<? super K, ? super V, ? extends V> remapping) {
+			int index = findPossibleIndex(entry);
+			boolean found = index < entries.size() && entries.get(index).compareTo(entry) == 0;
+			V oldValue = found ? entries.get(index).getValue() : null;
+			
+			V newValue = remapping.apply(entry.getKey(), oldValue);
+			entry.setValue(newValue);
+			
+			if (newValue == null) {
+				if (found) {
+					bpTree.decSize();
+					entries.remove(index);
+					bpTree.recordRemove(entry);
+					bpTree.unindexKey(entry.getKey());
+				}
+			}
+			else if (!found) {
+				bpTree.incSize();
+				entries.add(index, entry);
+				bpTree.recordPut(entry);
+				bpTree.indexKey(entry.getKey(), this, index);
+				if (filter != null)
+					filter.add(entry.getKey());
+			}
+			else if (newValue != oldValue) {
+				entries.set(index, entry);
+				bpTree.recordPut(entry);
+			}
+			
+			return oldValue;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public SplitResult<K,V> split(BPTree<K,V> bpTree) {
 			// New node resulting from the split
-			LeafNode splitNode = new LeafNode(bpTree);
+			LeafNode<K,V> splitNode = bpTree.createLeafNode();
 			
 			// Where to split
 			int midIndex = (int)Math.ceil(entries.size() / 2.0);
 			
-			// Move half the old children into new children for this and the split node
-			ArrayList<KeyVal<K,V>> oldEntries = entries;
-			entries = new ArrayList<KeyVal<K,V>>(oldEntries.subList(0, midIndex));
-			splitNode.entries = new ArrayList<KeyVal<K,V>>(
-					oldEntries.subList(midIndex, oldEntries.size())
-			);
+			// Move the second half of the entries over to the split node
+			List<KeyVal<K,V>> moved = entries.subList(midIndex, entries.size());
+			splitNode.entries.addAll(moved);
+			bpTree.relocateKeys(moved, splitNode, 0);
+			moved.clear();
 			
-			// Mid key will be first entry on split node
-			K midKey = splitNode.entries.get(0).getKey();
+			// Mid key separates the last entry of this node from the first
+			// entry on the split node
+			K midKey = bpTree.separatorKey(entries.get(entries.size()-1).getKey(),
+					splitNode.entries.get(0).getKey());
 			
 			// Update prev/next links between Leaf Nodes
 			splitNode.next = next;
+			splitNode.nextUnlinked = nextUnlinked;
+			if (next != null)
+				next.prev = splitNode;
 			next = splitNode;
+			nextUnlinked = false;
 			splitNode.prev = this;
 			
-			return new SplitResult(midKey, splitNode);
+			rebuildFilter(bpTree);
+			splitNode.rebuildFilter(bpTree);
+			bpTree.routingCurrent = false;
+			
+			return new SplitResult<K,V>(midKey, splitNode);
 		}
 		
 		/**
 		 * {@inheritDoc}
 		 */
 		@Override
-		public void merge(Node other, K parentKey) {
+		public void merge(BPTree<K,V> bpTree, Node<K,V> other, K parentKey) {
 			@SuppressWarnings("unchecked")
-			LeafNode node = (LeafNode)other;
+			LeafNode<K,V> node = (LeafNode<K,V>)other;
 			
+			bpTree.relocateKeys(node.entries, this, entries.size());
 			entries.addAll(node.entries);
+			rebuildFilter(bpTree);
+			bpTree.routingCurrent = false;
 			
 			// Update prev/next between Leaf Nodes
 			next = node.next;
+			nextUnlinked = node.nextUnlinked;
+			if (next != null)
+				next.prev = this;
 		}
 		
 		/**
 		 * {@inheritDoc}
 		 */
 		@Override
-		public RedistResult redistribute(Node other, K parentKey) {
+		public RedistResult<K,V> redistribute(BPTree<K,V> bpTree, Node<K,V> other, K parentKey) {
 			if (size() + other.size() < bpTree.leafHalfSize*2) {
 				// Too small to redistribute
-				return new RedistResult(false, null);
+				return new RedistResult<K,V>(false, null);
 			}
 			
 			@SuppressWarnings("unchecked")
-			LeafNode node = (LeafNode)other;
+			LeafNode<K,V> node = (LeafNode<K,V>)other;
+			
+			int midIndex = (size() + node.size()) / 2;
+			
+			// Move entries across the boundary, so neither list is replaced
+			if (size() > midIndex) {
+				List<KeyVal<K,V>> moved = entries.subList(midIndex, size());
+				node.entries.addAll(0, moved);
+				bpTree.relocateKeys(moved, node, 0);
+				moved.clear();
+			}
+			else {
+				List<KeyVal<K,V>> moved = node.entries.subList(0, midIndex - size());
+				bpTree.relocateKeys(moved, this, entries.size());
+				entries.addAll(moved);
+				moved.clear();
+			}
+			rebuildFilter(bpTree);
+			node.rebuildFilter(bpTree);
+			bpTree.routingCurrent = false;
+			
+			K middleKey = bpTree.separatorKey(entries.get(entries.size()-1).getKey(),
+					node.entries.get(0).getKey());
 			
-			ArrayList<KeyVal<K,V>> tmp = entries;
-			tmp.addAll(node.entries);
+			return new RedistResult<K,V>(true, middleKey);
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public K shiftFrom(BPTree<K,V> bpTree, Node<K,V> other, K parentKey, int count) {
+			@SuppressWarnings("unchecked")
+			LeafNode<K,V> node = (LeafNode<K,V>)other;
 			
-			int midIndex = tmp.size() / 2;
+			List<KeyVal<K,V>> moved = node.entries.subList(0, count);
+			bpTree.relocateKeys(moved, this, entries.size());
+			entries.addAll(moved);
+			moved.clear();
+			rebuildFilter(bpTree);
+			node.rebuildFilter(bpTree);
+			bpTree.routingCurrent = false;
 			
-			entries = new ArrayList<KeyVal<K,V>>(tmp.subList(0, midIndex));
-			node.entries = new ArrayList<KeyVal<K,V>>(tmp.subList(midIndex, tmp.size()));
+			if (node.isEmpty()) {
+				// Unlink the emptied node
+				next = node.next;
+				nextUnlinked = node.nextUnlinked;
+				if (next != null)
+					next.prev = this;
+				return null;
+			}
 			
-			return new RedistResult(true, node.entries.get(0).getKey());
+			return bpTree.separatorKey(entries.get(entries.size()-1).getKey(),
+					node.entries.get(0).getKey());
 		}
 		
 		/**
 		 * {@inheritDoc}
 		 */
 		@Override
-		public void printFullTree(int depth) {
+		public void printFullTree(BPTree<K,V> bpTree, int depth) {
 			String tab = "";
 			if (depth != 0)
 				tab = String.format("%1$" + (depth*3) + "s", "");
@@ -515,15 +1335,111 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 		 * {@inheritDoc}
 		 */
 		@Override
-		public int countNodes() {
+		public int countNodes(BPTree<K,V> bpTree) {
 			return 1;
 		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int countEntries(BPTree<K,V> bpTree) {
+			if (fileOffset >= 0) {
+				if (entryTotal >= 0)
+					return entryTotal;
+				bpTree.loadNode(this);
+			}
+			return entries.size();
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int removeRange(BPTree<K,V> bpTree, KeyVal<K,V> lo, KeyVal<K,V> hi) {
+			int from = (lo == null) ? 0 : findPossibleIndex(lo);
+			int to = entries.size();
+			
+			if (hi != null) {
+				to = findPossibleIndex(hi);
+				if (to < entries.size() && entries.get(to).compareTo(hi) == 0)
+					to++;
+			}
+			
+			if (from >= to)
+				return 0;
+			
+			entries.subList(from, to).clear();
+			rebuildFilter(bpTree);
+			return to - from;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Node<K,V> splitOff(BPTree<K,V> bpTree, KeyVal<K,V> entry, BPTree<K,V> rightTree) {
+			LeafNode<K,V> right = rightTree.createLeafNode();
+			
+			List<KeyVal<K,V>> moved = entries.subList(findPossibleIndex(entry), entries.size());
+			right.entries.addAll(moved);
+			moved.clear();
+			rebuildFilter(bpTree);
+			right.rebuildFilter(bpTree);
+			bpTree.routingCurrent = false;
+			
+			// The chain of leaves is cut here
+			right.next = next;
+			right.nextUnlinked = nextUnlinked;
+			if (next != null)
+				next.prev = right;
+			next = null;
+			nextUnlinked = false;
+			
+			return right;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@SuppressWarnings("unchecked")
+		@Override
+		public void collectStats(BPTree<K,V> bpTree, TreeStats stats, int depth) {
+			long bytes = TreeStats.align(TreeStats.OBJECT_HEADER
+					+ 6*TreeStats.REFERENCE + 4 + 8 + 1);
+			
+			if (hash != null) {
+				bytes += TreeStats.arrayBytes(HASH_BYTES, 1);
+			}
+			
+			if (filter != null) {
+				bytes += filter.estimatedBytes();
+			}
+			
+			if (entries instanceof LeafEntryList) {
+				bytes += ((LeafEntryList<K,V>)entries).estimatedBytes();
+			}
+			else {
+				bytes += bpTree.listBytes(bpTree.leafSize);
+				
+				// Packed lists only make KeyVals while they are read, so
+				// only the ArrayList keeps these
+				for (KeyVal<K,V> entry : entries) {
+					bytes += entry.estimatedBytes();
+				}
+			}
+			
+			LeafNode<K,V> last = (LeafNode<K,V>)stats.getLastLeaf();
+			boolean linked = last != null && (last.next == this || last.nextUnlinked);
+			
+			stats.addLeaf(depth, size(), bytes, this, linked);
+		}
 
 		/**
 		 * {@inheritDoc}
 		 */
 		@Override
-		public BPTree<K, V>.LeafNode getLeaf(K key) {
+		public LeafNode<K,V> getLeaf(BPTree<K,V> bpTree, K key) {
 			return this;
 		}
 
@@ -531,7 +1447,15 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 		 * {@inheritDoc}
 		 */
 		@Override
-		public BPTree<K, V>.LeafNode getFirstLeaf() {
+		public LeafNode<K,V> getFirstLeaf(BPTree<K,V> bpTree) {
+			return this;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public LeafNode<K,V> getLastLeaf(BPTree<K,V> bpTree) {
 			return this;
 		}
 
@@ -539,7 +1463,7 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 		 * {@inheritDoc}
 		 */
 		@Override
-		public void save(int depth, BufferedWriter bufferedWriter,
+		public void save(BPTree<K,V> bpTree, int depth, BufferedWriter bufferedWriter,
 				StringParseInterface keyParser, StringParseInterface valueParser)
 				throws IOException {
 			
@@ -575,8 +1499,8 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 		 */
 		@SuppressWarnings("unchecked")
 		@Override
-		public BPTree<K, V>.LeafNode load(int size,
-				BPTree<K, V>.LeafNode prevLeaf, BufferedReader bufferedReader,
+		public LeafNode<K,V> load(BPTree<K,V> bpTree, int size,
+				LeafNode<K,V> prevLeaf, BufferedReader bufferedReader,
 				StringParseInterface keyParser, StringParseInterface valueParser)
 				throws IOException {
 			
@@ -605,6 +1529,72 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 				entries.add(new KeyVal<K,V>(k,v));
 			}
 			
+			rebuildFilter(bpTree);
+			return this;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public long saveBinary(BPTree<K,V> bpTree, DataOutputStream out,
+				CountingOutputStream position, Codec<K> keyCodec,
+				Codec<V> valueCodec) throws IOException {
+			
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream data = new DataOutputStream(bytes);
+			
+			for (KeyVal<K,V> entry : entries) {
+				keyCodec.encode(entry.getKey(), data);
+				valueCodec.encode(entry.getValue(), data);
+			}
+			
+			return writeRecord(out, position, 'L', bytes);
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * 
+		 * The next leaf is found the first time it is needed.
+		 */
+		@Override
+		public void loadRecord(BPTree<K,V> bpTree, ByteBuffer data, int size, Codec<K> keyCodec,
+				Codec<V> valueCodec) {
+			for (int i=0; i<size; i++) {
+				K k = keyCodec.decode(data);
+				V v = valueCodec.decode(data);
+				entries.add(new KeyVal<K,V>(k,v));
+			}
+			
+			nextUnlinked = true;
+			if (filter == null)
+				rebuildFilter(bpTree);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public LeafNode<K,V> loadBinary(BPTree<K,V> bpTree, int size, LeafNode<K,V> prevLeaf,
+				DataInput in, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+			
+			if (prevLeaf != null) {
+				prevLeaf.next = this;
+				prev = prevLeaf;
+			}
+			
+			K k;
+			V v;
+			
+			for (int i=0; i<size; i++) {
+				k = keyCodec.decode(in);
+				v = valueCodec.decode(in);
+				
+				bpTree.incSize();
+				entries.add(new KeyVal<K,V>(k,v));
+			}
+			
+			rebuildFilter(bpTree);
 			return this;
 		}
 	}
@@ -618,20 +1608,21 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 	 * 
 	 * @author Nathan
 	 */
-	protected class InnerNode extends Node {
-		protected ArrayList<KeyVal<K,Node>> children;
+	protected static class InnerNode<K extends Comparable<K>, V> extends Node<K,V> {
+		protected ArrayList<KeyVal<K,Node<K,V>>> children;
+		protected K prefix = null;  // Prefix removed from every key, if any
 		
 		/**
 		 * InnerNode Constructor.
 		 * 
-		 * Stores reference to B+ Tree this node belongs to and creates a list
-		 * of children that are directly below this node in the tree.
+		 * Creates a list of children that are directly below this node in
+		 * the tree.
 		 * 
-		 * @param bpTree  B+ Tree this node belongs to.
+		 * @param bpTree  B+ Tree that makes this node.
 		 */
 		public InnerNode(BPTree<K,V> bpTree) {
 			super(bpTree);
-			children = new ArrayList<KeyVal<K,Node>>(bpTree.innerSize+1);
+			children = new ArrayList<KeyVal<K,Node<K,V>>>(bpTree.innerSize+1);
 		}
 		
 		/**
@@ -654,7 +1645,7 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 		 * {@inheritDoc}
 		 */
 		@Override
-		public boolean tooLarge() {
+		public boolean tooLarge(BPTree<K,V> bpTree) {
 			return children.size() > bpTree.innerSize;
 		}
 
@@ -662,7 +1653,7 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 		 * {@inheritDoc}
 		 */
 		@Override
-		public boolean tooSmall() {
+		public boolean tooSmall(BPTree<K,V> bpTree) {
 			return children.size() < bpTree.innerHalfSize;
 		}
 
@@ -670,192 +1661,671 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 		 * {@inheritDoc}
 		 */
 		@Override
-		public boolean contains(K key) {
-			// TODO: Optimize -- should not need to create entries to find child
-			KeyVal<K,V> entry = new KeyVal<K,V>(key,null); 
-			int index = findGreaterIndex(entry);
-			Node childNode = children.get(index).getValue(); 
-			return childNode.contains(key);
+		public InnerNode<K,V> copy(BPTree<K,V> bpTree) {
+			InnerNode<K,V> node = bpTree.createInnerNode();
+			
+			for (KeyVal<K,Node<K,V>> child : children) {
+				node.children.add(new KeyVal<K,Node<K,V>>(child));
+			}
+			node.prefix = prefix;
+			
+			return node;
 		}
-
+		
 		/**
 		 * {@inheritDoc}
 		 */
 		@Override
-		public V get(K key) {
-			KeyVal<K,V> entry = new KeyVal<K,V>(key, null);
-			int index = findGreaterIndex(entry);
-			Node childNode = children.get(index).getValue(); 
-			return childNode.get(key);
+		protected void reset(BPTree<K,V> bpTree) {
+			super.reset(bpTree);
+			children.clear();
+			prefix = null;
 		}
-
+		
+		/**
+		 * Gets the child node at the specified index so that it can be
+		 * modified.  If the child is shared with a snapshot that is still
+		 * being saved, it is replaced with a copy first.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param index  Index of the child node.
+		 * @return       Child node that is safe to modify.
+		 */
+		protected Node<K,V> writableChild(BPTree<K,V> bpTree, int index) {
+			Node<K,V> childNode = bpTree.writable(child(bpTree, index));
+			children.get(index).setValue(childNode);
+			return childNode;
+		}
+		
+		/**
+		 * Gets the child node at the specified index, reading it from the
+		 * tree's file first if it is still a stub.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param index  Index of the child node.
+		 * @return       Child node.
+		 */
+		protected Node<K,V> child(BPTree<K,V> bpTree, int index) {
+			Node<K,V> childNode = childStub(index);
+			if (childNode.fileOffset >= 0) {
+				bpTree.loadNode(childNode);
+			}
+			return childNode;
+		}
+		
+		/**
+		 * Gets the child node at the specified index without reading it
+		 * from the tree's file if it is still a stub.
+		 * 
+		 * @param index  Index of the child node.
+		 * @return       Child node, which may be a stub.
+		 */
+		protected Node<K,V> childStub(int index) {
+			return children.get(index).getValue();
+		}
+		
 		/**
 		 * {@inheritDoc}
+		 * 
+		 * The separator keys are part of the hash, so two subtrees only hash
+		 * the same if their children can be compared one to one.
 		 */
 		@Override
-		public V insert(KeyVal<K,V> entry) {
-			// Find child that is >= entry and insert
-			int index = findGreaterIndex(entry);
-			Node childNode = children.get(index).getValue(); 
-			V oldVal = childNode.insert(entry);
-			
-			// Is the child node now too large?
-			if (childNode.tooLarge()) {
-				// Split
-				SplitResult sr = childNode.split();
-				
-				// When a leaf node splits, middle key is copied into children
-				// When an inner node splits, middle key is "pushed up"
-				
-				// Set child of greater key to the new split node
-				children.get(index).setValue(sr.splitNode);
-				
-				// Insert a child with key given to us pointing to old child node.
-				// This inserts first half of split as new child entry.
-				KeyVal<K,Node> newChild = new KeyVal<K,Node>(sr.midKey, childNode);
-				children.add(index, newChild);
+		protected void hashContents(BPTree<K,V> bpTree, DataOutputStream out)
+				throws IOException {
+			out.writeByte('I');
+			out.writeInt(children.size());
+			for (int i=0; i<children.size(); i++) {
+				// The last child always has the infinite key, so it is skipped
+				if (!children.get(i).hasInfKey())
+					bpTree.hashKeyCodec.encode(keyAt(bpTree, i), out);
+				out.write(child(bpTree, i).contentHash(bpTree));
 			}
+		}
+		
+		/**
+		 * Gets the full key of a child, with the node's prefix put back on.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param index  Index of the child.
+		 * @return       Key of the child, or null if it is the infinite key.
+		 */
+		public K keyAt(BPTree<K,V> bpTree, int index) {
+			KeyVal<K,Node<K,V>> child = children.get(index);
 			
-			return oldVal;
+			if (child.hasInfKey())
+				return null;
+			if (prefix == null)
+				return child.getKey();
+			return bpTree.keySeparator.addPrefix(prefix, child.getKey());
 		}
-
+		
 		/**
-		 * Find the index of the child with a key larger than the key of the
-		 * specified entry.  This index is needed because entries are stored
-		 * under the child element that is larger than the entry.
+		 * Puts the prefix back onto every key, so the keys can be moved
+		 * around.  Used before changing the structure of the node.
 		 * 
-		 * @param entry  Entry with same key as entry we are looking for.
-		 * @return       Index of child element with a larger key.
+		 * @param bpTree  Tree the node is in.
 		 */
-		private int findGreaterIndex(KeyVal<K, V> entry) {
-			// TODO: Optimize -- use binary search
-			KeyVal<K, Node> kv = new KeyVal<K, Node>(entry.getKey(), null);
-			int index = 0;
-			while (index < size()-1 && kv.compareTo(children.get(index)) >= 0) {
-				index++;
+		protected void expandKeys(BPTree<K,V> bpTree) {
+			if (prefix == null)
+				return;
+			
+			for (KeyVal<K,Node<K,V>> child : children) {
+				if (!child.hasInfKey())
+					child.setKey(bpTree.keySeparator.addPrefix(prefix, child.getKey()));
 			}
-			return index;
+			prefix = null;
 		}
-
+		
 		/**
-		 * {@inheritDoc}
+		 * Finds the prefix shared by every key and stores it once for the
+		 * node instead of in every key.  Used after changing the structure of
+		 * the node.
+		 * 
+		 * @param bpTree  Tree the node is in.
 		 */
-		@Override
-		public V remove(K key) {
-			KeyVal<K,V> entry = new KeyVal<K,V>(key,null);
+		protected void compressKeys(BPTree<K,V> bpTree) {
+			if (bpTree.keySeparator == null || prefix != null || size() < 3)
+				return;
 			
-			// Find child that is >= entry and remove
-			int index = findGreaterIndex(entry);
-			Node childNode = children.get(index).getValue(); 
-			V removedValue = childNode.remove(key);
+			// Keys are sorted, so the first and last share the common prefix
+			K first = children.get(0).getKey();
+			K last = children.get(size()-2).getKey();
+			prefix = bpTree.keySeparator.commonPrefix(first, last);
 			
-			// Is child node too small?
-			if (childNode.tooSmall()) {
-				int firstIndex;
-				Node first;
-				int secondIndex;
-				Node second;
-				
-				// If childNode is last node, merge left instead of right
-				if (index == children.size()-1) {
-					firstIndex = index-1;
-					first = children.get(firstIndex).getValue();
-					secondIndex = index;
-					second = childNode;
-				}
-				else {
-					firstIndex = index;
-					first = childNode;
-					secondIndex = index+1;
-					second = children.get(secondIndex).getValue();
-				}
-				
-				K parentKey = children.get(firstIndex).getKey();
-				
-				RedistResult rr = first.redistribute(second, parentKey);
-				if (rr.redistSuccess) {
-					// Redistributing moves things around, so
-					// we need to update the key in the children list.
-					children.get(firstIndex).setKey(rr.middleKey);
-				}
-				else {
-					// Could not redistribute, need to merge instead.
-					KeyVal<K,Node> kv = children.get(secondIndex);
-					first.merge(second, parentKey);
-					children.get(firstIndex).setKey(kv);
-					children.remove(secondIndex);
-				}
-			}
+			if (prefix == null)
+				return;
 			
-			return removedValue;
+			for (KeyVal<K,Node<K,V>> child : children) {
+				if (!child.hasInfKey())
+					child.setKey(bpTree.keySeparator.removePrefix(child.getKey(), prefix));
+			}
 		}
-		
 
 		/**
 		 * {@inheritDoc}
 		 */
 		@Override
-		public SplitResult split() {
-			// New node resulting from the split
-			InnerNode splitNode = new InnerNode(bpTree);
-			
-			// Where to split
-			int midIndex = (int)Math.ceil(children.size() / 2.0);
-			
-			// Divide the children between this node and the split node.
-			ArrayList<KeyVal<K,Node>> oldChildren = children;
-			children = new ArrayList<KeyVal<K,Node>>(oldChildren.subList(0, midIndex));
-			splitNode.children = new ArrayList<KeyVal<K,Node>>(
-					oldChildren.subList(midIndex, oldChildren.size())
-			);
+		public boolean contains(BPTree<K,V> bpTree, K key) {
+			// TODO: Optimize -- should not need to create entries to find child
+			KeyVal<K,V> entry = bpTree.makeEntry(key, null); 
+			int index = findGreaterIndex(bpTree, entry);
+			if (!childStub(index).mightContain(key))
+				return false;
+			Node<K,V> childNode = child(bpTree, index);
+			return childNode.contains(bpTree, key);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public V get(BPTree<K,V> bpTree, K key) {
+			KeyVal<K,V> entry = bpTree.makeEntry(key, null);
+			int index = findGreaterIndex(bpTree, entry);
+			if (!childStub(index).mightContain(key))
+				return null;
+			Node<K,V> childNode = child(bpTree, index);
+			return childNode.get(bpTree, key);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public V insert(BPTree<K,V> bpTree, KeyVal<K,V> entry) {
+			// Find child that is >= entry and insert
+			int index = findGreaterIndex(bpTree, entry);
+			int total = childStub(index).entryTotal;
+			int size = bpTree.entryCount;
+			Node<K,V> childNode = writableChild(bpTree, index);
+			V oldVal = childNode.insert(bpTree, entry);
+			childNode.addToTotal(total, bpTree.entryCount - size);
+			
+			// Is the child node now too large?
+			if (childNode.tooLarge(bpTree)) {
+				splitChild(bpTree, index, childNode);
+			}
+			
+			return oldVal;
+		}
+		
+		/**
+		 * Splits a child that has become too large.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param index      Index of the child.
+		 * @param childNode  The child, which must already be writable.
+		 */
+		protected void splitChild(BPTree<K,V> bpTree, int index, Node<K,V> childNode) {
+			expandKeys(bpTree);
+			bpTree.forgetUnderflow(childNode);
+			
+			// Split
+			SplitResult<K,V> sr = childNode.split(bpTree);
+			
+			// When a leaf node splits, middle key is copied into children
+			// When an inner node splits, middle key is "pushed up"
+			
+			// Set child of greater key to the new split node
+			children.get(index).setValue(sr.splitNode);
+			
+			// Insert a child with key given to us pointing to old child node.
+			// This inserts first half of split as new child entry.
+			KeyVal<K,Node<K,V>> newChild = new KeyVal<K,Node<K,V>>(sr.midKey, childNode);
+			children.add(index, newChild);
+			
+			compressKeys(bpTree);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * 
+		 * Each child is handed every entry that belongs under it at once, so
+		 * a batch only descends once per leaf it touches.
+		 */
+		@Override
+		public int insertSorted(BPTree<K,V> bpTree, List<KeyVal<K,V>> batch, int from, K upper) {
+			while (from < batch.size() && !tooLarge(bpTree)) {
+				KeyVal<K,V> entry = batch.get(from);
+				if (upper != null && entry.getKey().compareTo(upper) >= 0)
+					break;
+				
+				int index = findGreaterIndex(bpTree, entry);
+				K childUpper = (index < size()-1) ? keyAt(bpTree, index) : upper;
+				Node<K,V> childNode = writableChild(bpTree, index);
+				from = childNode.insertSorted(bpTree, batch, from, childUpper);
+				
+				if (childNode.tooLarge(bpTree)) {
+					splitChild(bpTree, index, childNode);
+				}
+			}
+			
+			return from;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int getSorted(BPTree<K,V> bpTree, List<KeyVal<K,V>> batch, int from, K upper,
+				Map<K,V> found) {
+			while (from < batch.size()) {
+				KeyVal<K,V> entry = batch.get(from);
+				if (upper != null && entry.getKey().compareTo(upper) >= 0)
+					break;
+				
+				int index = findGreaterIndex(bpTree, entry);
+				K childUpper = (index < size()-1) ? keyAt(bpTree, index) : upper;
+				from = child(bpTree, index).getSorted(bpTree, batch, from, childUpper, found);
+			}
+			
+			return from;
+		}
+
+		/**
+		 * Find the index of the child with a key larger than the key of the
+		 * specified entry.  This index is needed because entries are stored
+		 * under the child element that is larger than the entry.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param entry  Entry with same key as entry we are looking for.
+		 * @return       Index of child element with a larger key.
+		 */
+		protected int findGreaterIndex(BPTree<K,V> bpTree, KeyVal<K, ?> entry) {
+			if (prefix != null) {
+				return findGreaterIndexWithPrefix(bpTree, entry.getKey());
+			}
+			
+			// TODO: Optimize -- use binary search
+			int index = 0;
+			while (index < size()-1 && entry.compareKeyTo(children.get(index)) >= 0) {
+				index++;
+			}
+			return index;
+		}
+
+		/**
+		 * Same as findGreaterIndex, but for when the prefix has been removed
+		 * from the keys.  The key is only compared to the prefix once, then to
+		 * the rest of each key.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param key  Key of the entry we are looking for.
+		 * @return     Index of child element with a larger key.
+		 */
+		private int findGreaterIndexWithPrefix(BPTree<K,V> bpTree, K key) {
+			KeySeparator<K> separator = bpTree.keySeparator;
+			
+			int cmp = separator.comparePrefix(key, prefix);
+			if (cmp < 0)
+				return 0;
+			if (cmp > 0)
+				return size()-1;
+			
+			int index = 0;
+			while (index < size()-1 &&
+					separator.compareSuffix(key, prefix, children.get(index).getKey()) >= 0) {
+				index++;
+			}
+			return index;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public V removeEntry(BPTree<K,V> bpTree, KeyVal<K,V> entry) {
+			// Find child that is >= entry and remove
+			int index = findGreaterIndex(bpTree, entry);
+			int total = childStub(index).entryTotal;
+			int size = bpTree.entryCount;
+			Node<K,V> childNode = writableChild(bpTree, index);
+			V removedValue = childNode.removeEntry(bpTree, entry);
+			childNode.addToTotal(total, bpTree.entryCount - size);
+			
+			// Is child node too small?
+			if (childNode.tooSmall(bpTree)) {
+				childTooSmall(bpTree, index, childNode, entry);
+			}
+			
+			return removedValue;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public V update(BPTree<K,V> bpTree, KeyVal<K,V> entry,
+				BiFunction<? super K, ? super V, ? extends V> remapping) {
+			int index = findGreaterIndex(bpTree, entry);
+			int total = childStub(index).entryTotal;
+			int size = bpTree.entryCount;
+			Node<K,V> childNode = writableChild(bpTree, index);
+			V oldVal = childNode.update(bpTree, entry, remapping);
+			childNode.addToTotal(total, bpTree.entryCount - size);
+			
+			if (childNode.tooLarge(bpTree)) {
+				splitChild(bpTree, index, childNode);
+			}
+			else if (childNode.tooSmall(bpTree)) {
+				childTooSmall(bpTree, index, childNode, entry);
+			}
+			
+			return oldVal;
+		}
+		
+		/**
+		 * Handles a child that a remove has left too small.  It is fixed
+		 * right away, unless the tree is in relaxed balance mode.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param index      Index of the child.
+		 * @param childNode  The child, which must already be writable.
+		 * @param entry      Entry with the key that was removed.
+		 */
+		protected void childTooSmall(BPTree<K,V> bpTree, int index, Node<K,V> childNode,
+				KeyVal<K,V> entry) {
+			// Inner nodes still need two children to have a sibling to
+			// fix their children with
+			int minSize = (childNode instanceof BPTree.InnerNode) ? 2 : 1;
+			
+			if (bpTree.relaxedBalance && childNode.size() >= minSize) {
+				// Leave it for rebalance to fix later
+				bpTree.queueUnderflow(childNode, entry.getKey());
+			}
+			else {
+				fixUnderflow(bpTree, index, childNode);
+			}
+		}
+		
+		/**
+		 * Fixes a child that has become too small, by moving entries over
+		 * from a sibling or merging it with a sibling.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param index      Index of the child.
+		 * @param childNode  The child, which must already be writable.
+		 */
+		protected void fixUnderflow(BPTree<K,V> bpTree, int index, Node<K,V> childNode) {
+			expandKeys(bpTree);
+			
+			int firstIndex;
+			Node<K,V> first;
+			int secondIndex;
+			Node<K,V> second;
+			
+			// If childNode is last node, merge left instead of right
+			if (index == children.size()-1) {
+				firstIndex = index-1;
+				first = writableChild(bpTree, firstIndex);
+				secondIndex = index;
+				second = childNode;
+			}
+			else {
+				firstIndex = index;
+				first = childNode;
+				secondIndex = index+1;
+				second = writableChild(bpTree, secondIndex);
+			}
+			
+			K parentKey = children.get(firstIndex).getKey();
+			
+			RedistResult<K,V> rr = first.redistribute(bpTree, second, parentKey);
+			if (rr.redistSuccess) {
+				// Redistributing moves things around, so
+				// we need to update the key in the children list.
+				children.get(firstIndex).setKey(rr.middleKey);
+				
+				// Neither node needs rebalance to fix it anymore
+				bpTree.forgetUnderflow(first);
+				bpTree.forgetUnderflow(second);
+			}
+			else {
+				// Could not redistribute, need to merge instead.
+				KeyVal<K,Node<K,V>> kv = children.get(secondIndex);
+				first.merge(bpTree, second, parentKey);
+				children.get(firstIndex).setKey(kv);
+				children.remove(secondIndex);
+				
+				// Two small nodes can still make a small node, which stays
+				// queued under the path of either one
+				if (first.tooSmall(bpTree) && first.underflowKey == null) {
+					first.underflowKey = second.underflowKey;
+					second.underflowKey = null;
+				}
+				else if (!first.tooSmall(bpTree)) {
+					bpTree.forgetUnderflow(first);
+				}
+				bpTree.forgetUnderflow(second);
+				bpTree.recycle(second);
+			}
+			
+			compressKeys(bpTree);
+		}
+		
+		/**
+		 * Fixes every node that is too small on the path down to a key,
+		 * from the bottom up.  Used to catch up on fixes that were put off
+		 * while the tree was in relaxed balance mode.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param entry  Entry with the key to follow.
+		 * @return       True if any node was fixed.
+		 */
+		protected boolean rebalancePath(BPTree<K,V> bpTree, KeyVal<K,V> entry) {
+			int index = findGreaterIndex(bpTree, entry);
+			Node<K,V> childNode = writableChild(bpTree, index);
+			boolean fixed = false;
+			
+			if (childNode instanceof BPTree.InnerNode) {
+				@SuppressWarnings("unchecked")
+				InnerNode<K,V> innerChild = (InnerNode<K,V>)childNode;
+				fixed = innerChild.rebalancePath(bpTree, entry);
+			}
+			
+			// Siblings may be too small too, so merging once is not always enough
+			while (children.size() > 1 && childNode.tooSmall(bpTree)) {
+				fixUnderflow(bpTree, index, childNode);
+				index = findGreaterIndex(bpTree, entry);
+				childNode = writableChild(bpTree, index);
+				fixed = true;
+			}
+			
+			return fixed;
+		}
+		
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public SplitResult<K,V> split(BPTree<K,V> bpTree) {
+			// New node resulting from the split
+			InnerNode<K,V> splitNode = bpTree.createInnerNode();
+			
+			expandKeys(bpTree);
+			
+			// Where to split
+			int midIndex = (int)Math.ceil(children.size() / 2.0);
+			
+			// Move the second half of the children over to the split node.
+			List<KeyVal<K,Node<K,V>>> moved = children.subList(midIndex, children.size());
+			splitNode.children.addAll(moved);
+			moved.clear();
 			
 			// Change the last key in child list into infinity
 			K midKey = children.get(children.size()-1).getKey();
 			children.get(children.size()-1).setKeyInf();
 			
-			return new SplitResult(midKey, splitNode);
+			compressKeys(bpTree);
+			splitNode.compressKeys(bpTree);
+			recountEntries();
+			splitNode.recountEntries();
+			
+			return new SplitResult<K,V>(midKey, splitNode);
 		}
 
 		/**
 		 * {@inheritDoc}
 		 */
 		@Override
-		public void merge(Node other, K parentKey) {
+		public void merge(BPTree<K,V> bpTree, Node<K,V> other, K parentKey) {
 			@SuppressWarnings("unchecked")
-			InnerNode node = (InnerNode)other;
+			InnerNode<K,V> node = (InnerNode<K,V>)other;
+			
+			expandKeys(bpTree);
+			node.expandKeys(bpTree);
 			
 			children.get(children.size()-1).setKey(parentKey);
 			children.addAll(node.children);
+			
+			compressKeys(bpTree);
+			recountEntries();
 		}
 
 		/**
 		 * {@inheritDoc}
 		 */
 		@Override
-		public RedistResult redistribute(Node other, K parentKey) {
+		public RedistResult<K,V> redistribute(BPTree<K,V> bpTree, Node<K,V> other, K parentKey) {
 			if (size() + other.size() < bpTree.innerHalfSize*2) {
 				// Too small to redistribute
-				return new RedistResult(false, null);
+				return new RedistResult<K,V>(false, null);
 			}
 			
 			@SuppressWarnings("unchecked")
-			InnerNode node = (InnerNode)other;
+			InnerNode<K,V> node = (InnerNode<K,V>)other;
+			
+			expandKeys(bpTree);
+			node.expandKeys(bpTree);
 			
-			ArrayList<KeyVal<K,Node>> tmp = children;
 			// Set infinite key to parent key
-			tmp.get(tmp.size()-1).setKey(parentKey);
-			tmp.addAll(node.children);
+			children.get(children.size()-1).setKey(parentKey);
 			
-			int midIndex = tmp.size() / 2;
+			int midIndex = (size() + node.size()) / 2;
 			
-			children = new ArrayList<KeyVal<K,Node>>(tmp.subList(0, midIndex));
-			node.children = new ArrayList<KeyVal<K,Node>>(tmp.subList(midIndex, tmp.size()));
+			// Move children across the boundary, so neither list is replaced
+			if (size() > midIndex) {
+				List<KeyVal<K,Node<K,V>>> moved = children.subList(midIndex, size());
+				node.children.addAll(0, moved);
+				moved.clear();
+			}
+			else {
+				List<KeyVal<K,Node<K,V>>> moved = node.children.subList(0, midIndex - size());
+				children.addAll(moved);
+				moved.clear();
+			}
 			
 			// Set last key to infinity
 			K midKey = children.get(children.size()-1).getKey();
 			children.get(children.size()-1).setKeyInf();
 			
-			return new RedistResult(true, midKey);
+			compressKeys(bpTree);
+			node.compressKeys(bpTree);
+			recountEntries();
+			node.recountEntries();
+			
+			return new RedistResult<K,V>(true, midKey);
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public K shiftFrom(BPTree<K,V> bpTree, Node<K,V> other, K parentKey, int count) {
+			@SuppressWarnings("unchecked")
+			InnerNode<K,V> node = (InnerNode<K,V>)other;
+			
+			expandKeys(bpTree);
+			node.expandKeys(bpTree);
+			
+			// Set infinite key to parent key
+			children.get(children.size()-1).setKey(parentKey);
+			
+			List<KeyVal<K,Node<K,V>>> moved = node.children.subList(0, count);
+			children.addAll(moved);
+			moved.clear();
+			
+			K midKey = null;
+			if (!node.isEmpty()) {
+				// Set last key to infinity
+				midKey = children.get(children.size()-1).getKey();
+				children.get(children.size()-1).setKeyInf();
+				node.compressKeys(bpTree);
+			}
+			
+			compressKeys(bpTree);
+			recountEntries();
+			node.recountEntries();
+			
+			return midKey;
+		}
+		
+		/**
+		 * Packs children, starting from one of them, by moving elements from
+		 * each child's next sibling into it until it holds a target number
+		 * of elements.  Children that are emptied are removed.  If the last
+		 * child packed is left too small it is fixed with its neighbor.
+		 * 
+		 * @param bpTree  Tree the node is in.
+		 * @param from      Index of the first child to pack.
+		 * @param perChild  How many elements to pack into each child.
+		 * @param maxWork   Most children to finish packing before stopping.
+		 * @return          First key of the child packing stopped at, or null
+		 *                  if every child from the first was packed.
+		 */
+		protected K packChildren(BPTree<K,V> bpTree, int from, int perChild, int maxWork) {
+			expandKeys(bpTree);
+			
+			int index = from;
+			int work = 0;
+			while (index < children.size()-1 && work < maxWork) {
+				Node<K,V> left = writableChild(bpTree, index);
+				if (left.size() >= perChild) {
+					index++;
+					work++;
+					continue;
+				}
+				
+				Node<K,V> right = writableChild(bpTree, index+1);
+				int count = Math.min(perChild - left.size(), right.size());
+				K midKey = left.shiftFrom(bpTree, right, children.get(index).getKey(), count);
+				
+				if (!left.tooSmall(bpTree))
+					bpTree.forgetUnderflow(left);
+				
+				if (midKey == null) {
+					// Right sibling was emptied, so take its place
+					children.get(index).setKey(children.get(index+1));
+					children.remove(index+1);
+					bpTree.forgetUnderflow(right);
+					bpTree.recycle(right);
+				}
+				else {
+					// The path the right sibling was queued under may have
+					// moved left with the entries, so queue it again
+					if (right.underflowKey != null) {
+						bpTree.forgetUnderflow(right);
+						if (right.tooSmall(bpTree))
+							bpTree.queueUnderflow(right, midKey);
+					}
+					children.get(index).setKey(midKey);
+					index++;
+					work++;
+				}
+			}
+			
+			K resumeKey = null;
+			if (index < children.size()-1)
+				resumeKey = child(bpTree, index).getFirstLeaf(bpTree).entries.get(0).getKey();
+			
+			compressKeys(bpTree);
+			
+			if (children.size() > 1 && child(bpTree, index).tooSmall(bpTree))
+				fixUnderflow(bpTree, index, writableChild(bpTree, index));
+			
+			return resumeKey;
 		}
 		
 		/**
@@ -866,24 +2336,24 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 		 * @param left  First child node
 		 * @param right  Second child node.
 		 */
-		public void makeRoot(K key, Node left, Node right) {
-			children.add(new KeyVal<K,Node>(key, left));
-			children.add(new KeyVal<K,Node>(right));
+		public void makeRoot(K key, Node<K,V> left, Node<K,V> right) {
+			children.add(new KeyVal<K,Node<K,V>>(key, left));
+			children.add(new KeyVal<K,Node<K,V>>(right));
 		}
 
 		/**
 		 * {@inheritDoc}
 		 */
 		@Override
-		public void printFullTree(int depth) {
+		public void printFullTree(BPTree<K,V> bpTree, int depth) {
 			String tab = "";
 			if (depth != 0)
 				tab = String.format("%1$" + (depth*3) + "s", "");
 			
-			for (KeyVal<K,Node> child : children) {
-				System.out.println(tab + child.getKey());
-				Node childNode = child.getValue();
-				childNode.printFullTree(depth + 1);
+			for (int i=0; i<size(); i++) {
+				System.out.println(tab + keyAt(bpTree, i));
+				Node<K,V> childNode = child(bpTree, i);
+				childNode.printFullTree(bpTree, depth + 1);
 			}
 		}
 
@@ -891,92 +2361,242 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 		 * {@inheritDoc}
 		 */
 		@Override
-		public int countNodes() {
+		public int countNodes(BPTree<K,V> bpTree) {
 			int sum = 0;
 			for (int i=0; i<size(); i++) {
-				sum += children.get(i).getValue().countNodes();
+				sum += child(bpTree, i).countNodes(bpTree);
 			}
 			return sum + 1;
 		}
-
+		
 		/**
 		 * {@inheritDoc}
 		 */
 		@Override
-		public BPTree<K, V>.LeafNode getLeaf(K key) {
-			KeyVal<K,V> entry = new KeyVal<K,V>(key, null);
-			int index = findGreaterIndex(entry);
-			Node childNode = children.get(index).getValue(); 
-			return childNode.getLeaf(key);
+		public int countEntries(BPTree<K,V> bpTree) {
+			if (entryTotal < 0) {
+				if (fileOffset >= 0)
+					bpTree.loadNode(this);
+				
+				int sum = 0;
+				for (int i=0; i<size(); i++) {
+					sum += childStub(i).countEntries(bpTree);
+				}
+				entryTotal = sum;
+			}
+			return entryTotal;
 		}
-
+		
 		/**
-		 * {@inheritDoc}
+		 * Works out the count of entries in the subtree from the counts the
+		 * children already have, after children were moved in or out.  If a
+		 * child has not been counted the count is left to be worked out when
+		 * it is next needed.
 		 */
-		@Override
-		public BPTree<K, V>.LeafNode getFirstLeaf() {
-			return children.get(0).getValue().getFirstLeaf();
+		@SuppressWarnings("unchecked")
+		protected void recountEntries() {
+			int sum = 0;
+			for (KeyVal<K,Node<K,V>> child : children) {
+				Node<K,V> childNode = child.getValue();
+				int count = childNode.entryTotal;
+				if (childNode instanceof BPTree.LeafNode && childNode.fileOffset < 0)
+					count = ((LeafNode<K,V>)childNode).entries.size();
+				
+				if (count < 0) {
+					entryTotal = -1;
+					return;
+				}
+				sum += count;
+			}
+			entryTotal = sum;
 		}
-
-
+		
 		/**
 		 * {@inheritDoc}
 		 */
 		@Override
-		public void save(int depth, BufferedWriter bufferedWriter,
-				StringParseInterface keyParser, StringParseInterface valueParser)
-				throws IOException {
-			
-			StringBuilder sb = new StringBuilder();
+		public int removeRange(BPTree<K,V> bpTree, KeyVal<K,V> lo, KeyVal<K,V> hi) {
+			int first = (lo == null) ? -1 : findGreaterIndex(bpTree, lo);
+			int last = (hi == null) ? size() : findGreaterIndex(bpTree, hi);
 			
-			for (int i=0; i<depth; i++) {
-				sb.append(" ");
+			if (first == last) {
+				return writableChild(bpTree, first).removeRange(bpTree, lo, hi);
 			}
 			
-			String pad = sb.toString();
-			
-			sb.append("I,");
-			sb.append(size());
-			sb.append("\n");
-			
-			bufferedWriter.write(sb.toString());
+			// Trim the children the range starts and ends in
+			int removed = 0;
+			if (first >= 0)
+				removed += writableChild(bpTree, first).removeRange(bpTree, lo, null);
+			if (last < size())
+				removed += writableChild(bpTree, last).removeRange(bpTree, null, hi);
 			
-			for (KeyVal<K,Node> child : children) {
-				sb.setLength(0);
-				
-				sb.append(pad);
-				
-				if (child.hasInfKey())
-					sb.append("INF");
-				else
-					sb.append(keyParser.makeString(child.getKey()));
-				
-				sb.append("\n");
-				
-				bufferedWriter.write(sb.toString());
+			// Drop the children in between
+			if (last - first > 1) {
+				for (int i=first+1; i<last; i++) {
+					removed += childStub(i).countEntries(bpTree);
+				}
 				
-				child.getValue().save(depth+1, bufferedWriter, keyParser, valueParser);
+				expandKeys(bpTree);
+				children.subList(first+1, last).clear();
+				if (hi == null) {
+					// The last child was dropped
+					children.get(first).setKeyInf();
+				}
+				compressKeys(bpTree);
+			}
+			
+			// Link up the leaves on either side of the gap
+			if (first >= 0 && first+1 < size()) {
+				LeafNode<K,V> left = child(bpTree, first).getLastLeaf(bpTree);
+				LeafNode<K,V> right = child(bpTree, first+1).getFirstLeaf(bpTree);
+				left.next = right;
+				left.nextUnlinked = false;
+				right.prev = left;
 			}
 			
+			return removed;
 		}
-
+		
 		/**
 		 * {@inheritDoc}
 		 */
-		@SuppressWarnings("unchecked")
 		@Override
-		public LeafNode load(int size, LeafNode prevLeaf,
-				BufferedReader bufferedReader, StringParseInterface keyParser,
-				StringParseInterface valueParser) throws IOException {
+		public Node<K,V> splitOff(BPTree<K,V> bpTree, KeyVal<K,V> entry, BPTree<K,V> rightTree) {
+			int index = findGreaterIndex(bpTree, entry);
+			Node<K,V> childRight = writableChild(bpTree, index).splitOff(bpTree, entry, rightTree);
 			
-			LeafNode leaf = prevLeaf;
-			String keyStr;
-			String line;
-			int separator;
-			String nodeType;
-			int nodeSize;
-			K k;
-			Node node;
+			expandKeys(bpTree);
+			
+			// The right part of the split child keeps the child's key
+			InnerNode<K,V> right = rightTree.createInnerNode();
+			KeyVal<K,Node<K,V>> kv = new KeyVal<K,Node<K,V>>(childRight);
+			kv.setKey(children.get(index));
+			right.children.add(kv);
+			
+			// Children to the right of the path move over as they are
+			List<KeyVal<K,Node<K,V>>> moved = children.subList(index+1, children.size());
+			right.children.addAll(moved);
+			moved.clear();
+			
+			children.get(index).setKeyInf();
+			
+			compressKeys(bpTree);
+			right.compressKeys(bpTree);
+			
+			return right;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void collectStats(BPTree<K,V> bpTree, TreeStats stats, int depth) {
+			long bytes = TreeStats.align(TreeStats.OBJECT_HEADER
+					+ 4*TreeStats.REFERENCE + 4 + 8);
+			bytes += bpTree.listBytes(bpTree.innerSize);
+			
+			if (hash != null) {
+				bytes += TreeStats.arrayBytes(HASH_BYTES, 1);
+			}
+			
+			for (KeyVal<K,Node<K,V>> child : children) {
+				bytes += child.estimatedBytes();
+			}
+			
+			stats.addInner(depth, size(), bytes);
+			
+			for (int i=0; i<size(); i++) {
+				child(bpTree, i).collectStats(bpTree, stats, depth+1);
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public LeafNode<K,V> getLeaf(BPTree<K,V> bpTree, K key) {
+			KeyVal<K,V> entry = bpTree.makeEntry(key, null);
+			int index = findGreaterIndex(bpTree, entry);
+			Node<K,V> childNode = child(bpTree, index);
+			return childNode.getLeaf(bpTree, key);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public LeafNode<K,V> getFirstLeaf(BPTree<K,V> bpTree) {
+			return child(bpTree, 0).getFirstLeaf(bpTree);
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public LeafNode<K,V> getLastLeaf(BPTree<K,V> bpTree) {
+			return child(bpTree, size()-1).getLastLeaf(bpTree);
+		}
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void save(BPTree<K,V> bpTree, int depth, BufferedWriter bufferedWriter,
+				StringParseInterface keyParser, StringParseInterface valueParser)
+				throws IOException {
+			
+			StringBuilder sb = new StringBuilder();
+			
+			for (int i=0; i<depth; i++) {
+				sb.append(" ");
+			}
+			
+			String pad = sb.toString();
+			
+			sb.append("I,");
+			sb.append(size());
+			sb.append("\n");
+			
+			bufferedWriter.write(sb.toString());
+			
+			for (int i=0; i<size(); i++) {
+				KeyVal<K,Node<K,V>> child = children.get(i);
+				sb.setLength(0);
+				
+				sb.append(pad);
+				
+				if (child.hasInfKey())
+					sb.append("INF");
+				else
+					sb.append(keyParser.makeString(keyAt(bpTree, i)));
+				
+				sb.append("\n");
+				
+				bufferedWriter.write(sb.toString());
+				
+				child.getValue().save(bpTree, depth+1, bufferedWriter, keyParser, valueParser);
+			}
+			
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@SuppressWarnings("unchecked")
+		@Override
+		public LeafNode<K,V> load(BPTree<K,V> bpTree, int size, LeafNode<K,V> prevLeaf,
+				BufferedReader bufferedReader, StringParseInterface keyParser,
+				StringParseInterface valueParser) throws IOException {
+			
+			LeafNode<K,V> leaf = prevLeaf;
+			String keyStr;
+			String line;
+			int separator;
+			String nodeType;
+			int nodeSize;
+			K k;
+			Node<K,V> node;
 			
 			for (int i=0; i<size; i++) {
 				keyStr = bufferedReader.readLine().trim();
@@ -987,23 +2607,149 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 				nodeSize = Integer.parseInt(line.substring(separator+1, line.length()));
 				
 				if (nodeType.equals("I")) {
-					node = new InnerNode(bpTree);
+					node = bpTree.createInnerNode();
 				}
 				else {
-					node = new LeafNode(bpTree);
+					node = bpTree.createLeafNode();
 				}
 				
 				if (i != size-1) {
 					k = (K)keyParser.parseString(keyStr);
-					children.add(new KeyVal<K,Node>(k,node));
+					children.add(new KeyVal<K,Node<K,V>>(k,node));
+				}
+				else {
+					children.add(new KeyVal<K,Node<K,V>>(node));
+				}
+				
+				leaf = node.load(bpTree, nodeSize, leaf, bufferedReader, keyParser, valueParser);
+			}
+			
+			compressKeys(bpTree);
+			
+			return leaf;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public long saveBinary(BPTree<K,V> bpTree, DataOutputStream out,
+				CountingOutputStream position, Codec<K> keyCodec,
+				Codec<V> valueCodec) throws IOException {
+			
+			long[] offsets = new long[size()];
+			for (int i=0; i<size(); i++) {
+				offsets[i] = child(bpTree, i).saveBinary(bpTree, out, position, keyCodec,
+						valueCodec);
+			}
+			
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream data = new DataOutputStream(bytes);
+			
+			for (int i=0; i<size(); i++) {
+				// The last child always has the infinite key, so it is skipped
+				if (!children.get(i).hasInfKey())
+					keyCodec.encode(keyAt(bpTree, i), data);
+				
+				Node<K,V> childNode = child(bpTree, i);
+				BloomFilter filter = (childNode instanceof BPTree.LeafNode)
+						? ((BPTree.LeafNode<?,?>)childNode).filter : null;
+				
+				if (childNode instanceof BPTree.InnerNode) {
+					data.writeByte('I');
+				}
+				else if (filter != null) {
+					data.writeByte('F');
+				}
+				else {
+					data.writeByte('L');
+				}
+				
+				// The count and filter go with the pointer, so the child's
+				// entries can be counted, and a lookup can skip the leaf,
+				// without reading it
+				data.writeLong(offsets[i]);
+				data.writeInt(childNode.countEntries(bpTree));
+				if (filter != null)
+					filter.save(data);
+			}
+			
+			return writeRecord(out, position, 'I', bytes);
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * 
+		 * Children are left as stubs until they are needed.
+		 */
+		@Override
+		public void loadRecord(BPTree<K,V> bpTree, ByteBuffer data, int size, Codec<K> keyCodec,
+				Codec<V> valueCodec) {
+			for (int i=0; i<size; i++) {
+				K k = (i != size-1) ? keyCodec.decode(data) : null;
+				
+				Node<K,V> node;
+				byte type = data.get();
+				if (type == 'I') {
+					node = bpTree.createInnerNode();
+				}
+				else {
+					node = bpTree.createLeafNode();
+				}
+				node.fileOffset = data.getLong();
+				if (bpTree.nodeFileVersion >= 4)
+					node.entryTotal = data.getInt();
+				if (type == 'F') {
+					((BPTree.LeafNode<?,?>)node).filter = BloomFilter.load(data);
+				}
+				
+				if (i != size-1) {
+					children.add(new KeyVal<K,Node<K,V>>(k,node));
+				}
+				else {
+					children.add(new KeyVal<K,Node<K,V>>(node));
+				}
+			}
+			
+			compressKeys(bpTree);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public LeafNode<K,V> loadBinary(BPTree<K,V> bpTree, int size, LeafNode<K,V> prevLeaf,
+				DataInput in, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+			
+			LeafNode<K,V> leaf = prevLeaf;
+			K k;
+			Node<K,V> node;
+			
+			for (int i=0; i<size; i++) {
+				k = (i != size-1) ? keyCodec.decode(in) : null;
+				
+				byte nodeType = in.readByte();
+				int nodeSize = in.readInt();
+				
+				if (nodeType == 'I') {
+					node = bpTree.createInnerNode();
+				}
+				else {
+					node = bpTree.createLeafNode();
+				}
+				
+				if (i != size-1) {
+					children.add(new KeyVal<K,Node<K,V>>(k,node));
 				}
 				else {
-					children.add(new KeyVal<K,Node>(node));
+					children.add(new KeyVal<K,Node<K,V>>(node));
 				}
 				
-				leaf = node.load(nodeSize, leaf, bufferedReader, keyParser, valueParser);
+				leaf = node.loadBinary(bpTree, nodeSize, leaf, in, keyCodec, valueCodec);
 			}
 			
+			compressKeys(bpTree);
+			
 			return leaf;
 		}
 	}
@@ -1011,6 +2757,11 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 	
 	// --- BPTree Variables ---------------------------------------------------
 	
+	private static final int BINARY_MAGIC = 0x42505472;  // "BPTr"
+	private static final int BINARY_VERSION = 4;
+	private static final int MAX_FREE_NODES = 64;  // Longest free list
+	private static final int HASH_BYTES = 16;  // Length of node content hashes
+	
 	protected int innerSize;      // Maximum size of inner nodes
 	protected int leafSize;       // Maximum size of leaf nodes
 	protected int innerHalfSize;  // Minimum size of inner nodes
@@ -1018,7 +2769,40 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 	
 	protected int entryCount = 0; // Number of entries in the tree
 	
-	protected Node root;  // Root node
+	protected Node<K,V> root;  // Root node
+	
+	protected OrderedCodec<K> keyEncoding = null;  // Optional byte comparison
+	protected KeySeparator<K> keySeparator = null; // Optional short separators
+	protected LeafFormat<K,V> leafFormat = null;   // Optional leaf storage
+	
+	// Copy-on-write state used while snapshots are saved in the background
+	protected int cowEpoch = 0;
+	protected AtomicInteger activeSnapshots = new AtomicInteger();
+	private ArrayList<LeafNode<K,V>> freeLeaves = new ArrayList<LeafNode<K,V>>();
+	private ArrayList<InnerNode<K,V>> freeInnerNodes = new ArrayList<InnerNode<K,V>>();
+	private NodeFile nodeFile = null;  // File stubs are read from, if any
+	private Codec<K> nodeKeyCodec;
+	private Codec<V> nodeValueCodec;
+	private int nodeFileVersion;  // Binary format version of the node file
+	private K compactCursor = null;  // Where the next compaction step starts
+	private boolean compacting = false;  // Is a compaction pass under way
+	protected boolean relaxedBalance = false;  // Put off fixing small nodes
+	protected TreeMap<K,Integer> underflowKeys = new TreeMap<K,Integer>();  // Paths to fix, and how many nodes queued each
+	protected ChangeFeed<K,V> changeFeed = null;  // Changes made, if recorded
+	protected int bloomBitsPerKey = 0;  // Bloom filter size for leaves, or 0
+	protected Codec<K> hashKeyCodec = null;    // Writes keys for content hashes
+	protected Codec<V> hashValueCodec = null;  // Writes values for content hashes
+	private MessageDigest hashDigest = null;   // Works out content hashes
+	protected HashMap<K,LeafSlot> leafIndex = null;  // Leaf of each key, if on
+	private int leafIndexCapacity = 0;   // Most keys kept in leafIndex
+	private long indexHits = 0;          // Lookups answered by leafIndex
+	private long indexMisses = 0;        // Lookups that went down the tree
+	private long indexRelocations = 0;   // Keys moved to another leaf
+	private long indexInvalidations = 0; // Times leafIndex was emptied
+	protected PiecewiseLinearModel routingModel = null;  // Learned routing
+	private Object[] routingKeys;        // Separator before each leaf but the first
+	private ArrayList<LeafNode<K,V>> routingLeaves;  // Leaves in order
+	private boolean routingCurrent = false;     // No leaf has changed since
 
 	/**
 	 * This constructor should only be used if you are intending on immediately
@@ -1062,15 +2846,91 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 	 */
 	public void save(String filename, StringParseInterface keyParser,
 			StringParseInterface valueParser) throws IOException {
+		applyBufferedWrites();
+		loadAllNodes();
+		saveNodes(filename, innerSize, leafSize, root, keyParser, valueParser);
+	}
+	
+	/**
+	 * Save the B+ Tree to a text file on a background thread.  The tree is
+	 * saved as it is at the moment this method is called, and it can keep
+	 * being modified while the save is running.
+	 * 
+	 * Starting the save only takes a snapshot of the root.  Nodes that
+	 * belong to the snapshot are never modified while it is being saved --
+	 * any node that needs to change is copied first, along with the path
+	 * leading to it from the root.
+	 * 
+	 * The tree itself is still not thread safe.  All modifications must be
+	 * made from one thread, like before.
+	 * 
+	 * @see #save
+	 * 
+	 * @param filename      Name of file to save to.
+	 * @param keyParser     Object to handle converting keys to strings.
+	 * @param valueParser   Object to handle converting values to strings
+	 * @return  Future that completes once the file has been written.
+	 */
+	public CompletableFuture<Void> saveAsync(final String filename,
+			final StringParseInterface keyParser,
+			final StringParseInterface valueParser) {
+		
+		applyBufferedWrites();
+		loadAllNodes();
+		
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		final Node<K,V> snapshot = root;
+		final int snapshotInnerSize = innerSize;
+		final int snapshotLeafSize = leafSize;
+		
+		// Every node that exists right now belongs to the snapshot
+		cowEpoch++;
+		activeSnapshots.incrementAndGet();
+		
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					saveNodes(filename, snapshotInnerSize, snapshotLeafSize,
+							snapshot, keyParser, valueParser);
+					future.complete(null);
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				} finally {
+					activeSnapshots.decrementAndGet();
+				}
+			}
+		}, "BPTree save");
+		thread.start();
+		
+		return future;
+	}
+	
+	/**
+	 * Writes a tree starting at the given root to a text file.
+	 * 
+	 * @param filename      Name of file to save to.
+	 * @param inner         Maximum size of inner nodes
+	 * @param leaf          Maximum size of leaf nodes
+	 * @param top           Root node of the tree to write.
+	 * @param keyParser     Object to handle converting keys to strings.
+	 * @param valueParser   Object to handle converting values to strings
+	 * @throws IOException  If there is a problem writing the file.
+	 */
+	private void saveNodes(String filename, int inner, int leaf, Node<K,V> top,
+			StringParseInterface keyParser, StringParseInterface valueParser)
+			throws IOException {
 		File file = new File(filename);
 		FileWriter fileWriter = new FileWriter(file.getAbsoluteFile());
 		BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
 		
-		bufferedWriter.write(innerSize + "\n");
-		bufferedWriter.write(leafSize + "\n");
-		root.save(0, bufferedWriter, keyParser,	valueParser);
-		
-		bufferedWriter.close();
+		try {
+			bufferedWriter.write(inner + "\n");
+			bufferedWriter.write(leaf + "\n");
+			top.save(this, 0, bufferedWriter, keyParser, valueParser);
+		} finally {
+			bufferedWriter.close();
+		}
 	}
 	
 	/**
@@ -1086,6 +2946,8 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 			String filename, StringParseInterface keyParser,
 			StringParseInterface valueParser) throws IOException {
 		
+		startOver();
+		
 		try {
 			File file = new File(filename);
 			FileReader fileReader = new FileReader(file.getAbsoluteFile());
@@ -1093,6 +2955,7 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 			
 			innerSize = Integer.parseInt(bufferedReader.readLine());
 			leafSize = Integer.parseInt(bufferedReader.readLine());
+			entryCount = 0;
 			
 			innerHalfSize = (int)Math.ceil(innerSize / 2.0);
 			leafHalfSize = (int)Math.ceil(leafSize / 2.0);
@@ -1103,13 +2966,14 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 			int nodeSize = Integer.parseInt(line.substring(separator+1, line.length()));
 			
 			if (nodeType.equals("I")) {
-				root = new InnerNode(this);
+				root = createInnerNode();
 			}
 			else {
-				root = new LeafNode(this);
+				root = createLeafNode();
 			}
 			
-			root.load(nodeSize, null, bufferedReader, keyParser, valueParser);
+			root.load(this, nodeSize, null, bufferedReader, keyParser, valueParser);
+			root.countEntries(this);
 			
 			bufferedReader.close();
 		} catch (NumberFormatException e) {
@@ -1118,286 +2982,2237 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 	}
 	
 	/**
-	 * Gets the maximum size that the inner nodes are allowed to grow to.
+	 * Save the B+ Tree to a binary file.  This is the compact alternative to
+	 * the text format -- keys and values are written by a Codec, so they
+	 * never have to be converted to and from Strings.
 	 * 
-	 * @return  Inner node's maximum size.
+	 * Nodes are written children first, and every inner node stores where
+	 * each of its children starts in the file and how many entries it
+	 * holds.  The file ends with the position of the root and the number of
+	 * entries, so loadBinaryLazy can read just the nodes it needs.
+	 * 
+	 * @param filename      Name of file to save to.
+	 * @param keyCodec      Object to handle writing keys.
+	 * @param valueCodec    Object to handle writing values.
+	 * @throws IOException  If there is a problem writing the file.
 	 */
-	public int getInnerSize() {
-		return innerSize;
+	public void saveBinary(String filename, Codec<K> keyCodec,
+			Codec<V> valueCodec) throws IOException {
+		applyBufferedWrites();
+		loadAllNodes();
+		
+		File file = new File(filename);
+		CountingOutputStream position = new CountingOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file.getAbsoluteFile())));
+		DataOutputStream out = new DataOutputStream(position);
+		
+		try {
+			out.writeInt(BINARY_MAGIC);
+			out.writeInt(BINARY_VERSION);
+			out.writeInt(innerSize);
+			out.writeInt(leafSize);
+			out.writeInt(bloomBitsPerKey);
+			
+			long rootOffset = root.saveBinary(this, out, position, keyCodec, valueCodec);
+			out.writeLong(rootOffset);
+			out.writeLong(entryCount);
+		} finally {
+			out.close();
+		}
 	}
 	
 	/**
-	 * Gets the maximum size that the leaf nodes are allowed to grow to.
+	 * Load the B+ Tree from a binary file.  See saveBinary's doc string.
+	 * Files written in earlier versions of the format can still be read.
+	 * 
+	 * @param filename      File to load from.
+	 * @param keyCodec      Object to handle reading keys.
+	 * @param valueCodec    Object to handle reading values.
+	 * @throws IOException  If there is a problem with loading file
+	 */
+	public void loadBinary(String filename, Codec<K> keyCodec,
+			Codec<V> valueCodec) throws IOException {
+		File file = new File(filename);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file.getAbsoluteFile())));
+		
+		try {
+			if (in.readInt() != BINARY_MAGIC) {
+				throw new IOException("Not a B+ Tree binary file: " + filename);
+			}
+			
+			int version = in.readInt();
+			if (version >= 2 && version <= BINARY_VERSION) {
+				in.close();
+				loadBinaryLazy(filename, keyCodec, valueCodec);
+				loadAllNodes();
+				return;
+			}
+			if (version != 1) {
+				throw new IOException("Unknown B+ Tree binary version: " + version);
+			}
+			
+			startOver();
+			
+			innerSize = in.readInt();
+			leafSize = in.readInt();
+			
+			innerHalfSize = (int)Math.ceil(innerSize / 2.0);
+			leafHalfSize = (int)Math.ceil(leafSize / 2.0);
+			entryCount = 0;
+			
+			byte nodeType = in.readByte();
+			int nodeSize = in.readInt();
+			
+			if (nodeType == 'I') {
+				root = createInnerNode();
+			}
+			else {
+				root = createLeafNode();
+			}
+			
+			root.loadBinary(this, nodeSize, null, in, keyCodec, valueCodec);
+			root.countEntries(this);
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Open a B+ Tree saved by saveBinary without reading all of it.  Only
+	 * the root is read right away.  Every other node starts out as a stub
+	 * that remembers where it is in the file, and is read the first time it
+	 * is needed.  A leaf finds the leaf after it the first time it is needed
+	 * as well.  Opening a large tree is quick, and memory only grows with the
+	 * part of the tree that is actually used.
+	 * 
+	 * The file stays open until loadAllNodes is called or the tree is
+	 * cleared or loaded again, and it must not be changed while it is open.
+	 * 
+	 * @param filename      File to load from.
+	 * @param keyCodec      Object to handle reading keys.
+	 * @param valueCodec    Object to handle reading values.
+	 * @throws IOException  If there is a problem with opening the file
+	 */
+	public void loadBinaryLazy(String filename, Codec<K> keyCodec,
+			Codec<V> valueCodec) throws IOException {
+		startOver();
+		
+		FileChannel channel = FileChannel.open(
+				Paths.get(filename).toAbsolutePath(), StandardOpenOption.READ);
+		
+		try {
+			ByteBuffer header = readFully(channel, 0, 20);
+			int magic = header.getInt();
+			int version = header.getInt();
+			if (magic != BINARY_MAGIC || version < 2 || version > BINARY_VERSION) {
+				throw new IOException("Not a B+ Tree binary file with node positions: "
+						+ filename);
+			}
+			
+			innerSize = header.getInt();
+			leafSize = header.getInt();
+			
+			// Leaves saved with filters keep them, and the rest get them
+			// as they are read if the tree has filters turned on
+			if (version >= 3) {
+				int bitsPerKey = header.getInt();
+				if (bitsPerKey > 0)
+					bloomBitsPerKey = bitsPerKey;
+			}
+			
+			innerHalfSize = (int)Math.ceil(innerSize / 2.0);
+			leafHalfSize = (int)Math.ceil(leafSize / 2.0);
+			
+			ByteBuffer trailer = readFully(channel, channel.size() - 16, 16);
+			long rootOffset = trailer.getLong();
+			entryCount = (int)trailer.getLong();
+			
+			Node<K,V> node;
+			if (readFully(channel, rootOffset, 1).get() == 'I') {
+				node = createInnerNode();
+			}
+			else {
+				node = createLeafNode();
+			}
+			node.fileOffset = rootOffset;
+			node.entryTotal = entryCount;
+			
+			nodeFile = new NodeFile(channel);
+			nodeKeyCodec = keyCodec;
+			nodeValueCodec = valueCodec;
+			nodeFileVersion = version;
+			
+			loadNode(node);
+			root = node;
+		} catch (IOException e) {
+			channel.close();
+			nodeFile = null;
+			throw e;
+		}
+	}
+	
+	/**
+	 * Reads a stub node from the tree's file.
+	 * 
+	 * @param node  Stub to fill in.
+	 * @throws UncheckedIOException  If the node could not be read.
+	 */
+	protected void loadNode(Node<K,V> node) {
+		try {
+			ByteBuffer header = readFully(nodeFile.channel, node.fileOffset, 9);
+			header.get();
+			int size = header.getInt();
+			int length = header.getInt();
+			
+			ByteBuffer data = readFully(nodeFile.channel, node.fileOffset + 9, length);
+			node.fileOffset = -1;
+			node.loadRecord(this, data, size, nodeKeyCodec, nodeValueCodec);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Reads bytes from a file.
+	 * 
+	 * @param channel   File to read from.
+	 * @param position  Where to start reading.
+	 * @param length    Number of bytes to read.
+	 * @return  Buffer holding the bytes, ready to be read.
+	 * @throws IOException  If the bytes could not be read.
+	 */
+	private static ByteBuffer readFully(FileChannel channel, long position,
+			int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException();
+		}
+		
+		buffer.flip();
+		return buffer;
+	}
+	
+	/**
+	 * Reads every node that is still a stub and links all of the leaves, so
+	 * the tree's file can be closed.  Does nothing if the tree was not
+	 * opened with loadBinaryLazy.
+	 */
+	public void loadAllNodes() {
+		if (nodeFile == null)
+			return;
+		
+		loadSubtree(root);
+		
+		LeafNode<K,V> current = root.getFirstLeaf(this);
+		while (current != null) {
+			current = current.getNext(this);
+		}
+		
+		closeNodeFile();
+	}
+	
+	/**
+	 * Reads every stub below a node.
+	 * 
+	 * @param node  Node that has already been read.
+	 */
+	@SuppressWarnings("unchecked")
+	private void loadSubtree(Node<K,V> node) {
+		if (node instanceof BPTree.InnerNode) {
+			InnerNode<K,V> inner = (InnerNode<K,V>)node;
+			for (int i=0; i<inner.size(); i++) {
+				loadSubtree(inner.child(this, i));
+			}
+		}
+	}
+	
+	/**
+	 * Lets go of the file that stubs are read from, if there is one.  The
+	 * file is closed unless a tree split off from this one still uses it.
+	 */
+	private void closeNodeFile() {
+		if (nodeFile == null)
+			return;
+		
+		nodeFile.users--;
+		if (nodeFile.users == 0) {
+			try {
+				nodeFile.channel.close();
+			} catch (IOException e) {
+				// Nothing more can be done with a file that will not close
+			}
+		}
+		nodeFile = null;
+	}
+	
+	/**
+	 * Finds the leaf that comes after the leaf holding a key.
+	 * 
+	 * @param key  Last key of a leaf.
+	 * @return     The next leaf, or null if it is the last leaf.
+	 */
+	@SuppressWarnings("unchecked")
+	protected LeafNode<K,V> findNextLeaf(K key) {
+		KeyVal<K,V> entry = makeEntry(key, null);
+		InnerNode<K,V> parent = null;
+		int nextIndex = 0;
+		Node<K,V> node = root;
+		
+		// Remember the lowest inner node that has a child after the path
+		while (node instanceof BPTree.InnerNode) {
+			InnerNode<K,V> inner = (InnerNode<K,V>)node;
+			int index = inner.findGreaterIndex(this, entry);
+			
+			if (index < inner.size()-1) {
+				parent = inner;
+				nextIndex = index+1;
+			}
+			
+			node = inner.child(this, index);
+		}
+		
+		if (parent == null)
+			return null;
+		
+		return parent.child(this, nextIndex).getFirstLeaf(this);
+	}
+	
+	/**
+	 * Makes keys be compared by their order preserving binary encoding
+	 * instead of by compareTo.  New entries keep the encoded bytes of their
+	 * key, and the bytes of keys in inner nodes are made the first time they
+	 * are compared, so searching compares raw bytes without touching the
+	 * key objects.
+	 * 
+	 * This can only be changed while the tree is empty, since stored keys
+	 * keep the bytes of the encoding they were made with.  Passing null
+	 * goes back to using compareTo.
+	 * 
+	 * @param keyEncoding  Codec used to encode keys, or null.
+	 * @throws IllegalStateException  If the tree is not empty.
+	 */
+	public void setKeyEncoding(OrderedCodec<K> keyEncoding) {
+		applyBufferedWrites();
+		if (entryCount != 0) {
+			throw new IllegalStateException("Key encoding can only be set on an empty tree");
+		}
+		this.keyEncoding = keyEncoding;
+		
+		// Inner keys left behind by removes can still hold old bytes
+		if (root instanceof BPTree.InnerNode) {
+			clear();
+		}
+	}
+	
+	/**
+	 * Makes inner nodes use the shortest keys that separate their children,
+	 * and store the prefix shared by all of their keys only once.  This
+	 * saves a lot of memory when keys are long and share prefixes, like
+	 * paths or URLs.
+	 * 
+	 * This can only be changed while the tree is empty.
+	 * 
+	 * @param keySeparator  Makes separators and prefixes, or null for none.
+	 * @throws IllegalStateException  If the tree is not empty.
+	 */
+	public void setKeySeparator(KeySeparator<K> keySeparator) {
+		if (entryCount != 0) {
+			throw new IllegalStateException("Key separator can only be set on an empty tree");
+		}
+		this.keySeparator = keySeparator;
+	}
+	
+	/**
+	 * Sets how leaf nodes store their entries, for example front coded
+	 * Strings.  By default entries are kept in an ArrayList.
+	 * 
+	 * This can only be changed while the tree is empty.
+	 * 
+	 * @param leafFormat  Format of leaf entries, or null for the default.
+	 * @throws IllegalStateException  If the tree is not empty.
+	 */
+	public void setLeafFormat(LeafFormat<K,V> leafFormat) {
+		if (entryCount != 0) {
+			throw new IllegalStateException("Leaf format can only be set on an empty tree");
+		}
+		this.leafFormat = leafFormat;
+		
+		if (root != null) {
+			clear();
+		}
+	}
+	
+	/**
+	 * Creates an empty leaf node.  Every leaf in the tree is made here, so
+	 * subclasses can use their own kind of leaf.
+	 * 
+	 * @return  New leaf node
+	 */
+	protected LeafNode<K,V> createLeafNode() {
+		if (!freeLeaves.isEmpty()) {
+			return freeLeaves.remove(freeLeaves.size()-1);
+		}
+		return new LeafNode<K,V>(this);
+	}
+	
+	/**
+	 * Creates an empty inner node.  Every inner node in the tree is made
+	 * here, so subclasses can use their own kind of inner node.
+	 * 
+	 * @return  New inner node
+	 */
+	protected InnerNode<K,V> createInnerNode() {
+		InnerNode<K,V> node = reuseInnerNode();
+		return (node != null) ? node : new InnerNode<K,V>(this);
+	}
+	
+	/**
+	 * Takes an inner node from the free list.  Subclasses that make their
+	 * own kind of inner node use this to reuse them.
+	 * 
+	 * @return  An empty inner node, or null if the free list is empty.
+	 */
+	protected InnerNode<K,V> reuseInnerNode() {
+		if (freeInnerNodes.isEmpty()) {
+			return null;
+		}
+		return freeInnerNodes.remove(freeInnerNodes.size()-1);
+	}
+	
+	/**
+	 * Puts a node that is no longer part of the tree on the free list, so
+	 * a later split can use it instead of making a new node.  The lists are
+	 * kept short, and nodes a snapshot may still be reading are left alone.
+	 * 
+	 * @param node  Node that has been removed from the tree.
+	 */
+	@SuppressWarnings("unchecked")
+	protected void recycle(Node<K,V> node) {
+		if (node.epoch < cowEpoch && activeSnapshots.get() > 0) {
+			return;
+		}
+		
+		if (node instanceof BPTree.LeafNode) {
+			if (freeLeaves.size() < MAX_FREE_NODES) {
+				node.reset(this);
+				freeLeaves.add((LeafNode<K,V>)node);
+			}
+		}
+		else if (freeInnerNodes.size() < MAX_FREE_NODES) {
+			node.reset(this);
+			freeInnerNodes.add((InnerNode<K,V>)node);
+		}
+	}
+	
+	/**
+	 * Creates an empty list for the entries of a leaf node.
+	 * 
+	 * @return  List in the tree's leaf format.
+	 */
+	protected List<KeyVal<K,V>> newLeafEntries() {
+		if (leafFormat != null) {
+			return leafFormat.newEntries(leafSize+1);
+		}
+		return new ArrayList<KeyVal<K,V>>(leafSize+1);
+	}
+	
+	/**
+	 * Gets the key that a parent should use to separate two leaves.
+	 * 
+	 * @param left   Last key of the left leaf
+	 * @param right  First key of the right leaf
+	 * @return       Separator key
+	 */
+	protected K separatorKey(K left, K right) {
+		if (keySeparator == null) {
+			return right;
+		}
+		return keySeparator.separator(left, right);
+	}
+	
+	/**
+	 * Creates a key value pair for storing in or searching the tree.  If a
+	 * key encoding is set, the key is encoded once here.
+	 * 
+	 * @param key    Key of the entry
+	 * @param value  Value of the entry
+	 * @return       New key value pair
+	 */
+	protected KeyVal<K,V> makeEntry(K key, V value) {
+		if (keyEncoding != null) {
+			return new KeyVal<K,V>(key, value, keyEncoding);
+		}
+		return new KeyVal<K,V>(key, value);
+	}
+	
+	/**
+	 * Gets the maximum size that the inner nodes are allowed to grow to.
+	 * 
+	 * @return  Inner node's maximum size.
+	 */
+	public int getInnerSize() {
+		return innerSize;
+	}
+	
+	/**
+	 * Gets the maximum size that the leaf nodes are allowed to grow to.
+	 * 
+	 * @return  Leaf node's maximum size.
+	 */
+	public int getLeafSize() {
+		return leafSize;
+	}
+	
+	/**
+	 * Gets the number of entries stored in the B+ Tree.
+	 * 
+	 * @see java.util.Map#size()
+	 *  
+	 * @return  Number of entries in the tree.
+	 */
+	@Override
+	public int size() {
+		applyBufferedWrites();
+		return entryCount;
+	}
+	
+	/**
+	 * Increase entry count
+	 */
+	private void incSize() {
+		entryCount++;
+	}
+	
+	/**
+	 * Decrease entry count
+	 */
+	private void decSize() {
+		entryCount--;
+	}
+	
+	/**
+	 * Adds a put to the change feed, if one is being recorded.
+	 * 
+	 * @param entry  Entry that was stored.
+	 */
+	private void recordPut(KeyVal<K,V> entry) {
+		if (changeFeed != null)
+			changeFeed.recordPut(entry.getKey(), entry.getValue());
+	}
+	
+	/**
+	 * Adds a remove to the change feed, if one is being recorded.
+	 * 
+	 * @param entry  Entry with the key that was removed.
+	 */
+	private void recordRemove(KeyVal<K,V> entry) {
+		if (changeFeed != null)
+			changeFeed.recordRemove(entry.getKey());
+	}
+	
+	/**
+	 * Adds a key to the hash index, or points it at where it is now, if the
+	 * index is on.  New keys are only added while the index has room.
+	 * 
+	 * @param key   Key that was stored.
+	 * @param leaf  Leaf the key is in.
+	 * @param slot  Index of the key in the leaf.
+	 */
+	private void indexKey(K key, LeafNode<K,V> leaf, int slot) {
+		if (leafIndex == null)
+			return;
+		
+		LeafSlot hint = leafIndex.get(key);
+		if (hint != null) {
+			hint.leaf = leaf;
+			hint.slot = slot;
+		}
+		else if (leafIndex.size() < leafIndexCapacity) {
+			leafIndex.put(key, new LeafSlot(leaf, slot));
+		}
+	}
+	
+	/**
+	 * Takes a key out of the hash index, if it is on.
+	 * 
+	 * @param key  Key that was removed.
+	 */
+	private void unindexKey(K key) {
+		if (leafIndex != null)
+			leafIndex.remove(key);
+	}
+	
+	/**
+	 * Points the hash index at the new leaf of a run of entries that moved.
+	 * 
+	 * @param moved  Entries that moved, in order.
+	 * @param leaf   Leaf they moved to.
+	 * @param first  Index in the leaf of the first entry.
+	 */
+	private void relocateKeys(List<KeyVal<K,V>> moved, LeafNode<K,V> leaf, int first) {
+		if (leafIndex == null || leafIndex.isEmpty())
+			return;
+		
+		int slot = first;
+		for (KeyVal<K,V> entry : moved) {
+			LeafSlot hint = leafIndex.get(entry.getKey());
+			if (hint != null) {
+				hint.leaf = leaf;
+				hint.slot = slot;
+				indexRelocations++;
+			}
+			slot++;
+		}
+	}
+	
+	/**
+	 * Empties the hash index after a change that moved or dropped entries
+	 * without going through the leaves one by one.
+	 */
+	private void invalidateIndex() {
+		if (leafIndex != null && !leafIndex.isEmpty()) {
+			leafIndex.clear();
+			indexInvalidations++;
+		}
+	}
+	
+	/**
+	 * Gets a node that is safe to modify.  While a snapshot is being saved,
+	 * nodes that belong to the snapshot are copied instead of modified.
+	 * 
+	 * @param node  Node that is about to be modified.
+	 * @return      The node itself, or a copy of it.
+	 */
+	protected Node<K,V> writable(Node<K,V> node) {
+		if (node.epoch < cowEpoch && activeSnapshots.get() > 0) {
+			K queued = node.underflowKey;
+			node = node.copy(this);
+			node.underflowKey = queued;
+		}
+		node.hash = null;
+		node.entryTotal = -1;
+		return node;
+	}
+	
+	/**
+	 * Gathers statistics about the shape and memory use of the tree, in one
+	 * walk over every node.  Nodes that are still in the file of a lazily
+	 * loaded tree are read.  Writes a subclass holds back are applied
+	 * first, so they are counted.
+	 * 
+	 * @see TreeStats
+	 * 
+	 * @return  Tree statistics
+	 */
+	public TreeStats stats() {
+		applyBufferedWrites();
+		TreeStats stats = new TreeStats(innerSize, leafSize);
+		root.collectStats(this, stats, 0);
+		return stats;
+	}
+	
+	/**
+	 * Estimates the memory used by a node's ArrayList.  The array is
+	 * assumed to have grown to one more than the node's maximum size, which
+	 * is how large a node gets right before it splits.
+	 * 
+	 * @param maxSize  Maximum size of the node.
+	 * @return         Estimated bytes
+	 */
+	protected long listBytes(int maxSize) {
+		return TreeStats.align(TreeStats.OBJECT_HEADER + TreeStats.REFERENCE + 2*4)
+				+ TreeStats.arrayBytes(maxSize+1, TreeStats.REFERENCE);
+	}
+	
+	/**
+	 * Recursively add up number of nodes.
+	 * 
+	 * @return  Node count
+	 */
+	public int countNodes() {
+		applyBufferedWrites();
+		return root.countNodes(this);
+	}
+
+	/**
+	 * Checks if the B+ Tree is empty.
+	 * 
+	 * @see java.util.Map#isEmpty()
+	 * 
+	 * @return  True if no entries stored.
+	 */
+	@Override
+	public boolean isEmpty() {
+		applyBufferedWrites();
+		return root.isEmpty();
+	}
+
+	/**
+	 * Checks if the specified key exists in the B+ Tree.
+	 * 
+	 * @see java.util.Map#containsKey(java.lang.Object)
+	 * 
+	 * @param key  Key to check for.
+	 * @return     True if an entry with this key exists, else false.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public boolean containsKey(Object key) {
+		if (leafIndex != null)
+			return indexedEntry((K)key) != null;
+		if (routingCurrent) {
+			LeafNode<K,V> leaf = routedLeaf((K)key);
+			if (leaf != null)
+				return leaf.contains(this, (K)key);
+		}
+		return root.contains(this, (K)key);
+	}
+
+	/**
+	 * Check if there is an entry that has the specified value.
+	 * 
+	 * @see java.util.Map#containsValue(java.lang.Object)
+	 * 
+	 * @param value  Value to check for.
+	 * @return       True if an entry has this value, false if not.
+	 */
+	@Override
+	public boolean containsValue(Object value) {
+		applyBufferedWrites();
+		
+		LeafNode<K,V> current = root.getFirstLeaf(this);
+		
+		while (current != null) {
+			for (KeyVal<K,V> entry : current.entries) {
+				if (value.equals(entry.getValue()))
+					return true;
+			}
+			current = current.getNext(this);
+		}
+		return false;
+	}
+
+	/**
+	 * Get the value of the entry associated with the specified key.  Returns
+	 * null if not found.
+	 * 
+	 * @see java.util.Map#get(java.lang.Object)
+	 * 
+	 * @param key  Key of entry to retrieve value from.
+	 * @return     The value of the entry with this key, or null if not found.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public V get(Object key) {
+		if (leafIndex != null) {
+			KeyVal<K,V> entry = indexedEntry((K)key);
+			return (entry == null) ? null : entry.getValue();
+		}
+		if (routingCurrent) {
+			LeafNode<K,V> leaf = routedLeaf((K)key);
+			if (leaf != null)
+				return leaf.get(this, (K)key);
+		}
+		return root.get(this, (K)key);
+	}
+	
+	/**
+	 * Get a collection of entries with keys that are less than or equal to the
+	 * specified key.
+	 * 
+	 * @param key  Key to stop on
+	 * @return     A collection of entries
+	 */
+	public Collection<Entry<K,V>> getFirstToKey(Object key) {
+		ArrayList<Entry<K,V>> values = new ArrayList<Entry<K,V>>();
+		
+		LeafNode<K,V> current = root.getFirstLeaf(this);
+		
+		while (current != null) {
+			for (KeyVal<K,V> entry : current.entries) {
+				@SuppressWarnings("unchecked")
+				int cmp = entry.getKey().compareTo((K)key);
+				
+				if (cmp <= 0)
+					values.add(new TreeEntry(entry.getKey(), entry.getValue()));
+				
+				if (cmp >= 0)
+					return values;
+			}
+			current = current.getNext(this);
+		}
+		
+		return values;
+	}
+	
+	/**
+	 * Get a collection of entries with keys that are greater than or equal to
+	 * the specified key.
+	 * 
+	 * @param key  Key to start from
+	 * @return     A collection of entries
+	 */
+	public Collection<Entry<K,V>> getKeyToLast(Object key) {
+		ArrayList<Entry<K,V>> values = new ArrayList<Entry<K,V>>();
+		
+		@SuppressWarnings("unchecked")
+		LeafNode<K,V> current = root.getLeaf(this, (K)key);
+		
+		while (current != null) {
+			for (KeyVal<K,V> entry : current.entries) {
+				@SuppressWarnings("unchecked")
+				int cmp = entry.getKey().compareTo((K)key);
+				
+				if (cmp >= 0)
+					values.add(new TreeEntry(entry.getKey(), entry.getValue()));
+			}
+			current = current.getNext(this);
+		}
+		
+		return values;
+	}
+	
+	/**
+	 * Get a collection of entries that have keys that are greater than or
+	 * equal to key1 and are less than or equal to key2.
+	 * 
+	 * @param key1  Key to start from
+	 * @param key2  Key to end from
+	 * @return      Collection of entries
+	 */
+	public Collection<Entry<K,V>> getKeyToKey(Object key1, Object key2) {
+		ArrayList<Entry<K,V>> values = new ArrayList<Entry<K,V>>();
+		
+		@SuppressWarnings("unchecked")
+		LeafNode<K,V> current = root.getLeaf(this, (K)key1);
+		
+		// I know this can be done in a more optimal way, but I'm not sure if
+		// it would be worth it, at the moment, to focus on this at the moment.
+		while (current != null) {
+			for (KeyVal<K,V> entry : current.entries) {
+				@SuppressWarnings("unchecked")
+				int cmp1 = entry.getKey().compareTo((K)key1);
+				@SuppressWarnings("unchecked")
+				int cmp2 = entry.getKey().compareTo((K)key2);
+				
+				if (cmp1 >= 0 && cmp2 <= 0)
+					values.add(new TreeEntry(entry.getKey(), entry.getValue()));
+				
+				if (cmp2 >= 0)
+					return values;
+			}
+			current = current.getNext(this);
+		}
+		
+		return values;
+	}
+
+	/**
+	 * Puts an entry into the B+ Tree with a specified
+	 * key and value.
+	 * 
+	 * @see java.util.Map#put(java.lang.Object, java.lang.Object)
+	 * 
+	 * @param key    Key of the entry
+	 * @param value  Value of the entry
+	 * @return       Value of the entry stored
+	 */
+	@Override
+	public V put(K key, V value) {
+		// Create entry and insert it
+		KeyVal<K,V> entry = makeEntry(key, value);
+		int total = root.entryTotal;
+		int size = entryCount;
+		root = writable(root);
+		V oldVal = root.insert(this, entry);
+		root.addToTotal(total, entryCount - size);
+		
+		if (root.tooLarge(this)) {
+			SplitResult<K,V> sr = root.split(this);
+			
+			InnerNode<K,V> newRoot = createInnerNode();
+			newRoot.makeRoot(sr.midKey, root, sr.splitNode);
+			root = newRoot;
+		}
+		
+		return oldVal;
+	}
+
+	/**
+	 * Remove entry that has this key.  If the entry is not in the B+ Tree
+	 * nothing will happen.
+	 * 
+	 * @see java.util.Map#remove(java.lang.Object)
+	 * 
+	 * @param key  Key of entry to remove.
+	 * @return     Value of entry that had been removed, or null if not found.
+	 */
+	@Override
+	public V remove(Object key) {
+		@SuppressWarnings("unchecked")
+		K k = (K)key;
+		
+		int total = root.entryTotal;
+		int size = entryCount;
+		root = writable(root);
+		V oldVal = root.remove(this, k);
+		root.addToTotal(total, entryCount - size);
+		
+		if (root instanceof BPTree.InnerNode && root.size() == 1) {
+			collapseRoot();
+		}
+		
+		return oldVal;
+	}
+	
+	/**
+	 * Computes a new value for a key from its old value, in one pass down
+	 * the tree.
+	 * 
+	 * @see java.util.Map#compute(java.lang.Object, java.util.function.BiFunction)
+	 * 
+	 * @param key        Key of the entry
+	 * @param remapping  Function given the key and old value, or null, that
+	 *                   returns the new value, or null to remove the entry.
+	 * @return           The new value, or null if there is none.
+	 */
+	@Override
+	public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remapping) {
+		KeyVal<K,V> entry = makeEntry(key, null);
+		update(entry, remapping);
+		return entry.getValue();
+	}
+	
+	/**
+	 * Computes a new value for a key from its old value, if the key has a
+	 * value, in one pass down the tree.
+	 * 
+	 * @see java.util.Map#computeIfPresent(java.lang.Object, java.util.function.BiFunction)
+	 * 
+	 * @param key        Key of the entry
+	 * @param remapping  Function given the key and old value that returns
+	 *                   the new value, or null to remove the entry.
+	 * @return           The new value, or null if there is none.
+	 */
+	@Override
+	public V computeIfPresent(K key,
+			final BiFunction<? super K, ? super V, ? extends V> remapping) {
+		KeyVal<K,V> entry = makeEntry(key, null);
+		update(entry, new BiFunction<K,V,V>() {
+			@Override
+			public V apply(K k, V oldValue) {
+				return (oldValue == null) ? null : remapping.apply(k, oldValue);
+			}
+		});
+		return entry.getValue();
+	}
+	
+	/**
+	 * Computes a value for a key that does not have one yet, in one pass
+	 * down the tree.
+	 * 
+	 * @see java.util.Map#computeIfAbsent(java.lang.Object, java.util.function.Function)
+	 * 
+	 * @param key        Key of the entry
+	 * @param mapping    Function given the key that returns the value, or
+	 *                   null to leave the key without a value.
+	 * @return           The current value, or null if there is none.
+	 */
+	@Override
+	public V computeIfAbsent(K key, final Function<? super K, ? extends V> mapping) {
+		KeyVal<K,V> entry = makeEntry(key, null);
+		update(entry, new BiFunction<K,V,V>() {
+			@Override
+			public V apply(K k, V oldValue) {
+				return (oldValue != null) ? oldValue : mapping.apply(k);
+			}
+		});
+		return entry.getValue();
+	}
+	
+	/**
+	 * Stores a value for a key, or combines it with the key's old value,
+	 * in one pass down the tree.
+	 * 
+	 * @see java.util.Map#merge(java.lang.Object, java.lang.Object, java.util.function.BiFunction)
+	 * 
+	 * @param key        Key of the entry
+	 * @param value      Value to store if the key has none.
+	 * @param remapping  Function given the old value and the value that
+	 *                   returns the new value, or null to remove the entry.
+	 * @return           The new value, or null if there is none.
+	 */
+	@Override
+	public V merge(K key, final V value,
+			final BiFunction<? super V, ? super V, ? extends V> remapping) {
+		if (value == null || remapping == null)
+			throw new NullPointerException();
+		
+		KeyVal<K,V> entry = makeEntry(key, null);
+		update(entry, new BiFunction<K,V,V>() {
+			@Override
+			public V apply(K k, V oldValue) {
+				return (oldValue == null) ? value : remapping.apply(oldValue, value);
+			}
+		});
+		return entry.getValue();
+	}
+	
+	/**
+	 * Stores a value for a key only if the key has no value yet, in one pass
+	 * down the tree.
+	 * 
+	 * @see java.util.Map#putIfAbsent(java.lang.Object, java.lang.Object)
+	 * 
+	 * @param key    Key of the entry
+	 * @param value  Value to store.
+	 * @return       The old value, or null if there was none.
+	 */
+	@Override
+	public V putIfAbsent(K key, final V value) {
+		return update(makeEntry(key, null), new BiFunction<K,V,V>() {
+			@Override
+			public V apply(K k, V oldValue) {
+				return (oldValue == null) ? value : oldValue;
+			}
+		});
+	}
+	
+	/**
+	 * Finds the entry for a key and updates, inserts or removes it in one
+	 * pass down the tree, fixing the nodes on the way back up only if they
+	 * have become too large or too small.
+	 * 
+	 * @param entry      Entry with the key to update.  Its value is set to
+	 *                   the new value.
+	 * @param remapping  Function given the key and old value, or null, that
+	 *                   returns the new value, or null to remove the entry.
+	 * @return           The old value, or null if there was none.
+	 */
+	protected V update(KeyVal<K,V> entry,
+			BiFunction<? super K, ? super V, ? extends V> remapping) {
+		int total = root.entryTotal;
+		int size = entryCount;
+		root = writable(root);
+		V oldVal = root.update(this, entry, remapping);
+		root.addToTotal(total, entryCount - size);
+		
+		if (root.tooLarge(this)) {
+			SplitResult<K,V> sr = root.split(this);
+			
+			InnerNode<K,V> newRoot = createInnerNode();
+			newRoot.makeRoot(sr.midKey, root, sr.splitNode);
+			root = newRoot;
+		}
+		else if (root instanceof BPTree.InnerNode && root.size() == 1) {
+			collapseRoot();
+		}
+		
+		return oldVal;
+	}
+	
+	/**
+	 * Replaces an inner root node that has only one child with that child,
+	 * making the tree one level shorter.
+	 */
+	protected void collapseRoot() {
+		@SuppressWarnings("unchecked")
+		InnerNode<K,V> oldRoot = (InnerNode<K,V>)root; 
+		root = oldRoot.writableChild(this, 0);
+		recycle(oldRoot);
+	}
+
+	/**
+	 * Removes every entry with a key from lo to hi, including both.  This
+	 * is much faster than removing the keys one at a time: subtrees that
+	 * are entirely inside the range are cut out of their parents whole,
+	 * only the leaves at the two ends of the range are trimmed, and the
+	 * tree is rebalanced once along the paths to lo and hi.
+	 * 
+	 * The cut out subtrees are not walked to count how many entries they
+	 * held, since every inner node keeps the count of its subtree, and a
+	 * lazily loaded tree reads the counts of its stubs from the file.
+	 * Stubs from files saved before the counts were recorded are read.
+	 * 
+	 * @param lo  Smallest key to remove.
+	 * @param hi  Largest key to remove.
+	 * @return    Number of entries removed.
+	 */
+	public int removeRange(K lo, K hi) {
+		applyBufferedWrites();
+		
+		if (lo.compareTo(hi) > 0)
+			return 0;
+		
+		KeyVal<K,V> loEntry = makeEntry(lo, null);
+		KeyVal<K,V> hiEntry = makeEntry(hi, null);
+		
+		root = writable(root);
+		int removed = root.removeRange(this, loEntry, hiEntry);
+		entryCount -= removed;
+		if (removed > 0) {
+			invalidateIndex();
+			routingCurrent = false;
+		}
+		if (changeFeed != null && removed > 0)
+			changeFeed.recordRemoveRange(lo, hi);
+		
+		rebalanceEdges(loEntry, hiEntry);
+		
+		return removed;
+	}
+	
+	/**
+	 * Fixes the nodes left too small along the paths to two keys, after an
+	 * operation that cut the tree apart between them.  Fixing a node can
+	 * leave a node below it with a sibling to be fixed with, so the paths
+	 * are walked until nothing on them is too small.
+	 * 
+	 * @param lo  Entry with the key of the first path.
+	 * @param hi  Entry with the key of the second path.
+	 */
+	private void rebalanceEdges(KeyVal<K,V> lo, KeyVal<K,V> hi) {
+		boolean fixed = true;
+		while (fixed && root instanceof BPTree.InnerNode) {
+			@SuppressWarnings("unchecked")
+			InnerNode<K,V> innerRoot = (InnerNode<K,V>)root;
+			fixed = innerRoot.rebalancePath(this, lo);
+			fixed |= innerRoot.rebalancePath(this, hi);
+			
+			while (root instanceof BPTree.InnerNode && root.size() == 1) {
+				collapseRoot();
+				fixed = true;
+			}
+		}
+	}
+	
+	/**
+	 * Adds every entry of another tree to this tree.  If both trees have a
+	 * key, the other tree's value is kept, like putAll.  The leaves of both
+	 * trees are read in order and merged into a new tree built from the
+	 * bottom up, so it takes time in proportion to the number of entries
+	 * and nothing is inserted one at a time.  The other tree is not changed.
+	 * 
+	 * @see #bulkLoad(Iterator)
+	 * 
+	 * @param other  Tree to add the entries of.
+	 */
+	public void union(BPTree<K,V> other) {
+		if (other == this)
+			return;
+		
+		applyBufferedWrites();
+		other.applyBufferedWrites();
+		loadAllNodes();
+		
+		// The other tree's entries are recorded, instead of the whole load
+		ChangeFeed<K,V> feed = changeFeed;
+		changeFeed = null;
+		try {
+			bulkLoad(new MergeIterator(root.getFirstLeaf(this), other.root.getFirstLeaf(other),
+					other));
+		} finally {
+			changeFeed = feed;
+		}
+		
+		if (feed != null) {
+			for (LeafNode<K,V> leaf = other.root.getFirstLeaf(other); leaf != null;
+					leaf = leaf.getNext(other)) {
+				for (KeyVal<K,V> entry : leaf.entries) {
+					feed.recordPut(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Cuts the tree in two at a key.  Entries with smaller keys stay in this
+	 * tree and the rest are moved to a new tree, which is returned.
+	 * 
+	 * Only the nodes on the path to the key are split.  Every child to the
+	 * right of the path is handed to the new tree as it is, and then both
+	 * trees are rebalanced along the cut.  The children that move are not
+	 * visited: inner nodes keep the counts of their subtrees, and nodes do
+	 * not point back at the tree they are in, so nothing has to be changed
+	 * in them, and nothing in the new tree keeps this one from being
+	 * garbage collected.  A lazily loaded tree is not read in first, and
+	 * the new tree reads its stubs from the same file.
+	 * 
+	 * @param key  Smallest key to move to the new tree.
+	 * @return     New tree with the entries whose keys are at least key.
+	 */
+	public BPTree<K,V> splitAt(K key) {
+		applyBufferedWrites();
+		
+		BPTree<K,V> right = new BPTree<K,V>(innerSize, leafSize);
+		right.keyEncoding = keyEncoding;
+		right.keySeparator = keySeparator;
+		right.leafFormat = leafFormat;
+		right.bloomBitsPerKey = bloomBitsPerKey;
+		right.hashKeyCodec = hashKeyCodec;
+		right.hashValueCodec = hashValueCodec;
+		
+		// Nodes still shared with a snapshot of this tree keep being
+		// copied before they are changed, in either tree
+		right.cowEpoch = cowEpoch;
+		right.activeSnapshots = activeSnapshots;
+		
+		if (nodeFile != null) {
+			nodeFile.users++;
+			right.nodeFile = nodeFile;
+			right.nodeKeyCodec = nodeKeyCodec;
+			right.nodeValueCodec = nodeValueCodec;
+			right.nodeFileVersion = nodeFileVersion;
+		}
+		
+		KeyVal<K,V> entry = makeEntry(key, null);
+		root = writable(root);
+		right.root = root.splitOff(this, entry, right);
+		
+		int moved = right.root.countEntries(right);
+		right.entryCount = moved;
+		entryCount -= moved;
+		if (moved > 0)
+			invalidateIndex();
+		if (changeFeed != null && moved > 0)
+			changeFeed.recordRemoveRange(key, null);
+		
+		rebalanceEdges(entry, entry);
+		right.rebalanceEdges(entry, entry);
+		
+		return right;
+	}
+	
+	/**
+	 * Applies any writes that a subclass holds back from the nodes, before
+	 * the nodes are read or moved directly.  The B+ Tree itself does not
+	 * hold any back.
+	 */
+	protected void applyBufferedWrites() {
+	}
+	
+	/**
+	 * Throws away any writes that a subclass holds back, because the
+	 * contents of the tree are being replaced.  Every clear and load goes
+	 * through startOver, which calls this, so a subclass only has to
+	 * override it once.  The B+ Tree itself does not hold any back.
+	 */
+	protected void discardBufferedWrites() {
+	}
+	
+	/**
+	 * Lets go of everything that depends on the old contents of the tree,
+	 * before clear, bulkLoad or a load replaces them.
+	 */
+	private void startOver() {
+		discardBufferedWrites();
+		closeNodeFile();
+		invalidateIndex();
+		routingCurrent = false;
+	}
+	
+	/**
+	 * Turns Bloom filters on the leaves on or off.  With filters on, each
+	 * leaf keeps a filter of the keys it holds, and get and containsKey
+	 * check it before going into the leaf, so most lookups of missing keys
+	 * do not search the leaf at all.  The filters are saved by saveBinary
+	 * next to the pointers to the leaves, so a tree opened with
+	 * loadBinaryLazy does not even read a leaf to turn a missing key away.
+	 * 
+	 * Filters are added to as keys are inserted, and rebuilt when a leaf
+	 * splits, merges or shares entries, which also drops removed keys.
+	 * 
+	 * @param bitsPerKey  Filter bits for each key a leaf can hold, or 0 to
+	 *                    turn filters off.  10 bits gives about one false
+	 *                    positive in a hundred.
+	 */
+	public void setBloomFilterBits(int bitsPerKey) {
+		if (bitsPerKey < 0)
+			throw new IllegalArgumentException("Bits per key can't be negative: " + bitsPerKey);
+		
+		applyBufferedWrites();
+		bloomBitsPerKey = bitsPerKey;
+		rebuildFilters(root);
+	}
+	
+	/**
+	 * Gets the size of the leaves' Bloom filters.
+	 * 
+	 * @return  Filter bits for each key a leaf can hold, or 0 if filters
+	 *          are turned off.
+	 */
+	public int getBloomFilterBits() {
+		return bloomBitsPerKey;
+	}
+	
+	/**
+	 * Rebuilds the Bloom filters of every leaf that has been read, in the
+	 * subtree of a node.  Leaves that are still stubs drop their filters,
+	 * and get new ones when they are read.
+	 * 
+	 * @param node  Root of the subtree.
+	 */
+	private void rebuildFilters(Node<K,V> node) {
+		if (node instanceof BPTree.LeafNode) {
+			@SuppressWarnings("unchecked")
+			LeafNode<K,V> leaf = (LeafNode<K,V>)node;
+			if (leaf.fileOffset >= 0) {
+				leaf.filter = null;
+			} else {
+				leaf.rebuildFilter(this);
+			}
+		}
+		else if (node.fileOffset < 0) {
+			@SuppressWarnings("unchecked")
+			InnerNode<K,V> innerNode = (InnerNode<K,V>)node;
+			for (int i=0; i<innerNode.size(); i++) {
+				rebuildFilters(innerNode.childStub(i));
+			}
+		}
+	}
+	
+	/**
+	 * Turns on a hash index from keys to the leaves that hold them, for
+	 * point lookups.  A get or containsKey of an indexed key goes straight
+	 * to its leaf instead of down the tree, and checks the index in the
+	 * leaf where the key was last seen before searching the leaf.  Each
+	 * indexed key takes about 64 bytes, so the capacity trades memory for
+	 * lookup speed.  Other keys go down the tree as usual and are added to
+	 * the index once found, as are newly inserted keys, until the index
+	 * holds capacity keys.  Range scans and iterators still use the tree.
+	 * 
+	 * The index is kept exact: a split, merge or redistribution points the
+	 * keys it moves at their new leaf, and a removed key is taken out.
+	 * Operations that cut out whole subtrees without visiting their leaves,
+	 * like removeRange, splitAt, clear and bulkLoad, empty the index
+	 * instead, and it fills up again from lookups.
+	 * 
+	 * @param capacity  Most keys to index, which bounds the memory used, or
+	 *                  0 to turn the index off.  Integer.MAX_VALUE indexes
+	 *                  every key.
+	 */
+	public void setHashIndexCapacity(int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Capacity can't be negative: " + capacity);
+		
+		leafIndexCapacity = capacity;
+		if (capacity == 0) {
+			leafIndex = null;
+		}
+		else if (leafIndex == null) {
+			leafIndex = new HashMap<K,LeafSlot>();
+		}
+		else if (leafIndex.size() > capacity) {
+			invalidateIndex();
+		}
+	}
+	
+	/**
+	 * Gets the most keys the hash index holds.
+	 * 
+	 * @return  Capacity of the index, or 0 if it is turned off.
+	 */
+	public int getHashIndexCapacity() {
+		return leafIndexCapacity;
+	}
+	
+	/**
+	 * Gets the number of keys in the hash index.
+	 * 
+	 * @return  Number of indexed keys.
+	 */
+	public int getHashIndexSize() {
+		return (leafIndex == null) ? 0 : leafIndex.size();
+	}
+	
+	/**
+	 * Gets the number of lookups the hash index has answered.
+	 * 
+	 * @return  Number of lookups that found their key in the index.
+	 */
+	public long getHashIndexHits() {
+		return indexHits;
+	}
+	
+	/**
+	 * Gets the number of lookups that had to go down the tree because
+	 * their key was not in the hash index.
+	 * 
+	 * @return  Number of lookups that missed the index.
+	 */
+	public long getHashIndexMisses() {
+		return indexMisses;
+	}
+	
+	/**
+	 * Gets the number of times an indexed key was pointed at a new leaf,
+	 * because a split, merge, redistribution or copy moved it.
+	 * 
+	 * @return  Number of keys moved.
+	 */
+	public long getHashIndexRelocations() {
+		return indexRelocations;
+	}
+	
+	/**
+	 * Gets the number of times the hash index was emptied by an operation
+	 * that changed the tree without going through the leaves.
+	 * 
+	 * @return  Number of times the index was emptied.
+	 */
+	public long getHashIndexInvalidations() {
+		return indexInvalidations;
+	}
+	
+	/**
+	 * Finds the entry with a key, through the hash index if the key is in
+	 * it, or else down the tree.
+	 * 
+	 * @param key  Key to look for.
+	 * @return     Entry with the key, or null if the key is not in the tree.
+	 */
+	private KeyVal<K,V> indexedEntry(K key) {
+		LeafSlot hint = leafIndex.get(key);
+		if (hint != null) {
+			indexHits++;
+			return hint.find(key);
+		}
+		
+		indexMisses++;
+		if (!root.contains(this, key))
+			return null;
+		
+		LeafNode<K,V> leaf = root.getLeaf(this, key);
+		int slot = leaf.findPossibleIndex(makeEntry(key, null));
+		indexKey(key, leaf, slot);
+		return leaf.entries.get(slot);
+	}
+	
+	/**
+	 * Trains a learned model of where numeric keys are in the tree, so
+	 * get and containsKey can go straight to a leaf.  The separator keys in
+	 * front of the leaves are fit with a PiecewiseLinearModel, which
+	 * predicts the leaf of a key to within maxError leaves, and the leaf is
+	 * found by searching just those.  On large trees with smoothly spread
+	 * keys this takes far fewer comparisons than going down the inner
+	 * nodes.
+	 * 
+	 * Inserts and removes that stay within a leaf keep the model current.
+	 * Anything that splits, merges, copies or drops a leaf makes it stale,
+	 * and lookups go down the inner nodes as usual until it is trained
+	 * again, so it suits trees that are mostly read.  A tree opened with
+	 * loadBinaryLazy is read in full first.
+	 * 
+	 * @see PiecewiseLinearModel
+	 * 
+	 * @param maxError  Most leaves a prediction may be off by.
+	 * @throws UnsupportedOperationException  If the keys are not Numbers.
+	 */
+	public void trainLearnedRouting(int maxError) {
+		loadAllNodes();
+		
+		ArrayList<LeafNode<K,V>> leaves = new ArrayList<LeafNode<K,V>>();
+		ArrayList<K> separators = new ArrayList<K>();
+		collectRouting(root, leaves, separators);
+		
+		double[] keys = new double[separators.size()];
+		for (int i=0; i<keys.length; i++) {
+			K key = separators.get(i);
+			if (!(key instanceof Number)) {
+				throw new UnsupportedOperationException(
+						"Learned routing needs numeric keys, not " + key.getClass().getName());
+			}
+			keys[i] = ((Number)key).doubleValue();
+		}
+		
+		routingModel = new PiecewiseLinearModel(keys, maxError);
+		routingKeys = separators.toArray();
+		routingLeaves = leaves;
+		routingCurrent = true;
+	}
+	
+	/**
+	 * Throws away the learned routing model, so every lookup goes down the
+	 * inner nodes.
+	 */
+	public void dropLearnedRouting() {
+		routingModel = null;
+		routingKeys = null;
+		routingLeaves = null;
+		routingCurrent = false;
+	}
+	
+	/**
+	 * Checks if lookups are using the learned routing model.
+	 * 
+	 * @return  True if a model was trained and no leaf has changed since.
+	 */
+	public boolean isLearnedRoutingCurrent() {
+		return routingCurrent;
+	}
+	
+	/**
+	 * Gets the learned routing model, current or not.
+	 * 
+	 * @return  The model, or null if none was trained.
+	 */
+	public PiecewiseLinearModel getLearnedRouting() {
+		return routingModel;
+	}
+	
+	/**
+	 * Lists the leaves of a subtree in order, with the separator key in
+	 * front of each leaf after the first.
+	 * 
+	 * @param node        Root of the subtree.
+	 * @param leaves      List to add the leaves to.
+	 * @param separators  List to add the separator keys to.
+	 */
+	private void collectRouting(Node<K,V> node, List<LeafNode<K,V>> leaves, List<K> separators) {
+		if (node instanceof BPTree.LeafNode) {
+			@SuppressWarnings("unchecked")
+			LeafNode<K,V> leaf = (LeafNode<K,V>)node;
+			leaves.add(leaf);
+			return;
+		}
+		
+		@SuppressWarnings("unchecked")
+		InnerNode<K,V> innerNode = (InnerNode<K,V>)node;
+		for (int i=0; i<innerNode.size(); i++) {
+			if (i > 0)
+				separators.add(innerNode.keyAt(this, i-1));
+			collectRouting(innerNode.child(this, i), leaves, separators);
+		}
+	}
+	
+	/**
+	 * Finds the leaf for a key with the learned routing model.  The leaf is
+	 * searched for among the separators within the model's error of the
+	 * prediction, and is only returned if the search shows it is right.
+	 * 
+	 * @param key  Key to route.
+	 * @return     Leaf that would hold the key, or null if the key fell
+	 *             outside the window and has to go down the inner nodes.
+	 */
+	@SuppressWarnings("unchecked")
+	private LeafNode<K,V> routedLeaf(K key) {
+		int error = routingModel.getMaxError() + 1;
+		int predicted = routingModel.predict(((Number)key).doubleValue());
+		int lo = Math.max(0, predicted - error);
+		int hi = Math.min(routingKeys.length, predicted + error + 1);
+		
+		// The key belongs to the leaf after the last separator it is not
+		// less than, as in findGreaterIndex
+		if (lo > 0 && key.compareTo((K)routingKeys[lo-1]) < 0)
+			return null;
+		if (hi < routingKeys.length && key.compareTo((K)routingKeys[hi]) >= 0)
+			return null;
+		
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (key.compareTo((K)routingKeys[mid]) >= 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		
+		return routingLeaves.get(lo);
+	}
+	
+	/**
+	 * Starts recording every change made to the tree in a change feed, so
+	 * the changes can be sent to a copy of the tree and applied there.  If
+	 * a feed is already being recorded it is kept.
+	 * 
+	 * @see ChangeFeed
+	 * 
+	 * @return  The change feed.
+	 */
+	public ChangeFeed<K,V> enableChangeFeed() {
+		if (changeFeed == null) {
+			applyBufferedWrites();
+			changeFeed = new ChangeFeed<K,V>();
+		}
+		return changeFeed;
+	}
+	
+	/**
+	 * Stops recording changes and drops the change feed.
+	 */
+	public void disableChangeFeed() {
+		changeFeed = null;
+	}
+	
+	/**
+	 * Gets the change feed being recorded.  Writes that a subclass holds
+	 * back are recorded once they reach the leaves.
+	 * 
+	 * @return  The change feed, or null if changes are not being recorded.
+	 */
+	public ChangeFeed<K,V> getChangeFeed() {
+		return changeFeed;
+	}
+	
+	/**
+	 * Sets the codecs that write keys and values for the content hashes
+	 * diff uses to skip subtrees.  Each node's hash is a SHA-256 digest of
+	 * its encoded entries, so equal hashes can be trusted, unlike hashCode.
+	 * Hashes that were already worked out are forgotten.
+	 * 
+	 * @see #diff(BPTree)
+	 * 
+	 * @param keyCodec    Converts keys to binary, or null for no hashes.
+	 * @param valueCodec  Converts values to binary, or null for no hashes.
+	 */
+	public void setHashCodecs(Codec<K> keyCodec, Codec<V> valueCodec) {
+		hashKeyCodec = keyCodec;
+		hashValueCodec = valueCodec;
+		forgetHashes(root);
+	}
+	
+	/**
+	 * Forgets the content hashes of every node that has been read, in the
+	 * subtree of a node.  Stubs have no hashes yet.
+	 * 
+	 * @param node  Root of the subtree.
+	 */
+	private void forgetHashes(Node<K,V> node) {
+		node.hash = null;
+		
+		if (node instanceof BPTree.InnerNode && node.fileOffset < 0) {
+			@SuppressWarnings("unchecked")
+			InnerNode<K,V> innerNode = (InnerNode<K,V>)node;
+			for (int i=0; i<innerNode.size(); i++) {
+				forgetHashes(innerNode.childStub(i));
+			}
+		}
+	}
+	
+	/**
+	 * Gets the digest the content hashes of nodes are worked out with.  A
+	 * node's children are hashed before its own bytes are digested, so one
+	 * digest is enough for the whole tree.
+	 * 
+	 * @return  SHA-256 digest.
+	 */
+	private MessageDigest hashDigest() {
+		if (hashDigest == null) {
+			try {
+				hashDigest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				// Every Java platform has SHA-256
+				throw new IllegalStateException(e);
+			}
+		}
+		return hashDigest;
+	}
+	
+	/**
+	 * Finds the changes that turn another tree into this one.  Both trees
+	 * are walked from the root down, and a subtree is skipped when it is
+	 * the same node in both trees, as with a snapshot.  If both trees have
+	 * hash codecs, a subtree is also skipped when it has the same content
+	 * hash in both trees, such as in a replica that was loaded from a file
+	 * this tree saved.  Subtrees with the same separator keys are compared
+	 * child by child, and the rest are compared entry by entry.
+	 * 
+	 * Without hash codecs, every entry outside the shared nodes is read, so
+	 * diff takes time in proportion to the size of the trees.  With them,
+	 * the first diff reads every entry to work out the hashes, and later
+	 * ones only read the subtrees that changed since.
+	 * 
+	 * @see #setHashCodecs(Codec, Codec)
+	 * @see ChangeFeed#apply(List, BPTree)
+	 * 
+	 * @param other  Tree to compare with.
+	 * @return       Puts and removes in order of key, which make other
+	 *               hold the same entries as this tree when applied to it.
+	 * @throws UncheckedIOException  If a hash codec fails to write an entry.
+	 */
+	public List<ChangeFeed.Change<K,V>> diff(BPTree<K,V> other) {
+		applyBufferedWrites();
+		other.applyBufferedWrites();
+		
+		boolean hashed = hashKeyCodec != null && hashValueCodec != null
+				&& other.hashKeyCodec != null && other.hashValueCodec != null;
+		
+		ChangeFeed<K,V> changes = new ChangeFeed<K,V>();
+		diffNodes(root, other.root, other, hashed, changes);
+		return changes.changesSince(0);
+	}
+	
+	/**
+	 * Records the changes that turn one subtree into another.
+	 * 
+	 * @param mine     Subtree of this tree.
+	 * @param theirs   Subtree of the other tree.
+	 * @param other    The other tree.
+	 * @param hashed   Whether subtrees can be compared by content hash.
+	 * @param changes  Where the changes are recorded.
+	 */
+	private void diffNodes(Node<K,V> mine, Node<K,V> theirs, BPTree<K,V> other,
+			boolean hashed, ChangeFeed<K,V> changes) {
+		if (mine == theirs)
+			return;
+		
+		if (hashed && Arrays.equals(mine.contentHash(this), theirs.contentHash(other)))
+			return;
+		
+		if (mine instanceof BPTree.InnerNode && theirs instanceof BPTree.InnerNode
+				&& mine.size() == theirs.size()) {
+			@SuppressWarnings("unchecked")
+			InnerNode<K,V> myInner = (InnerNode<K,V>)mine;
+			@SuppressWarnings("unchecked")
+			InnerNode<K,V> theirInner = (InnerNode<K,V>)theirs;
+			
+			boolean sameKeys = true;
+			for (int i=0; i<myInner.size() && sameKeys; i++) {
+				sameKeys = Objects.equals(myInner.keyAt(this, i), theirInner.keyAt(other, i));
+			}
+			
+			if (sameKeys) {
+				for (int i=0; i<myInner.size(); i++) {
+					diffNodes(myInner.child(this, i), theirInner.child(other, i), other,
+							hashed, changes);
+				}
+				return;
+			}
+		}
+		
+		diffEntries(mine.getFirstLeaf(this), mine.getLastLeaf(this),
+				theirs.getFirstLeaf(other), theirs.getLastLeaf(other), other, changes);
+	}
+	
+	/**
+	 * Records the changes that turn one run of leaves into another, by
+	 * stepping through the entries of both in order of key.
+	 * 
+	 * @param mine       First leaf of the run in this tree.
+	 * @param myLast     Last leaf of the run in this tree.
+	 * @param theirs     First leaf of the run in the other tree.
+	 * @param theirLast  Last leaf of the run in the other tree.
+	 * @param other      The other tree.
+	 * @param changes    Where the changes are recorded.
+	 */
+	private void diffEntries(LeafNode<K,V> mine, LeafNode<K,V> myLast, LeafNode<K,V> theirs,
+			LeafNode<K,V> theirLast, BPTree<K,V> other, ChangeFeed<K,V> changes) {
+		int myIndex = 0;
+		int theirIndex = 0;
+		
+		while (true) {
+			// Leaves that line up and are shared by both trees are skipped whole
+			if (mine != null && mine == theirs && myIndex == 0 && theirIndex == 0) {
+				myIndex = mine.size();
+				theirIndex = theirs.size();
+			}
+			
+			if (mine != null && myIndex >= mine.size()) {
+				mine = (mine == myLast) ? null : mine.getNext(this);
+				myIndex = 0;
+				continue;
+			}
+			if (theirs != null && theirIndex >= theirs.size()) {
+				theirs = (theirs == theirLast) ? null : theirs.getNext(other);
+				theirIndex = 0;
+				continue;
+			}
+			if (mine == null && theirs == null)
+				break;
+			
+			KeyVal<K,V> myEntry = (mine == null) ? null : mine.entries.get(myIndex);
+			KeyVal<K,V> theirEntry = (theirs == null) ? null : theirs.entries.get(theirIndex);
+			int cmp = (mine == null) ? 1 : (theirs == null) ? -1
+					: myEntry.getKey().compareTo(theirEntry.getKey());
+			
+			if (cmp < 0) {
+				changes.recordPut(myEntry.getKey(), myEntry.getValue());
+				myIndex++;
+			}
+			else if (cmp > 0) {
+				changes.recordRemove(theirEntry.getKey());
+				theirIndex++;
+			}
+			else {
+				if (!Objects.equals(myEntry.getValue(), theirEntry.getValue()))
+					changes.recordPut(myEntry.getKey(), myEntry.getValue());
+				myIndex++;
+				theirIndex++;
+			}
+		}
+	}
+	
+	/**
+	 * Does one step of compacting the tree, with a default limit on how much
+	 * work is done.
+	 * 
+	 * @see #compact(double, int)
+	 * 
+	 * @param targetFill  How full to pack nodes, from 0 to 1.
+	 * @return            True if the whole tree has been compacted.
+	 */
+	public boolean compact(double targetFill) {
+		return compact(targetFill, 64);
+	}
+	
+	/**
+	 * Does one step of compacting the tree.  After many removes the nodes
+	 * can be left barely more than half full, which wastes memory and makes
+	 * the tree taller than it needs to be.  Compacting packs nodes to the
+	 * target fill by moving entries from each node into the one before it,
+	 * freeing the nodes that are emptied.  Once an inner level is packed
+	 * down to a single node at the root, the tree loses a level.
+	 * 
+	 * Each step packs a bounded run of leaves, plus the inner nodes on the
+	 * path to them, and remembers where it stopped.  The next step carries
+	 * on from there, so a pass over a large tree can be spread out between
+	 * other operations.  Changes made to the tree between steps are fine.
+	 * 
+	 * @param targetFill  How full to pack nodes, from 0 to 1.  Nodes are
+	 *                    never packed fuller than their maximum size or
+	 *                    emptier than their minimum size.
+	 * @param maxNodes    Most nodes to pack on each level in this step.
+	 * @return            True if the pass is finished, false if there is
+	 *                    more to do.
+	 */
+	public boolean compact(double targetFill, int maxNodes) {
+		if (maxNodes < 1)
+			throw new IllegalArgumentException("maxNodes must be at least 1");
+		
+		int perLeaf = fillCount(leafSize, leafHalfSize, targetFill);
+		int perInner = fillCount(innerSize, innerHalfSize, targetFill);
+		
+		root = writable(root);
+		if (root instanceof BPTree.LeafNode) {
+			compactCursor = null;
+			compacting = false;
+			return true;
+		}
+		
+		K start = compacting ? compactCursor : null;
+		compacting = true;
+		
+		// Find the path down to the parent of the leaf the step starts at
+		ArrayList<InnerNode<K,V>> path = new ArrayList<InnerNode<K,V>>();
+		ArrayList<Integer> indexes = new ArrayList<Integer>();
+		K upper = null;  // Smallest key past the parent's subtree
+		
+		@SuppressWarnings("unchecked")
+		InnerNode<K,V> parent = (InnerNode<K,V>)root;
+		while (true) {
+			int index = 0;
+			if (start != null)
+				index = parent.findGreaterIndex(this, makeEntry(start, null));
+			
+			path.add(parent);
+			indexes.add(index);
+			
+			if (!(parent.child(this, index) instanceof BPTree.InnerNode))
+				break;
+			
+			if (index < parent.size()-1)
+				upper = parent.keyAt(this, index);
+			
+			@SuppressWarnings("unchecked")
+			InnerNode<K,V> next = (InnerNode<K,V>)parent.writableChild(this, index);
+			parent = next;
+		}
+		
+		// Pack the leaves, then the inner nodes on the way back up
+		K resumeKey = parent.packChildren(this, indexes.get(path.size()-1), perLeaf, maxNodes);
+		
+		for (int i=path.size()-2; i>=0; i--) {
+			InnerNode<K,V> node = path.get(i);
+			int index = indexes.get(i);
+			
+			Node<K,V> childNode = node.writableChild(this, index);
+			if (childNode.tooSmall(this))
+				node.fixUnderflow(this, index, childNode);
+			
+			// Fill the child before the path, whose subtree is already packed
+			node.packChildren(this, Math.min(Math.max(index-1, 0), node.size()-1), perInner, 1);
+		}
+		
+		while (root instanceof BPTree.InnerNode && root.size() == 1) {
+			collapseRoot();
+		}
+		
+		if (resumeKey == null)
+			resumeKey = upper;
+		
+		compactCursor = resumeKey;
+		compacting = resumeKey != null;
+		return !compacting;
+	}
+	
+	/**
+	 * Turns relaxed balance mode on or off.  Normally a remove that leaves
+	 * a node less than half full fixes it right away, by moving entries
+	 * over from a sibling or merging the two.  When removes keep pushing
+	 * nodes back and forth across the half full mark, the same nodes are
+	 * merged and split over and over.
 	 * 
-	 * @return  Leaf node's maximum size.
+	 * In relaxed balance mode a remove only takes the entry out of its
+	 * leaf.  Nodes left too small are remembered, and are fixed in batches
+	 * by calling rebalance when there is time for it.  Only leaves that are
+	 * emptied, and inner nodes left with one child, are still fixed right
+	 * away.  Turning the mode off fixes everything that is still waiting.
+	 * 
+	 * @see #rebalance(int)
+	 * 
+	 * @param relaxed  True to put off fixing small nodes.
 	 */
-	public int getLeafSize() {
-		return leafSize;
+	public void setRelaxedBalance(boolean relaxed) {
+		relaxedBalance = relaxed;
+		
+		if (!relaxed) {
+			rebalance(Integer.MAX_VALUE);
+		}
 	}
 	
 	/**
-	 * Gets the number of entries stored in the B+ Tree.
+	 * Checks if the tree is in relaxed balance mode.
 	 * 
-	 * @see java.util.Map#size()
-	 *  
-	 * @return  Number of entries in the tree.
+	 * @return  True if fixing small nodes is put off.
 	 */
-	@Override
-	public int size() {
-		return entryCount;
+	public boolean isRelaxedBalance() {
+		return relaxedBalance;
 	}
 	
 	/**
-	 * Increase entry count
+	 * Fixes nodes that were left too small by removes in relaxed balance
+	 * mode.  Paths are fixed in key order, so nodes that are next to each
+	 * other are fixed together.
+	 * 
+	 * The tree is not thread safe, so this has to be called from the same
+	 * thread as everything else, such as from an idle loop or between
+	 * batches of requests.
+	 * 
+	 * @param maxPaths  Most paths from the root to fix.
+	 * @return          How many paths are still waiting to be fixed.
 	 */
-	private void incSize() {
-		entryCount++;
+	public int rebalance(int maxPaths) {
+		for (int i=0; i<maxPaths && !underflowKeys.isEmpty(); i++) {
+			K key = underflowKeys.pollFirstEntry().getKey();
+			
+			root = writable(root);
+			if (root instanceof BPTree.InnerNode) {
+				@SuppressWarnings("unchecked")
+				InnerNode<K,V> innerRoot = (InnerNode<K,V>)root;
+				innerRoot.rebalancePath(this, makeEntry(key, null));
+			}
+			
+			while (root instanceof BPTree.InnerNode && root.size() == 1) {
+				collapseRoot();
+			}
+		}
+		
+		return underflowKeys.size();
 	}
 	
 	/**
-	 * Decrease entry count
+	 * Queues the path to a node that a remove left too small, for
+	 * rebalance to fix.  A node is only queued once, however many removes
+	 * leave it too small, unless the path it was queued with has already
+	 * been taken off the queue.
+	 * 
+	 * @param node  Node that is too small.
+	 * @param key   Key that was removed, which leads to the node.
 	 */
-	private void decSize() {
-		entryCount--;
+	protected void queueUnderflow(Node<K,V> node, K key) {
+		if (node.underflowKey != null && underflowKeys.containsKey(node.underflowKey))
+			return;
+		
+		node.underflowKey = key;
+		Integer count = underflowKeys.get(key);
+		underflowKeys.put(key, (count == null) ? 1 : count + 1);
 	}
 	
 	/**
-	 * Recursively add up number of nodes.
+	 * Takes a node off the queue of nodes to fix, once it has been fixed or
+	 * split.  The path it was queued with stays queued while other nodes on
+	 * the same path are still waiting.
 	 * 
-	 * @return  Node count
+	 * @param node  Node that no longer needs fixing.
 	 */
-	public int countNodes() {
-		return root.countNodes();
+	protected void forgetUnderflow(Node<K,V> node) {
+		K key = node.underflowKey;
+		if (key == null)
+			return;
+		
+		node.underflowKey = null;
+		Integer count = underflowKeys.get(key);
+		if (count == null)
+			return;
+		if (count > 1)
+			underflowKeys.put(key, count - 1);
+		else
+			underflowKeys.remove(key);
 	}
-
+	
 	/**
-	 * Checks if the B+ Tree is empty.
-	 * 
-	 * @see java.util.Map#isEmpty()
+	 * Puts entries that are already sorted by key into the B+ Tree.  Instead
+	 * of descending from the root for every entry, each node hands all of
+	 * the entries that belong under a child to that child at once.
 	 * 
-	 * @return  True if no entries stored.
+	 * @param batch  Entries sorted by key, without duplicate keys.  They are
+	 *               stored in the tree as they are.
 	 */
-	@Override
-	public boolean isEmpty() {
-		return root.isEmpty();
+	protected void insertSorted(List<KeyVal<K,V>> batch) {
+		int from = 0;
+		
+		while (from < batch.size()) {
+			root = writable(root);
+			from = root.insertSorted(this, batch, from, null);
+			
+			if (root.tooLarge(this)) {
+				SplitResult<K,V> sr = root.split(this);
+				
+				InnerNode<K,V> newRoot = createInnerNode();
+				newRoot.makeRoot(sr.midKey, root, sr.splitNode);
+				root = newRoot;
+			}
+		}
 	}
 
 	/**
-	 * Checks if the specified key exists in the B+ Tree.
+	 * Put all of the entries from the specified Map into this B+ Tree.
 	 * 
-	 * @see java.util.Map#containsKey(java.lang.Object)
+	 * The entries are sorted by key and put in as one batch, so the tree
+	 * is descended once for all of them instead of once for each: every
+	 * node hands all of the entries that belong under a child to that child
+	 * at once, and entries that land in the same leaf are put in together.
+	 * A SortedMap in natural key order is already sorted, so it is not
+	 * sorted again.
 	 * 
-	 * @param key  Key to check for.
-	 * @return     True if an entry with this key exists, else false.
+	 * @see java.util.Map#putAll(java.util.Map)
+	 * 
+	 * @param m  Map to copy entries from.
 	 */
-	@SuppressWarnings("unchecked")
 	@Override
-	public boolean containsKey(Object key) {
-		return root.contains((K)key);
+	public void putAll(Map<? extends K, ? extends V> m) {
+		applyBufferedWrites();
+		
+		ArrayList<KeyVal<K,V>> batch = new ArrayList<KeyVal<K,V>>(m.size());
+		
+		for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+			batch.add(makeEntry(entry.getKey(), entry.getValue()));
+		}
+		
+		if (!(m instanceof SortedMap) || ((SortedMap<?,?>)m).comparator() != null) {
+			Collections.sort(batch);
+		}
+		
+		insertSorted(batch);
 	}
-
+	
 	/**
-	 * Check if there is an entry that has the specified value.
-	 * 
-	 * @see java.util.Map#containsValue(java.lang.Object)
+	 * Looks up many keys at once.  The keys are sorted and looked up as one
+	 * batch, so the tree is descended once for all of them instead of once
+	 * for each, and keys that land in the same leaf are looked up together.
 	 * 
-	 * @param value  Value to check for.
-	 * @return       True if an entry has this value, false if not.
+	 * @param keys  Keys to look up.
+	 * @return      Map of the keys that were found to their values, in key
+	 *              order.  Keys that are not in the tree are left out.
 	 */
-	@Override
-	public boolean containsValue(Object value) {
-		LeafNode current = root.getFirstLeaf();
+	public Map<K,V> getAll(Collection<? extends K> keys) {
+		applyBufferedWrites();
 		
-		while (current != null) {
-			for (KeyVal<K,V> entry : current.entries) {
-				if (value.equals(entry.getValue()))
-					return true;
-			}
-			current = current.next;
+		TreeSet<K> sorted = new TreeSet<K>(keys);
+		ArrayList<KeyVal<K,V>> batch = new ArrayList<KeyVal<K,V>>(sorted.size());
+		
+		for (K key : sorted) {
+			batch.add(makeEntry(key, null));
 		}
-		return false;
+		
+		Map<K,V> found = new LinkedHashMap<K,V>();
+		root.getSorted(this, batch, 0, null, found);
+		return found;
 	}
 
 	/**
-	 * Get the value of the entry associated with the specified key.  Returns
-	 * null if not found.
-	 * 
-	 * @see java.util.Map#get(java.lang.Object)
+	 * Clear the map so there are no entries in it.
 	 * 
-	 * @param key  Key of entry to retrieve value from.
-	 * @return     The value of the entry with this key, or null if not found.
+	 * @see java.util.Map#clear()
 	 */
-	@SuppressWarnings("unchecked")
 	@Override
-	public V get(Object key) {
-		return root.get((K)key);
+	public void clear() {
+		startOver();
+		freeLeaves.clear();
+		freeInnerNodes.clear();
+		compactCursor = null;
+		compacting = false;
+		underflowKeys.clear();
+		root = createLeafNode();
+		entryCount = 0;
+		if (changeFeed != null)
+			changeFeed.recordClear();
 	}
 	
 	/**
-	 * Get a collection of entries with keys that are less than or equal to the
-	 * specified key.
+	 * Replaces the contents of the tree with entries that are already sorted
+	 * by key.  Instead of inserting the entries one at a time, the tree is
+	 * built from the bottom up: leaves are filled in order, then each level
+	 * of inner nodes is built on top of the level below it.
 	 * 
-	 * @param key  Key to stop on
-	 * @return     A collection of entries
+	 * If the same key shows up more than once in a row, the last value wins.
+	 * 
+	 * @param sorted  Entries in increasing order of key.
+	 * @throws IllegalArgumentException  If the entries are not sorted.
 	 */
-	public Collection<Entry<K,V>> getFirstToKey(Object key) {
-		ArrayList<Entry<K,V>> values = new ArrayList<Entry<K,V>>();
-		
-		LeafNode current = root.getFirstLeaf();
-		
-		while (current != null) {
-			for (KeyVal<K,V> entry : current.entries) {
-				@SuppressWarnings("unchecked")
-				int cmp = entry.getKey().compareTo((K)key);
-				
-				if (cmp <= 0)
-					values.add(entry);
-				
-				if (cmp >= 0)
-					return values;
-			}
-			current = current.next;
-		}
-		
-		return values;
+	public void bulkLoad(Iterator<? extends Entry<K,V>> sorted) {
+		bulkLoad(sorted, 1.0);
 	}
 	
 	/**
-	 * Get a collection of entries with keys that are greater than or equal to
-	 * the specified key.
+	 * Replaces the contents of the tree with entries that are already sorted
+	 * by key, filling nodes only part way.  Leaving room in the nodes makes
+	 * the first inserts after loading less likely to split them.
 	 * 
-	 * @param key  Key to start from
-	 * @return     A collection of entries
+	 * @see #bulkLoad(Iterator)
+	 * 
+	 * @param sorted      Entries in increasing order of key.
+	 * @param fillFactor  How full to make each node, from 0 to 1.  Nodes are
+	 *                    never filled less than half way.
+	 * @throws IllegalArgumentException  If the entries are not sorted.
 	 */
-	public Collection<Entry<K,V>> getKeyToLast(Object key) {
-		ArrayList<Entry<K,V>> values = new ArrayList<Entry<K,V>>();
+	public void bulkLoad(Iterator<? extends Entry<K,V>> sorted, double fillFactor) {
+		startOver();
+		if (changeFeed != null)
+			changeFeed.recordClear();
 		
-		@SuppressWarnings("unchecked")
-		LeafNode current = root.getLeaf((K)key);
+		int perLeaf = fillCount(leafSize, leafHalfSize, fillFactor);
+		int perInner = Math.max(2, fillCount(innerSize, innerHalfSize, fillFactor));
 		
-		while (current != null) {
-			for (KeyVal<K,V> entry : current.entries) {
-				@SuppressWarnings("unchecked")
-				int cmp = entry.getKey().compareTo((K)key);
+		// Nodes of the level being built and the key separating each node
+		// from the node before it (the first one has none)
+		ArrayList<Node<K,V>> level = new ArrayList<Node<K,V>>();
+		ArrayList<K> lowKeys = new ArrayList<K>();
+		
+		entryCount = 0;
+		LeafNode<K,V> leaf = createLeafNode();
+		KeyVal<K,V> last = null;
+		
+		lowKeys.add(null);
+		
+		while (sorted.hasNext()) {
+			Entry<K,V> next = sorted.next();
+			KeyVal<K,V> entry = makeEntry(next.getKey(), next.getValue());
+			
+			if (last != null) {
+				int cmp = entry.getKey().compareTo(last.getKey());
 				
-				if (cmp >= 0)
-					values.add(entry);
+				if (cmp < 0) {
+					throw new IllegalArgumentException("Entries are not sorted: "
+							+ entry.getKey() + " after " + last.getKey());
+				}
+				else if (cmp == 0) {
+					leaf.entries.set(leaf.size()-1, entry);
+					recordPut(entry);
+					last = entry;
+					continue;
+				}
 			}
-			current = current.next;
+			
+			if (leaf.size() == perLeaf) {
+				LeafNode<K,V> nextLeaf = createLeafNode();
+				leaf.next = nextLeaf;
+				nextLeaf.prev = leaf;
+				
+				level.add(leaf);
+				lowKeys.add(separatorKey(last.getKey(), entry.getKey()));
+				leaf = nextLeaf;
+			}
+			
+			leaf.entries.add(entry);
+			incSize();
+			recordPut(entry);
+			last = entry;
 		}
+		level.add(leaf);
 		
-		return values;
-	}
-	
-	/**
-	 * Get a collection of entries that have keys that are greater than or
-	 * equal to key1 and are less than or equal to key2.
-	 * 
-	 * @param key1  Key to start from
-	 * @param key2  Key to end from
-	 * @return      Collection of entries
-	 */
-	public Collection<Entry<K,V>> getKeyToKey(Object key1, Object key2) {
-		ArrayList<Entry<K,V>> values = new ArrayList<Entry<K,V>>();
+		balanceLastNodes(level, lowKeys);
 		
-		@SuppressWarnings("unchecked")
-		LeafNode current = root.getLeaf((K)key1);
+		for (Node<K,V> node : level) {
+			@SuppressWarnings("unchecked")
+			LeafNode<K,V> filled = (LeafNode<K,V>)node;
+			filled.rebuildFilter(this);
+		}
 		
-		// I know this can be done in a more optimal way, but I'm not sure if
-		// it would be worth it, at the moment, to focus on this at the moment.
-		while (current != null) {
-			for (KeyVal<K,V> entry : current.entries) {
-				@SuppressWarnings("unchecked")
-				int cmp1 = entry.getKey().compareTo((K)key1);
-				@SuppressWarnings("unchecked")
-				int cmp2 = entry.getKey().compareTo((K)key2);
+		// Build levels of inner nodes until there is only one node left
+		while (level.size() > 1) {
+			ArrayList<Node<K,V>> upperLevel = new ArrayList<Node<K,V>>();
+			ArrayList<K> upperLowKeys = new ArrayList<K>();
+			
+			for (int start=0; start<level.size(); start+=perInner) {
+				int end = Math.min(start + perInner, level.size());
+				InnerNode<K,V> node = createInnerNode();
 				
-				if (cmp1 >= 0 && cmp2 <= 0)
-					values.add(entry);
+				for (int i=start; i<end-1; i++) {
+					node.children.add(new KeyVal<K,Node<K,V>>(lowKeys.get(i+1), level.get(i)));
+				}
+				node.children.add(new KeyVal<K,Node<K,V>>(level.get(end-1)));
+				node.compressKeys(this);
 				
-				if (cmp2 >= 0)
-					return values;
+				upperLevel.add(node);
+				upperLowKeys.add(lowKeys.get(start));
 			}
-			current = current.next;
+			
+			balanceLastNodes(upperLevel, upperLowKeys);
+			
+			level = upperLevel;
+			lowKeys = upperLowKeys;
 		}
 		
-		return values;
+		root = level.get(0);
+		
+		// Count every subtree while it is known to be in memory
+		root.countEntries(this);
 	}
-
+	
 	/**
-	 * Puts an entry into the B+ Tree with a specified
-	 * key and value.
-	 * 
-	 * @see java.util.Map#put(java.lang.Object, java.lang.Object)
+	 * Gets how many entries to put in a node when filling it part way.
 	 * 
-	 * @param key    Key of the entry
-	 * @param value  Value of the entry
-	 * @return       Value of the entry stored
+	 * @param size        Maximum size of the node
+	 * @param halfSize    Minimum size of the node
+	 * @param fillFactor  How full to make the node, from 0 to 1.
+	 * @return  Number of entries
 	 */
-	@Override
-	public V put(K key, V value) {
-		// Create entry and insert it
-		KeyVal<K,V> entry = new KeyVal<K,V>(key, value);
-		V oldVal = root.insert(entry);
-		
-		if (root.tooLarge()) {
-			SplitResult sr = root.split();
-			
-			InnerNode newRoot = new InnerNode(this);
-			newRoot.makeRoot(sr.midKey, root, sr.splitNode);
-			root = newRoot;
-		}
-		
-		return oldVal;
+	protected int fillCount(int size, int halfSize, double fillFactor) {
+		return Math.max(Math.max(1, halfSize), Math.min(size, (int)Math.round(size * fillFactor)));
 	}
-
+	
 	/**
-	 * Remove entry that has this key.  If the entry is not in the B+ Tree
-	 * nothing will happen.
+	 * The last node of a level built from the bottom up can be left too
+	 * small.  If so, it is redistributed with, or merged into, the node
+	 * before it.
 	 * 
-	 * @see java.util.Map#remove(java.lang.Object)
-	 * 
-	 * @param key  Key of entry to remove.
-	 * @return     Value of entry that had been removed, or null if not found.
+	 * @param level    Nodes in the level
+	 * @param lowKeys  Key separating each node from the one before it.
 	 */
-	@Override
-	public V remove(Object key) {
-		@SuppressWarnings("unchecked")
-		K k = (K)key;
+	private void balanceLastNodes(ArrayList<Node<K,V>> level, ArrayList<K> lowKeys) {
+		int lastIndex = level.size()-1;
 		
-		V oldVal = root.remove(k);
-		
-		if (root instanceof BPTree.InnerNode && root.size() == 1) {
-			@SuppressWarnings("unchecked")
-			InnerNode oldRoot = (InnerNode)root; 
-			root = oldRoot.children.get(0).getValue();
+		if (lastIndex == 0 || !level.get(lastIndex).tooSmall(this)) {
+			return;
 		}
 		
-		return oldVal;
-	}
-
-	/**
-	 * Put all of the entries from the specified Map into this B+ Tree.
-	 * 
-	 * @see java.util.Map#putAll(java.util.Map)
-	 * 
-	 * @param m  Map to copy entries from.
-	 */
-	@Override
-	public void putAll(Map<? extends K, ? extends V> m) {
-		for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
-			put(entry.getKey(), entry.getValue());
+		Node<K,V> first = level.get(lastIndex-1);
+		Node<K,V> second = level.get(lastIndex);
+		K parentKey = lowKeys.get(lastIndex);
+		
+		RedistResult<K,V> rr = first.redistribute(this, second, parentKey);
+		if (rr.redistSuccess) {
+			lowKeys.set(lastIndex, rr.middleKey);
+		}
+		else {
+			first.merge(this, second, parentKey);
+			level.remove(lastIndex);
+			lowKeys.remove(lastIndex);
 		}
-	}
-
-	/**
-	 * Clear the map so there are no entries in it.
-	 * 
-	 * @see java.util.Map#clear()
-	 */
-	@Override
-	public void clear() {
-		root = new LeafNode(this);
 	}
 
 	/**
@@ -1409,15 +5224,17 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 	 */
 	@Override
 	public Set<K> keySet() {
+		applyBufferedWrites();
+		
 		HashSet<K> keys = new HashSet<K>(entryCount);
 		
-		LeafNode current = root.getFirstLeaf();
+		LeafNode<K,V> current = root.getFirstLeaf(this);
 		
 		while (current != null) {
 			for (KeyVal<K,V> entry : current.entries) {
 				keys.add(entry.getKey());
 			}
-			current = current.next;
+			current = current.getNext(this);
 		}
 		
 		return keys;
@@ -1432,22 +5249,56 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 	 */
 	@Override
 	public Collection<V> values() {
+		applyBufferedWrites();
+		
 		ArrayList<V> values = new ArrayList<V>(entryCount);
 		
-		LeafNode current = root.getFirstLeaf();
+		LeafNode<K,V> current = root.getFirstLeaf(this);
 		
 		while (current != null) {
 			for (KeyVal<K,V> entry : current.entries) {
 				values.add(entry.getValue());
 			}
-			current = current.next;
+			current = current.getNext(this);
 		}
 		
 		return values;
 	}
 
 	/**
-	 * Returns a set of entries from the B+ Tree.
+	 * Makes a read-only copy of the B+ Tree that is packed into flat arrays.
+	 * It is smaller and faster to search than the tree, and can be used once
+	 * the tree is not going to change anymore.  Later changes to the tree
+	 * do not show up in the copy.
+	 * 
+	 * @see FrozenBPTree
+	 * 
+	 * @return  Read-only copy of the tree
+	 */
+	public FrozenBPTree<K,V> freeze() {
+		applyBufferedWrites();
+		
+		Object[] keys = new Object[entryCount];
+		Object[] values = new Object[keys.length];
+		int count = 0;
+		
+		LeafNode<K,V> current = root.getFirstLeaf(this);
+		
+		while (current != null) {
+			for (KeyVal<K,V> entry : current.entries) {
+				keys[count] = entry.getKey();
+				values[count] = entry.getValue();
+				count++;
+			}
+			current = current.getNext(this);
+		}
+		
+		return new FrozenBPTree<K,V>(keys, values);
+	}
+
+	/**
+	 * Returns a set of entries from the B+ Tree.  The entries are copies,
+	 * and setting the value of one puts the new value into the tree.
 	 * 
 	 * @see java.util.Map#entrySet()
 	 * 
@@ -1455,24 +5306,68 @@ public class BPTree<K extends Comparable<K>, V> implements Map<K, V> {
 	 */
 	@Override
 	public Set<java.util.Map.Entry<K, V>> entrySet() {
-		HashSet<Entry<K,V>> entries = new HashSet<Entry<K,V>>(entryCount);
+		applyBufferedWrites();
+		
+		final ArrayList<TreeEntry> entries = new ArrayList<TreeEntry>(entryCount);
 		
-		LeafNode current = root.getFirstLeaf();
+		LeafNode<K,V> current = root.getFirstLeaf(this);
 		
 		while (current != null) {
 			for (KeyVal<K,V> entry : current.entries) {
-				entries.add(entry);
+				entries.add(new TreeEntry(entry.getKey(), entry.getValue()));
 			}
-			current = current.next;
+			current = current.getNext(this);
 		}
 		
-		return entries;
+		// The copies are already in key order, so nothing is hashed
+		return new AbstractSet<Entry<K,V>>() {
+			@Override
+			public int size() {
+				return entries.size();
+			}
+			
+			@SuppressWarnings("unchecked")
+			@Override
+			public boolean contains(Object o) {
+				if (!(o instanceof Entry))
+					return false;
+				Entry<?,?> entry = (Entry<?,?>)o;
+				K key = (K)entry.getKey();
+				int low = 0;
+				int high = entries.size();
+				while (low < high) {
+					int mid = (low + high) >>> 1;
+					if (entries.get(mid).getKey().compareTo(key) < 0)
+						low = mid + 1;
+					else
+						high = mid;
+				}
+				return low < entries.size() && entries.get(low).equals(entry);
+			}
+			
+			@Override
+			public Iterator<Entry<K,V>> iterator() {
+				final Iterator<TreeEntry> it = entries.iterator();
+				return new Iterator<Entry<K,V>>() {
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+					
+					@Override
+					public Entry<K,V> next() {
+						return it.next();
+					}
+				};
+			}
+		};
 	}
 	
 	/**
 	 * Prints the full tree to System.out -- for debugging.
 	 */
 	public void printFullTree() {
-		root.printFullTree(0);
+		applyBufferedWrites();
+		root.printFullTree(this, 0);
 	}
 }
@@ -0,0 +1,153 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A Bloom filter over the keys of one leaf.  It answers whether a key might
+ * be in the leaf: a key that was added is always reported, and a key that
+ * was not is only reported by chance, so most lookups of missing keys can
+ * be turned away without searching, or even reading, the leaf.
+ * 
+ * Keys cannot be taken back out, so a filter only gets less useful as keys
+ * are removed, until the leaf rebuilds it.
+ * 
+ * @author Nathan
+ *
+ */
+public class BloomFilter {
+	private long[] bits;    // Bit set, 64 bits per long
+	private int hashCount;  // Number of bits set for each key
+	
+	/**
+	 * BloomFilter Constructor
+	 * 
+	 * @param keys        Most keys the filter is meant to hold.
+	 * @param bitsPerKey  Bits of filter for each key.  10 bits gives about
+	 *                    one false positive in a hundred.
+	 */
+	public BloomFilter(int keys, int bitsPerKey) {
+		bits = new long[Math.max(1, (keys * bitsPerKey + 63) / 64)];
+		hashCount = Math.max(1, Math.min(16, (int)Math.round(bitsPerKey * Math.log(2))));
+	}
+	
+	/**
+	 * BloomFilter Constructor
+	 * 
+	 * @param bits       Bit set to use.
+	 * @param hashCount  Number of bits set for each key.
+	 */
+	private BloomFilter(long[] bits, int hashCount) {
+		this.bits = bits;
+		this.hashCount = hashCount;
+	}
+	
+	/**
+	 * Adds a key to the filter.
+	 * 
+	 * @param key  Key to add.
+	 */
+	public void add(Object key) {
+		long hash = mix(key.hashCode());
+		int h1 = (int)hash;
+		int h2 = (int)(hash >>> 32) | 1;
+		long size = bits.length * 64L;
+		
+		for (int i=0; i<hashCount; i++) {
+			int bit = (int)(((h1 + i*h2) & 0xFFFFFFFFL) % size);
+			bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+	
+	/**
+	 * Checks if a key might have been added to the filter.
+	 * 
+	 * @param key  Key to check for.
+	 * @return     False if the key was definitely not added.
+	 */
+	public boolean mightContain(Object key) {
+		long hash = mix(key.hashCode());
+		int h1 = (int)hash;
+		int h2 = (int)(hash >>> 32) | 1;
+		long size = bits.length * 64L;
+		
+		for (int i=0; i<hashCount; i++) {
+			int bit = (int)(((h1 + i*h2) & 0xFFFFFFFFL) % size);
+			if ((bits[bit >>> 6] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Removes every key from the filter.
+	 */
+	public void clear() {
+		Arrays.fill(bits, 0);
+	}
+	
+	/**
+	 * Makes a copy of the filter.
+	 * 
+	 * @return  Filter with the same keys.
+	 */
+	public BloomFilter copy() {
+		return new BloomFilter(bits.clone(), hashCount);
+	}
+	
+	/**
+	 * Writes the filter, so it can be read back with load.
+	 * 
+	 * @param out  Where to write.
+	 * @throws IOException  If there is a problem writing.
+	 */
+	public void save(DataOutput out) throws IOException {
+		out.writeByte(hashCount);
+		out.writeInt(bits.length);
+		for (long word : bits) {
+			out.writeLong(word);
+		}
+	}
+	
+	/**
+	 * Reads a filter written by save.
+	 * 
+	 * @param data  Buffer to read from.
+	 * @return      The filter.
+	 */
+	public static BloomFilter load(ByteBuffer data) {
+		int hashCount = data.get();
+		long[] bits = new long[data.getInt()];
+		for (int i=0; i<bits.length; i++) {
+			bits[i] = data.getLong();
+		}
+		return new BloomFilter(bits, hashCount);
+	}
+	
+	/**
+	 * Estimates the memory used by the filter.
+	 * 
+	 * @see TreeStats
+	 * 
+	 * @return  Estimated bytes
+	 */
+	public long estimatedBytes() {
+		return TreeStats.align(TreeStats.OBJECT_HEADER + TreeStats.REFERENCE + 4)
+				+ TreeStats.arrayBytes(bits.length, 8);
+	}
+	
+	/**
+	 * Spreads the bits of a hash code over a long, so keys with hash codes
+	 * that are close together, like small Integers, set unrelated bits.
+	 * 
+	 * @param hashCode  Hash code of a key.
+	 * @return          Mixed hash.
+	 */
+	private static long mix(int hashCode) {
+		long h = hashCode * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 32;
+		h *= 0xC2B2AE3D27D4EB4FL;
+		h ^= h >>> 29;
+		return h;
+	}
+}
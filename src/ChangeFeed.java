@@ -0,0 +1,364 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An ordered record of the changes made to a B+ Tree, for keeping a copy of
+ * the tree up to date somewhere else.  Every put, remove, removed range and
+ * clear is given the next sequence number.  The changes after a sequence
+ * number can be written to a stream, read back on the other side, and
+ * applied to the copy in batches, so only the changes have to be sent
+ * instead of the whole tree.
+ * 
+ * A feed is started with BPTree.enableChangeFeed() and only holds the
+ * changes made after that.  Loading a tree from a file is not recorded, so
+ * a copy should start from the same file.  Changes are kept until they are
+ * discarded with discardThrough, once every copy has them.
+ * 
+ * @author Nathan
+ *
+ * @param <K>  Type of the key
+ * @param <V>  Type of the value
+ */
+public class ChangeFeed<K extends Comparable<K>, V> {
+	public static final byte PUT = 'P';           // Key now has value
+	public static final byte REMOVE = 'R';        // Key was removed
+	public static final byte REMOVE_RANGE = 'G';  // Keys from key to endKey were removed
+	public static final byte CLEAR = 'C';         // Every key was removed
+	
+	/**
+	 * One change made to a tree.
+	 * 
+	 * @author Nathan
+	 *
+	 * @param <K>  Type of the key
+	 * @param <V>  Type of the value
+	 */
+	public static class Change<K extends Comparable<K>, V> {
+		private long sequence;
+		private byte type;
+		private K key;
+		private K endKey;
+		private V value;
+		
+		/**
+		 * Change Constructor
+		 * 
+		 * @param sequence  Sequence number of the change.
+		 * @param type      PUT, REMOVE, REMOVE_RANGE or CLEAR.
+		 * @param key       Key changed, or first key of a removed range.
+		 * @param endKey    Last key of a removed range, or null if the range
+		 *                  goes to the end.
+		 * @param value     New value of a PUT.
+		 */
+		Change(long sequence, byte type, K key, K endKey, V value) {
+			this.sequence = sequence;
+			this.type = type;
+			this.key = key;
+			this.endKey = endKey;
+			this.value = value;
+		}
+		
+		/**
+		 * @return  Sequence number of the change.
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+		
+		/**
+		 * @return  PUT, REMOVE, REMOVE_RANGE or CLEAR.
+		 */
+		public byte getType() {
+			return type;
+		}
+		
+		/**
+		 * @return  Key changed, or first key of a removed range.
+		 */
+		public K getKey() {
+			return key;
+		}
+		
+		/**
+		 * @return  Last key of a removed range, or null if it goes to the end.
+		 */
+		public K getEndKey() {
+			return endKey;
+		}
+		
+		/**
+		 * @return  New value of a PUT.
+		 */
+		public V getValue() {
+			return value;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public String toString() {
+			switch (type) {
+			case PUT:
+				return sequence + ": put " + key + " = " + value;
+			case REMOVE:
+				return sequence + ": remove " + key;
+			case REMOVE_RANGE:
+				return sequence + ": remove " + key + " to " + (endKey == null ? "end" : endKey);
+			default:
+				return sequence + ": clear";
+			}
+		}
+	}
+	
+	private ArrayList<Change<K,V>> changes = new ArrayList<Change<K,V>>();
+	private long nextSequence = 1;  // Sequence number of the next change
+	
+	/**
+	 * Records that a key has a new value.
+	 * 
+	 * @param key    Key changed.
+	 * @param value  New value.
+	 */
+	void recordPut(K key, V value) {
+		changes.add(new Change<K,V>(nextSequence++, PUT, key, null, value));
+	}
+	
+	/**
+	 * Records that a key was removed.
+	 * 
+	 * @param key  Key removed.
+	 */
+	void recordRemove(K key) {
+		changes.add(new Change<K,V>(nextSequence++, REMOVE, key, null, null));
+	}
+	
+	/**
+	 * Records that a range of keys was removed.
+	 * 
+	 * @param lo  First key removed.
+	 * @param hi  Last key removed, or null for every key from lo on.
+	 */
+	void recordRemoveRange(K lo, K hi) {
+		changes.add(new Change<K,V>(nextSequence++, REMOVE_RANGE, lo, hi, null));
+	}
+	
+	/**
+	 * Records that every key was removed.
+	 */
+	void recordClear() {
+		changes.add(new Change<K,V>(nextSequence++, CLEAR, null, null, null));
+	}
+	
+	/**
+	 * Gets the sequence number of the last change recorded.
+	 * 
+	 * @return  Sequence number, or 0 if nothing has been recorded.
+	 */
+	public long lastSequence() {
+		return nextSequence - 1;
+	}
+	
+	/**
+	 * Gets the changes made after a sequence number.
+	 * 
+	 * @param sequence  Last sequence number already applied to a copy.
+	 * @return          Changes in order.
+	 * @throws IllegalStateException  If some of the changes were discarded.
+	 */
+	public List<Change<K,V>> changesSince(long sequence) {
+		int first = changes.size() - (int)(lastSequence() - sequence);
+		
+		if (first < 0) {
+			throw new IllegalStateException("Changes after " + sequence
+					+ " have already been discarded");
+		}
+		
+		return new ArrayList<Change<K,V>>(changes.subList(Math.min(first, changes.size()),
+				changes.size()));
+	}
+	
+	/**
+	 * Forgets the changes up to and including a sequence number, once every
+	 * copy of the tree has them.
+	 * 
+	 * @param sequence  Last sequence number to discard.
+	 */
+	public void discardThrough(long sequence) {
+		int count = changes.size() - (int)(lastSequence() - sequence);
+		changes.subList(0, Math.max(0, Math.min(count, changes.size()))).clear();
+	}
+	
+	/**
+	 * Writes the changes made after a sequence number to a stream.
+	 * 
+	 * @param out         Stream to write to.
+	 * @param sequence    Last sequence number already applied to a copy.
+	 * @param keyCodec    Converts keys to binary.
+	 * @param valueCodec  Converts values to binary.
+	 * @return            Sequence number of the last change written.
+	 * @throws IOException  If there is a problem writing.
+	 */
+	public long writeSince(OutputStream out, long sequence, Codec<K> keyCodec,
+			Codec<V> valueCodec) throws IOException {
+		write(changesSince(sequence), out, keyCodec, valueCodec);
+		return lastSequence();
+	}
+	
+	/**
+	 * Writes a batch of changes to a stream.
+	 * 
+	 * @param batch       Changes to write.
+	 * @param out         Stream to write to.
+	 * @param keyCodec    Converts keys to binary.
+	 * @param valueCodec  Converts values to binary.
+	 * @throws IOException  If there is a problem writing.
+	 */
+	public static <K extends Comparable<K>, V> void write(List<Change<K,V>> batch,
+			OutputStream out, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(batch.size());
+		
+		for (Change<K,V> change : batch) {
+			data.writeLong(change.sequence);
+			data.writeByte(change.type);
+			
+			if (change.type == PUT) {
+				keyCodec.encode(change.key, data);
+				data.writeBoolean(change.value != null);
+				if (change.value != null)
+					valueCodec.encode(change.value, data);
+			}
+			else if (change.type == REMOVE) {
+				keyCodec.encode(change.key, data);
+			}
+			else if (change.type == REMOVE_RANGE) {
+				keyCodec.encode(change.key, data);
+				data.writeBoolean(change.endKey != null);
+				if (change.endKey != null)
+					keyCodec.encode(change.endKey, data);
+			}
+		}
+		
+		data.flush();
+	}
+	
+	/**
+	 * Reads a batch of changes written by write or writeSince.
+	 * 
+	 * @param in          Stream to read from.
+	 * @param keyCodec    Converts keys from binary.
+	 * @param valueCodec  Converts values from binary.
+	 * @return            Changes in order.
+	 * @throws IOException  If there is a problem reading.
+	 */
+	public static <K extends Comparable<K>, V> List<Change<K,V>> read(InputStream in,
+			Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		int count = data.readInt();
+		ArrayList<Change<K,V>> batch = new ArrayList<Change<K,V>>(count);
+		
+		for (int i=0; i<count; i++) {
+			long sequence = data.readLong();
+			byte type = data.readByte();
+			K key = null;
+			K endKey = null;
+			V value = null;
+			
+			if (type == PUT) {
+				key = keyCodec.decode(data);
+				if (data.readBoolean())
+					value = valueCodec.decode(data);
+			}
+			else if (type == REMOVE) {
+				key = keyCodec.decode(data);
+			}
+			else if (type == REMOVE_RANGE) {
+				key = keyCodec.decode(data);
+				if (data.readBoolean())
+					endKey = keyCodec.decode(data);
+			}
+			else if (type != CLEAR) {
+				throw new IOException("Unknown change type " + type);
+			}
+			
+			batch.add(new Change<K,V>(sequence, type, key, endKey, value));
+		}
+		
+		return batch;
+	}
+	
+	/**
+	 * Applies a batch of changes to a tree.  Puts and removes of single
+	 * keys are gathered up, with only the last change to each key kept, and
+	 * the puts go into the tree as one sorted batch.
+	 * 
+	 * @param batch  Changes in order.
+	 * @param tree   Tree to change.
+	 * @return       Sequence number of the last change, or 0 if there were
+	 *               none.
+	 */
+	public static <K extends Comparable<K>, V> long apply(List<Change<K,V>> batch,
+			BPTree<K,V> tree) {
+		TreeMap<K,Change<K,V>> pending = new TreeMap<K,Change<K,V>>();
+		long sequence = 0;
+		
+		for (Change<K,V> change : batch) {
+			if (change.type == PUT || change.type == REMOVE) {
+				pending.put(change.key, change);
+			}
+			else {
+				applyPending(pending, tree);
+				
+				if (change.type == CLEAR) {
+					tree.clear();
+				}
+				else if (change.endKey != null) {
+					tree.removeRange(change.key, change.endKey);
+				}
+				else {
+					// Let go of the cut off part, and of the tree's file if
+					// the part still reads from it
+					tree.splitAt(change.key).clear();
+				}
+			}
+			
+			sequence = change.sequence;
+		}
+		
+		applyPending(pending, tree);
+		return sequence;
+	}
+	
+	/**
+	 * Applies gathered puts and removes to a tree, and forgets them.
+	 * 
+	 * @param pending  Last change to each key, by key.
+	 * @param tree     Tree to change.
+	 */
+	private static <K extends Comparable<K>, V> void applyPending(
+			TreeMap<K,Change<K,V>> pending, BPTree<K,V> tree) {
+		TreeMap<K,V> puts = new TreeMap<K,V>();
+		
+		for (Map.Entry<K,Change<K,V>> entry : pending.entrySet()) {
+			Change<K,V> change = entry.getValue();
+			if (change.type == PUT) {
+				puts.put(change.key, change.value);
+			}
+			else {
+				tree.remove(change.key);
+			}
+		}
+		
+		if (!puts.isEmpty())
+			tree.putAll(puts);
+		pending.clear();
+	}
+}
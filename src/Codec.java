@@ -0,0 +1,59 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Interface for converting a data object to and from its binary form.
+ * 
+ * This is the binary counterpart of StringParseInterface.  It is typed, so
+ * no casts are needed, and values never have to go through a String on their
+ * way to or from a file or buffer.
+ * 
+ * @author Nathan
+ *
+ * @param <T>  Type of object that is encoded
+ */
+public interface Codec<T> {
+	/**
+	 * Writes an object to a binary output.
+	 * 
+	 * @param value  Object to write.
+	 * @param out    Output to write the object's data to.
+	 * @throws IOException  If there is a problem writing.
+	 */
+	public void encode(T value, DataOutput out) throws IOException;
+	
+	/**
+	 * Reads an object from a binary input.
+	 * 
+	 * @param in  Input to read the object's data from.
+	 * @return    Object that was read.
+	 * @throws IOException  If there is a problem reading.
+	 */
+	public T decode(DataInput in) throws IOException;
+	
+	/**
+	 * Writes an object into a buffer at the buffer's current position.
+	 * 
+	 * @param value   Object to write.
+	 * @param buffer  Buffer to write the object's data to.
+	 */
+	public void encode(T value, ByteBuffer buffer);
+	
+	/**
+	 * Reads an object from a buffer at the buffer's current position.
+	 * 
+	 * @param buffer  Buffer to read the object's data from.
+	 * @return        Object that was read.
+	 */
+	public T decode(ByteBuffer buffer);
+	
+	/**
+	 * Gets the number of bytes encoding the object will take.
+	 * 
+	 * @param value  Object to measure.
+	 * @return       Size of the encoded object in bytes.
+	 */
+	public int encodedSize(T value);
+}
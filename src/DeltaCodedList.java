@@ -0,0 +1,363 @@
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A list of leaf entries with Long keys that stores each key as a bit packed
+ * difference from the smallest key.
+ * 
+ * Keys in a leaf are sorted and, for things like timestamps, close together.
+ * Every key is stored as key - base using only as many bits as the largest
+ * difference needs, so all keys take the same number of bits and any key can
+ * be read directly by its index.  That keeps binary search possible without
+ * decoding the whole leaf.
+ * 
+ * A new key is written in place if its difference fits in the current number
+ * of bits.  Otherwise all of the keys are packed again with a new base or a
+ * larger number of bits.
+ * 
+ * @author Nathan
+ *
+ * @param <V>  Type of the value
+ */
+public class DeltaCodedList<V> extends AbstractList<KeyVal<Long,V>>
+		implements LeafEntryList<Long,V> {
+	
+	private long base = 0;      // Smallest key, every key is stored as key - base
+	private int bits = 0;       // Bits used for each difference
+	private long[] packed;      // Differences, packed one after another
+	private Object[] values;
+	private int size = 0;
+	
+	/**
+	 * DeltaCodedList Constructor
+	 * 
+	 * @param capacity  Number of entries to make room for.
+	 */
+	public DeltaCodedList(int capacity) {
+		packed = new long[Math.max(1, capacity / 4)];
+		values = new Object[Math.max(1, capacity)];
+	}
+	
+	/**
+	 * Creates a leaf format that stores keys in delta coded lists.
+	 * 
+	 * @return  Leaf format for BPTree.setLeafFormat
+	 */
+	public static <V> LeafFormat<Long,V> format() {
+		return new LeafFormat<Long,V>() {
+			@Override
+			public List<KeyVal<Long,V>> newEntries(int capacity) {
+				return new DeltaCodedList<V>(capacity);
+			}
+		};
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * A new KeyVal is created every time.
+	 */
+	@Override
+	public KeyVal<Long,V> get(int index) {
+		checkIndex(index, size);
+		return new KeyVal<Long,V>(keyAt(index), valueAt(index));
+	}
+	
+	/**
+	 * Gets the key at an index without creating a KeyVal.
+	 * 
+	 * @param index  Index of the key
+	 * @return       Key
+	 */
+	public long keyAt(int index) {
+		return base + getDelta(index);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public KeyVal<Long,V> set(int index, KeyVal<Long,V> entry) {
+		checkIndex(index, size);
+		
+		if (keyAt(index) != entry.getKey()) {
+			KeyVal<Long,V> old = remove(index);
+			add(index, entry);
+			return old;
+		}
+		
+		KeyVal<Long,V> old = get(index);
+		values[index] = entry.getValue();
+		return old;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void add(int index, KeyVal<Long,V> entry) {
+		checkIndex(index, size+1);
+		
+		long key = entry.getKey();
+		
+		if (size == 0) {
+			base = key;
+			bits = 0;
+		}
+		else if (key < base || !fits(key - base)) {
+			repack(key);
+		}
+		
+		ensureCapacity(size + 1);
+		
+		// Move the following keys along by one
+		for (int i=size-1; i>=index; i--) {
+			setDelta(i+1, getDelta(i));
+		}
+		setDelta(index, key - base);
+		
+		System.arraycopy(values, index, values, index+1, size-index);
+		values[index] = entry.getValue();
+		size++;
+		modCount++;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * The base and number of bits are left alone, since every remaining key
+	 * still fits.
+	 */
+	@Override
+	public KeyVal<Long,V> remove(int index) {
+		KeyVal<Long,V> old = get(index);
+		
+		for (int i=index; i<size-1; i++) {
+			setDelta(i, getDelta(i+1));
+		}
+		
+		System.arraycopy(values, index+1, values, index, size-index-1);
+		size--;
+		values[size] = null;
+		modCount++;
+		
+		return old;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * Moves the following keys along once, instead of once for every
+	 * removed entry.
+	 */
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		if (fromIndex >= toIndex)
+			return;
+		
+		int count = toIndex - fromIndex;
+		for (int i=toIndex; i<size; i++) {
+			setDelta(i-count, getDelta(i));
+		}
+		
+		System.arraycopy(values, toIndex, values, fromIndex, size-toIndex);
+		Arrays.fill(values, size-count, size, null);
+		size -= count;
+		modCount++;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long estimatedBytes() {
+		return TreeStats.align(TreeStats.OBJECT_HEADER + 2*TreeStats.REFERENCE + 8 + 3*4)
+				+ TreeStats.arrayBytes(packed.length, 8)
+				+ TreeStats.arrayBytes(values.length, TreeStats.REFERENCE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void clear() {
+		Arrays.fill(values, 0, size, null);
+		size = 0;
+		bits = 0;
+		modCount++;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * Binary searches the packed differences, so no keys are boxed.
+	 */
+	@Override
+	public int findPossibleIndex(Long key) {
+		long k = key;
+		
+		if (size == 0 || k < base) {
+			return 0;
+		}
+		
+		long delta = k - base;
+		if (!fits(delta)) {
+			return size;
+		}
+		
+		int low = 0;
+		int high = size;
+		
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (Long.compareUnsigned(getDelta(mid), delta) < 0) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		
+		return low;
+	}
+	
+	/**
+	 * Checks if a difference can be stored with the current number of bits.
+	 * 
+	 * @param delta  Difference from the base, as an unsigned number.
+	 * @return       True if it fits.
+	 */
+	private boolean fits(long delta) {
+		return bits == 64 || (delta >>> bits) == 0;
+	}
+	
+	/**
+	 * Packs every key again so that a new key will fit.
+	 * 
+	 * @param key  Key that needs to fit.
+	 */
+	private void repack(long key) {
+		long newBase = Math.min(base, key);
+		long maxDelta = key - newBase;
+		
+		long[] keys = new long[size];
+		for (int i=0; i<size; i++) {
+			keys[i] = keyAt(i);
+			if (Long.compareUnsigned(keys[i] - newBase, maxDelta) > 0) {
+				maxDelta = keys[i] - newBase;
+			}
+		}
+		
+		base = newBase;
+		bits = 64 - Long.numberOfLeadingZeros(maxDelta);
+		packed = new long[Math.max(1, wordsFor(values.length))];
+		
+		for (int i=0; i<size; i++) {
+			setDelta(i, keys[i] - base);
+		}
+	}
+	
+	/**
+	 * Makes sure there is room for a number of entries.
+	 * 
+	 * @param capacity  Number of entries to make room for.
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity > values.length) {
+			values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+		}
+		
+		int words = wordsFor(Math.max(capacity, values.length));
+		if (words > packed.length) {
+			packed = Arrays.copyOf(packed, words);
+		}
+	}
+	
+	/**
+	 * Gets the number of longs needed to pack a number of differences.
+	 * 
+	 * @param count  Number of differences
+	 * @return       Number of longs
+	 */
+	private int wordsFor(int count) {
+		return (int)(((long)count * bits + 63) >>> 6);
+	}
+	
+	/**
+	 * Reads a packed difference.
+	 * 
+	 * @param index  Index of the difference
+	 * @return       The difference, as an unsigned number
+	 */
+	private long getDelta(int index) {
+		if (bits == 0) {
+			return 0;
+		}
+		
+		long bitPos = (long)index * bits;
+		int word = (int)(bitPos >>> 6);
+		int offset = (int)(bitPos & 63);
+		
+		long value = packed[word] >>> offset;
+		if (offset + bits > 64) {
+			value |= packed[word+1] << (64 - offset);
+		}
+		
+		return (bits == 64) ? value : value & ((1L << bits) - 1);
+	}
+	
+	/**
+	 * Writes a packed difference.
+	 * 
+	 * @param index  Index of the difference
+	 * @param delta  The difference, as an unsigned number
+	 */
+	private void setDelta(int index, long delta) {
+		if (bits == 0) {
+			return;
+		}
+		
+		long mask = (bits == 64) ? -1L : (1L << bits) - 1;
+		long bitPos = (long)index * bits;
+		int word = (int)(bitPos >>> 6);
+		int offset = (int)(bitPos & 63);
+		
+		packed[word] = (packed[word] & ~(mask << offset)) | (delta << offset);
+		if (offset + bits > 64) {
+			int shift = 64 - offset;
+			packed[word+1] = (packed[word+1] & ~(mask >>> shift)) | (delta >>> shift);
+		}
+	}
+	
+	/**
+	 * Gets the value at an index.
+	 * 
+	 * @param index  Index of value
+	 * @return       Value
+	 */
+	@SuppressWarnings("unchecked")
+	private V valueAt(int index) {
+		return (V)values[index];
+	}
+	
+	/**
+	 * Throws an exception if an index is out of range.
+	 * 
+	 * @param index  Index to check.
+	 * @param limit  Index must be less than this.
+	 */
+	private void checkIndex(int index, int limit) {
+		if (index < 0 || index >= limit) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes a Double as the eight big-endian bytes of its IEEE 754 bit pattern.
+ * 
+ * The order preserving encoding flips the sign bit of positive numbers and
+ * every bit of negative numbers, which sorts the same way Double.compareTo
+ * does.
+ * 
+ * @author Nathan
+ *
+ */
+public class DoubleCodec implements OrderedCodec<Double> {
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void encode(Double value, DataOutput out) throws IOException {
+		out.writeDouble(value);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Double decode(DataInput in) throws IOException {
+		return in.readDouble();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void encode(Double value, ByteBuffer buffer) {
+		buffer.putDouble(value);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Double decode(ByteBuffer buffer) {
+		return buffer.getDouble();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int encodedSize(Double value) {
+		return 8;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte[] encodeOrdered(Double value) {
+		long bits = Double.doubleToLongBits(value);
+		bits = bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+		byte[] bytes = new byte[8];
+		
+		for (int i=7; i>=0; i--) {
+			bytes[i] = (byte)bits;
+			bits >>>= 8;
+		}
+		
+		return bytes;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Double decodeOrdered(byte[] bytes) {
+		long bits = 0;
+		
+		for (int i=0; i<8; i++) {
+			bits = (bits << 8) | (bytes[i] & 0xFF);
+		}
+		
+		return Double.longBitsToDouble(bits < 0 ? bits ^ Long.MIN_VALUE : ~bits);
+	}
+}
@@ -0,0 +1,469 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Loads a B+ Tree from unsorted entries that do not all fit in memory.
+ * 
+ * Entries are read in chunks of at most maxEntries.  Each chunk is sorted and
+ * written to a temporary file (a run) in a compact binary format.  The runs
+ * are then merged, and the merged stream of sorted entries is used to build
+ * the tree from the bottom up with BPTree.bulkLoad.  At most maxEntries
+ * entries are held in memory while sorting, and the temporary files are only
+ * ever read and written from start to end.
+ * 
+ * If a key shows up more than once, the value that came last wins, the same
+ * as calling put for every entry would.
+ * 
+ * @author Nathan
+ *
+ * @param <K>  Type of the key
+ * @param <V>  Type of the value
+ */
+public class ExternalBulkLoader<K extends Comparable<K>, V> {
+	
+	/**
+	 * Reads the entries of one run back from its file.
+	 * 
+	 * @author Nathan
+	 *
+	 */
+	private class RunReader {
+		public int runIndex;
+		public KeyVal<K,V> current;
+		private DataInputStream in;
+		private long remaining;
+		
+		public RunReader(File file, int runIndex) throws IOException {
+			this.runIndex = runIndex;
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), bufferSize));
+			remaining = in.readLong();
+			advance();
+		}
+		
+		/**
+		 * Reads the next entry into current, or sets it to null at the end.
+		 * 
+		 * @throws IOException  If there is a problem reading the run
+		 */
+		public void advance() throws IOException {
+			if (remaining == 0) {
+				current = null;
+				in.close();
+				return;
+			}
+			
+			remaining--;
+			K key = keyCodec.decode(in);
+			V value = valueCodec.decode(in);
+			current = new KeyVal<K,V>(key, value);
+		}
+		
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+	
+	
+	/**
+	 * Merges runs into one sorted stream of entries.  Entries with the same
+	 * key come out in the order of their runs, so later values come last.
+	 * 
+	 * @author Nathan
+	 *
+	 */
+	private class MergeIterator implements Iterator<Entry<K,V>> {
+		private PriorityQueue<RunReader> queue;
+		
+		public MergeIterator(List<RunReader> readers) {
+			queue = new PriorityQueue<RunReader>(Math.max(1, readers.size()),
+					new Comparator<RunReader>() {
+				@Override
+				public int compare(RunReader a, RunReader b) {
+					int cmp = a.current.getKey().compareTo(b.current.getKey());
+					return (cmp != 0) ? cmp : a.runIndex - b.runIndex;
+				}
+			});
+			
+			for (RunReader reader : readers) {
+				if (reader.current != null)
+					queue.add(reader);
+			}
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return !queue.isEmpty();
+		}
+
+		@Override
+		public Entry<K,V> next() {
+			if (queue.isEmpty()) {
+				throw new NoSuchElementException();
+			}
+			
+			RunReader reader = queue.poll();
+			KeyVal<K,V> entry = reader.current;
+			
+			try {
+				reader.advance();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			
+			if (reader.current != null)
+				queue.add(reader);
+			
+			return entry;
+		}
+	}
+	
+	
+	private Codec<K> keyCodec;
+	private Codec<V> valueCodec;
+	private int maxEntries;   // Most entries held in memory while sorting
+	private int maxMergeRuns = 64;
+	private int bufferSize = 1 << 16;
+	private File tempDir;
+	
+	/**
+	 * ExternalBulkLoader Constructor
+	 * 
+	 * @param keyCodec    Writes and reads keys in the temporary files.
+	 * @param valueCodec  Writes and reads values in the temporary files.
+	 * @param maxEntries  Most entries to hold in memory at once.
+	 * @param tempDir     Directory for temporary files, or null for the
+	 *                    system's default.
+	 * @throws IllegalArgumentException  If maxEntries is less than 1.
+	 */
+	public ExternalBulkLoader(Codec<K> keyCodec, Codec<V> valueCodec,
+			int maxEntries, File tempDir) {
+		if (maxEntries < 1)
+			throw new IllegalArgumentException("maxEntries must be at least 1: " + maxEntries);
+		
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		this.maxEntries = maxEntries;
+		this.tempDir = tempDir;
+	}
+	
+	/**
+	 * Sets the most runs that are merged at the same time.  If there are
+	 * more runs than this, groups of runs are merged into bigger runs first.
+	 * 
+	 * @param maxMergeRuns  Most runs (open files) to merge at once.
+	 */
+	public void setMaxMergeRuns(int maxMergeRuns) {
+		this.maxMergeRuns = Math.max(2, maxMergeRuns);
+	}
+	
+	/**
+	 * Sets the size of the buffer used for each temporary file.
+	 * 
+	 * @param bufferSize  Buffer size in bytes.
+	 */
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+	
+	/**
+	 * Replaces the contents of a tree with unsorted entries.
+	 * 
+	 * @param entries  Entries in any order.
+	 * @param bpTree   Tree to load the entries into.
+	 * @throws IOException  If there is a problem with the temporary files.
+	 */
+	public void load(Iterator<? extends Entry<K,V>> entries, BPTree<K,V> bpTree)
+			throws IOException {
+		
+		ArrayList<File> runs = new ArrayList<File>();
+		
+		try {
+			ArrayList<KeyVal<K,V>> chunk = readChunk(entries);
+			
+			// Everything fit in memory, so there is no need for any runs
+			if (!entries.hasNext()) {
+				bpTree.bulkLoad(chunk.iterator());
+				return;
+			}
+			
+			while (!chunk.isEmpty()) {
+				runs.add(writeRun(chunk));
+				chunk = readChunk(entries);
+			}
+			
+			// Merge groups of runs until they can all be merged at once
+			while (runs.size() > maxMergeRuns) {
+				ArrayList<File> merged = new ArrayList<File>();
+				
+				try {
+					for (int start=0; start<runs.size(); start+=maxMergeRuns) {
+						List<File> group = runs.subList(start,
+								Math.min(start + maxMergeRuns, runs.size()));
+						merged.add(mergeRuns(group));
+						deleteAll(group);
+					}
+				} catch (IOException e) {
+					deleteAll(merged);
+					throw e;
+				} catch (RuntimeException e) {
+					deleteAll(merged);
+					throw e;
+				}
+				
+				runs = merged;
+			}
+			
+			ArrayList<RunReader> readers = openRuns(runs);
+			try {
+				bpTree.bulkLoad(new MergeIterator(readers));
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} finally {
+				closeAll(readers);
+			}
+		} finally {
+			deleteAll(runs);
+		}
+	}
+	
+	/**
+	 * Replaces the contents of a tree with unsorted entries read from a text
+	 * file.  Each line holds one entry as "key|value", the same way entries
+	 * are written in a saved tree.
+	 * 
+	 * @param reader       Reader to read lines from.
+	 * @param keyParser    Converts strings to keys.
+	 * @param valueParser  Converts strings to values.
+	 * @param bpTree       Tree to load the entries into.
+	 * @throws IOException  If there is a problem reading or with the
+	 *                      temporary files.
+	 */
+	public void load(final BufferedReader reader,
+			final StringParseInterface keyParser,
+			final StringParseInterface valueParser, BPTree<K,V> bpTree)
+			throws IOException {
+		
+		Iterator<Entry<K,V>> lines = new Iterator<Entry<K,V>>() {
+			private String line = readLine();
+			
+			private String readLine() {
+				try {
+					return reader.readLine();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			
+			@Override
+			public boolean hasNext() {
+				return line != null;
+			}
+
+			@SuppressWarnings("unchecked")
+			@Override
+			public Entry<K,V> next() {
+				if (line == null) {
+					throw new NoSuchElementException();
+				}
+				
+				int divIndex = line.indexOf('|');
+				K k = (K)keyParser.parseString(line.substring(0, divIndex).trim());
+				V v = (V)valueParser.parseString(line.substring(divIndex+1).trim());
+				
+				line = readLine();
+				return new KeyVal<K,V>(k, v);
+			}
+		};
+		
+		try {
+			load(lines, bpTree);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	/**
+	 * Reads up to maxEntries entries and sorts them by key.  The sort is
+	 * stable, so entries with the same key stay in the order they were read.
+	 * 
+	 * @param entries  Entries to read from
+	 * @return  Sorted entries
+	 */
+	private ArrayList<KeyVal<K,V>> readChunk(Iterator<? extends Entry<K,V>> entries) {
+		ArrayList<KeyVal<K,V>> chunk = new ArrayList<KeyVal<K,V>>();
+		
+		while (chunk.size() < maxEntries && entries.hasNext()) {
+			Entry<K,V> entry = entries.next();
+			chunk.add(new KeyVal<K,V>(entry.getKey(), entry.getValue()));
+		}
+		
+		Collections.sort(chunk);
+		return chunk;
+	}
+	
+	/**
+	 * Writes sorted entries to a new temporary file.
+	 * 
+	 * @param entries  Sorted entries
+	 * @return  The run's file
+	 * @throws IOException  If there is a problem writing
+	 */
+	private File writeRun(List<? extends Entry<K,V>> entries) throws IOException {
+		File file = File.createTempFile("bptree-run", ".bin", tempDir);
+		boolean written = false;
+		
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file), bufferSize));
+			
+			try {
+				out.writeLong(entries.size());
+				for (Entry<K,V> entry : entries) {
+					keyCodec.encode(entry.getKey(), out);
+					valueCodec.encode(entry.getValue(), out);
+				}
+			} finally {
+				out.close();
+			}
+			written = true;
+		} finally {
+			// A run that was not written completely is of no use to anyone
+			if (!written)
+				file.delete();
+		}
+		
+		return file;
+	}
+	
+	/**
+	 * Merges a group of runs into one new run.
+	 * 
+	 * @param group  Runs to merge, in the order they were written.
+	 * @return  The merged run's file
+	 * @throws IOException  If there is a problem reading or writing
+	 */
+	private File mergeRuns(List<File> group) throws IOException {
+		File file = File.createTempFile("bptree-run", ".bin", tempDir);
+		boolean written = false;
+		
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file), bufferSize));
+			ArrayList<RunReader> readers = null;
+			
+			try {
+				readers = openRuns(group);
+				
+				long count = 0;
+				for (File run : group) {
+					count += countEntries(run);
+				}
+				out.writeLong(count);
+				
+				MergeIterator merge = new MergeIterator(readers);
+				while (merge.hasNext()) {
+					Entry<K,V> entry = merge.next();
+					keyCodec.encode(entry.getKey(), out);
+					valueCodec.encode(entry.getValue(), out);
+				}
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} finally {
+				out.close();
+				if (readers != null)
+					closeAll(readers);
+			}
+			written = true;
+		} finally {
+			// A merged run that was not written completely is of no use
+			if (!written)
+				file.delete();
+		}
+		
+		return file;
+	}
+	
+	/**
+	 * Reads the number of entries stored in a run.
+	 * 
+	 * @param run  The run's file
+	 * @return     Number of entries
+	 * @throws IOException  If there is a problem reading
+	 */
+	private long countEntries(File run) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(run));
+		try {
+			return in.readLong();
+		} catch (EOFException e) {
+			return 0;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Opens a reader for each run.
+	 * 
+	 * @param runs  The runs' files, in the order they were written.
+	 * @return  Readers, positioned at the first entry of each run.
+	 * @throws IOException  If there is a problem reading
+	 */
+	private ArrayList<RunReader> openRuns(List<File> runs) throws IOException {
+		ArrayList<RunReader> readers = new ArrayList<RunReader>(runs.size());
+		
+		try {
+			for (int i=0; i<runs.size(); i++) {
+				readers.add(new RunReader(runs.get(i), i));
+			}
+		} catch (IOException e) {
+			closeAll(readers);
+			throw e;
+		}
+		
+		return readers;
+	}
+	
+	/**
+	 * Closes every reader, ignoring problems.
+	 * 
+	 * @param readers  Readers to close
+	 */
+	private void closeAll(List<RunReader> readers) {
+		for (RunReader reader : readers) {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				// Nothing more can be done with a run that will not close
+			}
+		}
+	}
+	
+	/**
+	 * Deletes temporary files.
+	 * 
+	 * @param files  Files to delete
+	 */
+	private void deleteAll(List<File> files) {
+		for (File file : files) {
+			file.delete();
+		}
+	}
+}
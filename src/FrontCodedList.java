@@ -0,0 +1,508 @@
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A list of leaf entries with String keys that stores its keys front coded.
+ * 
+ * Keys in a leaf are sorted, so neighbouring keys often start the same way.
+ * Each key is stored as the number of characters it shares with the key
+ * before it, followed by only the characters that are different.  Every
+ * restartInterval keys the full key is stored again (a restart point), so a
+ * key can be found by binary searching the restart points and then decoding
+ * at most restartInterval keys.
+ * 
+ * Keys are only turned back into Strings when they are asked for.  Changing
+ * the list encodes the keys again, starting from the restart point before
+ * the change.
+ * 
+ * @author Nathan
+ *
+ * @param <V>  Type of the value
+ */
+public class FrontCodedList<V> extends AbstractList<KeyVal<String,V>>
+		implements LeafEntryList<String,V> {
+	
+	/**
+	 * Decodes keys one after another, starting from a restart point.
+	 * 
+	 * @author Nathan
+	 *
+	 */
+	private class Cursor {
+		public int index;  // Index of the key held in key
+		public int pos;    // Offset in data of the key after it
+		public char[] key = new char[32];
+		public int keyLength;
+		
+		/**
+		 * Moves to just before the first key of a block.
+		 * 
+		 * @param block  Index of the restart point.
+		 */
+		public void seekBlock(int block) {
+			index = block * restartInterval - 1;
+			pos = restarts[block];
+			keyLength = 0;
+		}
+		
+		/**
+		 * Moves to the key at the given index.
+		 * 
+		 * @param i  Index of key.
+		 */
+		public void seek(int i) {
+			seekBlock(i / restartInterval);
+			while (index < i) {
+				next();
+			}
+		}
+		
+		/**
+		 * Decodes the next key.
+		 */
+		public void next() {
+			int shared = readLength();
+			int suffix = readLength();
+			
+			if (shared + suffix > key.length) {
+				key = Arrays.copyOf(key, Math.max(shared + suffix, key.length * 2));
+			}
+			
+			System.arraycopy(data, pos, key, shared, suffix);
+			pos += suffix;
+			keyLength = shared + suffix;
+			index++;
+		}
+		
+		/**
+		 * Reads a length at pos.  Lengths of 0x8000 or more take two chars.
+		 * 
+		 * @return  Length
+		 */
+		private int readLength() {
+			int length = data[pos++];
+			if ((length & 0x8000) != 0) {
+				length = ((length & 0x7FFF) << 15) | data[pos++];
+			}
+			return length;
+		}
+		
+		/**
+		 * Compares the current key to a String.
+		 * 
+		 * @param other  String to compare to
+		 * @return   Greater than, equal to, or less than 0 depending on comparison
+		 */
+		public int compareTo(String other) {
+			int length = Math.min(keyLength, other.length());
+			
+			for (int i=0; i<length; i++) {
+				int cmp = key[i] - other.charAt(i);
+				if (cmp != 0)
+					return cmp;
+			}
+			
+			return keyLength - other.length();
+		}
+		
+		/**
+		 * Gets the current key.
+		 * 
+		 * @return  Current key as a String
+		 */
+		public String keyString() {
+			return new String(key, 0, keyLength);
+		}
+	}
+	
+	
+	private int restartInterval;
+	
+	private char[] data;         // Encoded keys
+	private int dataLength = 0;
+	private int[] restarts;      // Offset in data of each restart point
+	private int restartCount = 0;
+	private Object[] values;
+	private int size = 0;
+	
+	/**
+	 * FrontCodedList Constructor
+	 * 
+	 * @param restartInterval  Number of keys between full keys.
+	 * @param capacity         Number of entries to make room for.
+	 */
+	public FrontCodedList(int restartInterval, int capacity) {
+		this.restartInterval = restartInterval;
+		data = new char[Math.max(16, capacity * 4)];
+		restarts = new int[capacity / restartInterval + 1];
+		values = new Object[Math.max(1, capacity)];
+	}
+	
+	/**
+	 * Creates a leaf format that stores keys in front coded lists.
+	 * 
+	 * @param restartInterval  Number of keys between full keys.
+	 * @return  Leaf format for BPTree.setLeafFormat
+	 */
+	public static <V> LeafFormat<String,V> format(final int restartInterval) {
+		return new LeafFormat<String,V>() {
+			@Override
+			public List<KeyVal<String,V>> newEntries(int capacity) {
+				return new FrontCodedList<V>(restartInterval, capacity);
+			}
+		};
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * The key is decoded and a new KeyVal is created every time.
+	 */
+	@Override
+	public KeyVal<String,V> get(int index) {
+		checkIndex(index, size);
+		
+		Cursor cursor = new Cursor();
+		cursor.seek(index);
+		return new KeyVal<String,V>(cursor.keyString(), valueAt(index));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public KeyVal<String,V> set(int index, KeyVal<String,V> entry) {
+		KeyVal<String,V> old = get(index);
+		
+		if (!old.getKey().equals(entry.getKey())) {
+			int block = index / restartInterval;
+			ArrayList<String> keys = decodeFrom(block);
+			keys.set(index - block * restartInterval, entry.getKey());
+			encodeFrom(block, keys);
+		}
+		
+		values[index] = entry.getValue();
+		return old;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void add(int index, KeyVal<String,V> entry) {
+		checkIndex(index, size+1);
+		
+		int block = index / restartInterval;
+		ArrayList<String> keys = decodeFrom(block);
+		keys.add(index - block * restartInterval, entry.getKey());
+		
+		if (size == values.length) {
+			values = Arrays.copyOf(values, size * 2);
+		}
+		System.arraycopy(values, index, values, index+1, size-index);
+		values[index] = entry.getValue();
+		size++;
+		
+		encodeFrom(block, keys);
+		modCount++;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public KeyVal<String,V> remove(int index) {
+		KeyVal<String,V> old = get(index);
+		
+		int block = index / restartInterval;
+		ArrayList<String> keys = decodeFrom(block);
+		keys.remove(index - block * restartInterval);
+		
+		System.arraycopy(values, index+1, values, index, size-index-1);
+		size--;
+		values[size] = null;
+		
+		encodeFrom(block, keys);
+		modCount++;
+		
+		return old;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * Re-encodes the keys once, instead of once for every removed entry.
+	 */
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		if (fromIndex >= toIndex)
+			return;
+		
+		int block = fromIndex / restartInterval;
+		ArrayList<String> keys = decodeFrom(block);
+		keys.subList(fromIndex - block * restartInterval,
+				toIndex - block * restartInterval).clear();
+		
+		int count = toIndex - fromIndex;
+		System.arraycopy(values, toIndex, values, fromIndex, size-toIndex);
+		Arrays.fill(values, size-count, size, null);
+		size -= count;
+		
+		encodeFrom(block, keys);
+		modCount++;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long estimatedBytes() {
+		return TreeStats.align(TreeStats.OBJECT_HEADER + 3*TreeStats.REFERENCE + 5*4)
+				+ TreeStats.arrayBytes(data.length, 2)
+				+ TreeStats.arrayBytes(restarts.length, 4)
+				+ TreeStats.arrayBytes(values.length, TreeStats.REFERENCE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void clear() {
+		Arrays.fill(values, 0, size, null);
+		size = 0;
+		dataLength = 0;
+		restartCount = 0;
+		modCount++;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * Keys are decoded one after another as the iterator moves along.
+	 */
+	@Override
+	public Iterator<KeyVal<String,V>> iterator() {
+		return new Iterator<KeyVal<String,V>>() {
+			private Cursor cursor = null;
+			
+			@Override
+			public boolean hasNext() {
+				return (cursor == null) ? size > 0 : cursor.index+1 < size;
+			}
+
+			@Override
+			public KeyVal<String,V> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				
+				if (cursor == null) {
+					cursor = new Cursor();
+					cursor.seekBlock(0);
+				}
+				
+				cursor.next();
+				return new KeyVal<String,V>(cursor.keyString(), valueAt(cursor.index));
+			}
+		};
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * Binary searches the restart points, then decodes keys from the restart
+	 * point until the key is found.
+	 */
+	@Override
+	public int findPossibleIndex(String key) {
+		if (size == 0) {
+			return 0;
+		}
+		
+		Cursor cursor = new Cursor();
+		
+		// Find the last restart point with a key that is <= key
+		int low = 0;
+		int high = restartCount - 1;
+		int block = -1;
+		
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			cursor.seekBlock(mid);
+			cursor.next();
+			
+			int cmp = cursor.compareTo(key);
+			if (cmp == 0) {
+				return cursor.index;
+			}
+			else if (cmp < 0) {
+				block = mid;
+				low = mid + 1;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+		
+		if (block < 0) {
+			return 0;
+		}
+		
+		// Scan the keys of the block
+		int end = Math.min(size, (block+1) * restartInterval);
+		cursor.seekBlock(block);
+		
+		while (cursor.index+1 < end) {
+			cursor.next();
+			if (cursor.compareTo(key) >= 0) {
+				return cursor.index;
+			}
+		}
+		
+		return end;
+	}
+	
+	/**
+	 * Gets the value at an index.
+	 * 
+	 * @param index  Index of value
+	 * @return       Value
+	 */
+	@SuppressWarnings("unchecked")
+	private V valueAt(int index) {
+		return (V)values[index];
+	}
+	
+	/**
+	 * Decodes all keys starting at a restart point.
+	 * 
+	 * @param block  Index of the restart point.
+	 * @return       Decoded keys.
+	 */
+	private ArrayList<String> decodeFrom(int block) {
+		ArrayList<String> keys = new ArrayList<String>(restartInterval);
+		
+		if (block >= restartCount) {
+			return keys;
+		}
+		
+		Cursor cursor = new Cursor();
+		cursor.seekBlock(block);
+		
+		while (cursor.index+1 < size) {
+			cursor.next();
+			keys.add(cursor.keyString());
+		}
+		
+		return keys;
+	}
+	
+	/**
+	 * Encodes keys starting at a restart point, replacing whatever had been
+	 * encoded from that point on.
+	 * 
+	 * @param block  Index of the restart point.
+	 * @param keys   Keys to encode, from the restart point to the end.
+	 */
+	private void encodeFrom(int block, List<String> keys) {
+		if (block < restartCount) {
+			dataLength = restarts[block];
+		}
+		restartCount = block;
+		
+		String prev = null;
+		
+		for (int i=0; i<keys.size(); i++) {
+			String key = keys.get(i);
+			int shared = 0;
+			
+			if (i % restartInterval == 0) {
+				if (restartCount == restarts.length) {
+					restarts = Arrays.copyOf(restarts, restartCount * 2);
+				}
+				restarts[restartCount++] = dataLength;
+			}
+			else {
+				shared = prefixLength(prev, key);
+			}
+			
+			int suffix = key.length() - shared;
+			ensureData(suffix + 4);
+			
+			appendLength(shared);
+			appendLength(suffix);
+			key.getChars(shared, key.length(), data, dataLength);
+			dataLength += suffix;
+			
+			prev = key;
+		}
+	}
+	
+	/**
+	 * Adds a length to the end of data.
+	 * 
+	 * @param length  Length to add.
+	 */
+	private void appendLength(int length) {
+		if (length < 0x8000) {
+			data[dataLength++] = (char)length;
+		}
+		else {
+			data[dataLength++] = (char)(0x8000 | (length >>> 15));
+			data[dataLength++] = (char)(length & 0x7FFF);
+		}
+	}
+	
+	/**
+	 * Makes sure there is room for more characters at the end of data.
+	 * 
+	 * @param extra  Number of characters to make room for.
+	 */
+	private void ensureData(int extra) {
+		if (dataLength + extra > data.length) {
+			data = Arrays.copyOf(data, Math.max(dataLength + extra, data.length * 2));
+		}
+	}
+	
+	/**
+	 * Counts how many characters at the start of two Strings are the same.
+	 * 
+	 * @param a  First String
+	 * @param b  Second String
+	 * @return   Length of the shared prefix.
+	 */
+	private static int prefixLength(String a, String b) {
+		int length = Math.min(a.length(), b.length());
+		int i = 0;
+		
+		while (i < length && a.charAt(i) == b.charAt(i)) {
+			i++;
+		}
+		
+		return i;
+	}
+	
+	/**
+	 * Throws an exception if an index is out of range.
+	 * 
+	 * @param index  Index to check.
+	 * @param limit  Index must be less than this.
+	 */
+	private void checkIndex(int index, int limit) {
+		if (index < 0 || index >= limit) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+}
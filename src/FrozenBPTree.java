@@ -0,0 +1,268 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read-only copy of a B+ Tree, made by BPTree.freeze().
+ * 
+ * Instead of nodes that point to each other, the keys and values are kept
+ * in two flat arrays in key order.  The arrays are split into blocks of
+ * BLOCK_SIZE entries, and the first key of every block is copied into a
+ * small index array.  The index is stored in Eytzinger order (the order of
+ * a breadth first walk of a complete binary search tree), so the children
+ * of index[i] are at index[2i] and index[2i+1] and no child pointers are
+ * needed.  A search walks the index to find the block, then searches the
+ * block, and the first levels of the index stay in the cache.
+ * 
+ * The map can not be changed.  Anything that would change it throws an
+ * UnsupportedOperationException.
+ * 
+ * @author Nathan
+ *
+ * @param <K>  Type of the key
+ * @param <V>  Type of the value
+ */
+public class FrozenBPTree<K extends Comparable<K>, V> extends AbstractMap<K, V> {
+	private static final int BLOCK_SIZE = 16;  // Entries for each index key
+	
+	private Object[] keys;    // All keys, sorted
+	private Object[] values;  // Value for each key
+	private Object[] index;   // First key of each block, in Eytzinger order
+	private int[] indexBlock; // Block number of each index key
+	
+	/**
+	 * FrozenBPTree Constructor
+	 * 
+	 * @param keys    Keys in order.  The array is kept, not copied.
+	 * @param values  Value of each key.  The array is kept, not copied.
+	 */
+	FrozenBPTree(Object[] keys, Object[] values) {
+		this.keys = keys;
+		this.values = values;
+		
+		int blocks = (keys.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		index = new Object[blocks + 1];
+		indexBlock = new int[blocks + 1];
+		buildIndex(1, 0);
+	}
+	
+	/**
+	 * Fills in the index with an in order walk of the implicit tree, which
+	 * visits the blocks in order.
+	 * 
+	 * @param i      Position in the index (starting from 1)
+	 * @param block  Next block to place
+	 * @return       Next block to place after this subtree
+	 */
+	private int buildIndex(int i, int block) {
+		if (i < index.length) {
+			block = buildIndex(2*i, block);
+			index[i] = keys[block * BLOCK_SIZE];
+			indexBlock[i] = block;
+			block = buildIndex(2*i + 1, block + 1);
+		}
+		return block;
+	}
+	
+	/**
+	 * Finds the position of the first key that is greater than or equal to
+	 * the given key.
+	 * 
+	 * @param key  Key to search for
+	 * @return     Position of the key, or of where it would be
+	 */
+	@SuppressWarnings("unchecked")
+	private int lowerBound(K key) {
+		// Find the last block that starts with a key <= key
+		int i = 1;
+		int block = 0;
+		while (i < index.length) {
+			if (((K)index[i]).compareTo(key) <= 0) {
+				block = indexBlock[i];
+				i = 2*i + 1;
+			}
+			else {
+				i = 2*i;
+			}
+		}
+		
+		// Binary search the block
+		int low = block * BLOCK_SIZE;
+		int high = Math.min(low + BLOCK_SIZE, keys.length);
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (((K)keys[mid]).compareTo(key) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+	
+	/**
+	 * Finds the position of a key.
+	 * 
+	 * @param key  Key to search for
+	 * @return     Position of the key, or -1 if it is not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	private int indexOf(Object key) {
+		int pos = lowerBound((K)key);
+		if (pos < keys.length && ((K)keys[pos]).compareTo((K)key) == 0)
+			return pos;
+		return -1;
+	}
+	
+	/**
+	 * Makes a read-only entry for a position.
+	 * 
+	 * @param pos  Position of the entry
+	 * @return     The entry
+	 */
+	@SuppressWarnings("unchecked")
+	private Entry<K,V> entryAt(int pos) {
+		return new AbstractMap.SimpleImmutableEntry<K,V>((K)keys[pos], (V)values[pos]);
+	}
+	
+	/**
+	 * Makes a list of the entries in a range of positions.
+	 * 
+	 * @param from  First position
+	 * @param to    Position after the last one
+	 * @return      The entries
+	 */
+	private Collection<Entry<K,V>> entries(int from, int to) {
+		ArrayList<Entry<K,V>> entries = new ArrayList<Entry<K,V>>(Math.max(0, to - from));
+		for (int i=from; i<to; i++) {
+			entries.add(entryAt(i));
+		}
+		return entries;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int size() {
+		return keys.length;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public V get(Object key) {
+		int pos = indexOf(key);
+		return (pos >= 0) ? (V)values[pos] : null;
+	}
+	
+	/**
+	 * Get a collection of entries with keys that are less than or equal to the
+	 * specified key.
+	 * 
+	 * @param key  Key to stop on
+	 * @return     A collection of entries
+	 */
+	public Collection<Entry<K,V>> getFirstToKey(Object key) {
+		return entries(0, upperBound(key));
+	}
+	
+	/**
+	 * Get a collection of entries with keys that are greater than or equal to
+	 * the specified key.
+	 * 
+	 * @param key  Key to start from
+	 * @return     A collection of entries
+	 */
+	@SuppressWarnings("unchecked")
+	public Collection<Entry<K,V>> getKeyToLast(Object key) {
+		return entries(lowerBound((K)key), keys.length);
+	}
+	
+	/**
+	 * Get a collection of entries that have keys that are greater than or
+	 * equal to key1 and are less than or equal to key2.
+	 * 
+	 * @param key1  Key to start from
+	 * @param key2  Key to end from
+	 * @return      Collection of entries
+	 */
+	@SuppressWarnings("unchecked")
+	public Collection<Entry<K,V>> getKeyToKey(Object key1, Object key2) {
+		return entries(lowerBound((K)key1), upperBound(key2));
+	}
+	
+	/**
+	 * Finds the position after the last key that is less than or equal to
+	 * the given key.
+	 * 
+	 * @param key  Key to search for
+	 * @return     Position after the key
+	 */
+	@SuppressWarnings("unchecked")
+	private int upperBound(Object key) {
+		int pos = lowerBound((K)key);
+		if (pos < keys.length && ((K)keys[pos]).compareTo((K)key) == 0)
+			pos++;
+		return pos;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * The set is a read-only view of the arrays, in key order.
+	 */
+	@Override
+	public Set<Entry<K,V>> entrySet() {
+		return new AbstractSet<Entry<K,V>>() {
+			@Override
+			public int size() {
+				return keys.length;
+			}
+			
+			@Override
+			public boolean contains(Object o) {
+				if (!(o instanceof Entry))
+					return false;
+				Entry<?,?> entry = (Entry<?,?>)o;
+				int pos = indexOf(entry.getKey());
+				if (pos < 0)
+					return false;
+				Object value = values[pos];
+				return (value == null) ? entry.getValue() == null : value.equals(entry.getValue());
+			}
+			
+			@Override
+			public Iterator<Entry<K,V>> iterator() {
+				return new Iterator<Entry<K,V>>() {
+					private int pos = 0;
+					
+					@Override
+					public boolean hasNext() {
+						return pos < keys.length;
+					}
+					
+					@Override
+					public Entry<K,V> next() {
+						if (pos >= keys.length)
+							throw new NoSuchElementException();
+						return entryAt(pos++);
+					}
+				};
+			}
+		};
+	}
+}
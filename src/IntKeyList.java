@@ -0,0 +1,123 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A list of leaf entries with Integer keys that keeps the keys in a plain int
+ * array, so a leaf can be searched without unboxing a key or calling
+ * compareTo for every entry.
+ * 
+ * Searches go through KeySearch, which counts the last keys with vector
+ * instructions when it can, up to 64 of them at once.  Leaf sizes that are
+ * a multiple of LANES, from roundLeafSize, fill whole vectors.
+ * 
+ * @author Nathan
+ *
+ * @param <V>  Type of the value
+ */
+public class IntKeyList<V> extends PrimitiveKeyList<Integer,V> {
+	public static final int LANES = KeySearch.INT_BLOCK;  // Keys counted together
+	
+	private int[] keys;
+	
+	/**
+	 * IntKeyList Constructor
+	 * 
+	 * @param capacity  Number of entries to make room for.
+	 */
+	public IntKeyList(int capacity) {
+		super(roundLeafSize(Math.max(1, capacity)));
+		keys = new int[values.length];
+	}
+	
+	/**
+	 * Creates a leaf format that stores keys in int arrays.
+	 * 
+	 * @return  Leaf format for BPTree.setLeafFormat
+	 */
+	public static <V> LeafFormat<Integer,V> format() {
+		return new LeafFormat<Integer,V>() {
+			@Override
+			public List<KeyVal<Integer,V>> newEntries(int capacity) {
+				return new IntKeyList<V>(capacity);
+			}
+		};
+	}
+	
+	/**
+	 * Rounds a leaf size up to a multiple of LANES, so every block of keys
+	 * a search counts is full.
+	 * 
+	 * @param leafSize  Wanted leaf size.
+	 * @return          Leaf size to give the BPTree constructor.
+	 */
+	public static int roundLeafSize(int leafSize) {
+		return (leafSize + LANES - 1) / LANES * LANES;
+	}
+	
+	/**
+	 * Gets the key at an index without creating a KeyVal.
+	 * 
+	 * @param index  Index of the key
+	 * @return       Key
+	 */
+	public int keyAt(int index) {
+		checkIndex(index, size);
+		return keys[index];
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int findPossibleIndex(Integer key) {
+		return KeySearch.SEARCH.search(keys, size, key);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected Object keyArray() {
+		return keys;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void growKeys(int length) {
+		keys = Arrays.copyOf(keys, length);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void setKey(int index, Integer key) {
+		keys[index] = key;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected Integer boxedKey(int index) {
+		return keys[index];
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected int keyBytes() {
+		return 4;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected int roundLength(int length) {
+		return roundLeafSize(length);
+	}
+}
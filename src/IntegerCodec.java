@@ -0,0 +1,85 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes an Integer as four big-endian bytes.
+ * 
+ * The order preserving encoding flips the sign bit, so negative numbers
+ * sort before positive numbers.
+ * 
+ * @author Nathan
+ *
+ */
+public class IntegerCodec implements OrderedCodec<Integer> {
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void encode(Integer value, DataOutput out) throws IOException {
+		out.writeInt(value);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Integer decode(DataInput in) throws IOException {
+		return in.readInt();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void encode(Integer value, ByteBuffer buffer) {
+		buffer.putInt(value);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Integer decode(ByteBuffer buffer) {
+		return buffer.getInt();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int encodedSize(Integer value) {
+		return 4;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte[] encodeOrdered(Integer value) {
+		int bits = value ^ Integer.MIN_VALUE;
+		byte[] bytes = new byte[4];
+		
+		for (int i=3; i>=0; i--) {
+			bytes[i] = (byte)bits;
+			bits >>>= 8;
+		}
+		
+		return bytes;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Integer decodeOrdered(byte[] bytes) {
+		int bits = 0;
+		
+		for (int i=0; i<4; i++) {
+			bits = (bits << 8) | (bytes[i] & 0xFF);
+		}
+		
+		return bits ^ Integer.MIN_VALUE;
+	}
+}
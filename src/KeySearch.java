@@ -0,0 +1,162 @@
+/**
+ * Searches sorted arrays of int or long keys for IntKeyList and LongKeyList.
+ * 
+ * A search halves the range without branching on the result, which keeps
+ * the processor from guessing wrong, until only one block of keys is left.
+ * The block is then counted with no early exit.  This class counts a block
+ * one key at a time in a loop the JIT can unroll.  VectorKeySearch, in
+ * src/vector, counts a whole vector of keys at once with
+ * jdk.incubator.vector.
+ * 
+ * Counting one vector only saves a few steps at the end of a search, which
+ * does not show up in timings.  VectorKeySearch gains by counting a much
+ * larger block of int keys instead, so a leaf of up to 64 int keys is not
+ * halved at all.  Long keys keep the small block, since fewer of them fit
+ * in a vector and counting more of them was slower than halving.
+ * Tests.leafSearch times both searches in the same run.
+ * 
+ * The vector version is only used when it was compiled and the module is
+ * there at run time, for example:
+ * 
+ *   javac --add-modules jdk.incubator.vector -d out src/vector/VectorKeySearch.java
+ *   java --add-modules jdk.incubator.vector ...
+ * 
+ * Otherwise loading it fails, and this class is used instead.  The choice
+ * is made once, in SEARCH.
+ * 
+ * @author Nathan
+ *
+ */
+public class KeySearch {
+	public static final int INT_BLOCK = 16;   // 16 ints fill a 512 bit vector
+	public static final int LONG_BLOCK = 8;   // 8 longs fill a 512 bit vector
+	
+	public static final KeySearch SEARCH = load();
+	
+	private final int intBlock;   // Most int keys counted instead of halved
+	private final int longBlock;  // Most long keys counted instead of halved
+	
+	/**
+	 * KeySearch Constructor, for the scalar search.
+	 */
+	public KeySearch() {
+		this(INT_BLOCK, LONG_BLOCK);
+	}
+	
+	/**
+	 * KeySearch Constructor
+	 * 
+	 * @param intBlock   Most int keys to count instead of halving them.
+	 * @param longBlock  Most long keys to count instead of halving them.
+	 */
+	protected KeySearch(int intBlock, int longBlock) {
+		this.intBlock = intBlock;
+		this.longBlock = longBlock;
+	}
+	
+	/**
+	 * Finds the index of the first key that is greater than or equal to a
+	 * key, in the first count keys of a sorted array.
+	 * 
+	 * @param keys   Sorted keys.
+	 * @param count  Number of keys to search.
+	 * @param key    Key to search for.
+	 * @return       Index where the key is, or where it would be inserted.
+	 */
+	public final int search(int[] keys, int count, int key) {
+		int base = 0;
+		int length = count;
+		
+		// The answer is always from base to base + length
+		while (length > intBlock) {
+			int half = length >>> 1;
+			base = (keys[base+half-1] < key) ? base + half : base;
+			length -= half;
+		}
+		
+		return base + countLess(keys, base, base + length, key);
+	}
+	
+	/**
+	 * Finds the index of the first key that is greater than or equal to a
+	 * key, in the first count keys of a sorted array.
+	 * 
+	 * @param keys   Sorted keys.
+	 * @param count  Number of keys to search.
+	 * @param key    Key to search for.
+	 * @return       Index where the key is, or where it would be inserted.
+	 */
+	public final int search(long[] keys, int count, long key) {
+		int base = 0;
+		int length = count;
+		
+		// The answer is always from base to base + length
+		while (length > longBlock) {
+			int half = length >>> 1;
+			base = (keys[base+half-1] < key) ? base + half : base;
+			length -= half;
+		}
+		
+		return base + countLess(keys, base, base + length, key);
+	}
+	
+	/**
+	 * Counts the keys in a block that are smaller than a key.
+	 * 
+	 * @param keys  Sorted keys.
+	 * @param from  First index of the block.
+	 * @param to    Index after the block.
+	 * @param key   Key to compare with.
+	 * @return      Number of keys in the block that are smaller.
+	 */
+	protected int countLess(int[] keys, int from, int to, int key) {
+		int count = 0;
+		for (int i=from; i<to; i++) {
+			count += (keys[i] < key) ? 1 : 0;
+		}
+		return count;
+	}
+	
+	/**
+	 * Counts the keys in a block that are smaller than a key.
+	 * 
+	 * @param keys  Sorted keys.
+	 * @param from  First index of the block.
+	 * @param to    Index after the block.
+	 * @param key   Key to compare with.
+	 * @return      Number of keys in the block that are smaller.
+	 */
+	protected int countLess(long[] keys, int from, int to, long key) {
+		int count = 0;
+		for (int i=from; i<to; i++) {
+			count += (keys[i] < key) ? 1 : 0;
+		}
+		return count;
+	}
+	
+	/**
+	 * Gets the name of the way blocks are counted, for reports.
+	 * 
+	 * @return  Name of the search
+	 */
+	public String getName() {
+		return "scalar";
+	}
+	
+	/**
+	 * Loads VectorKeySearch if it can be, or else uses this class.
+	 * 
+	 * @return  Search to use for every list.
+	 */
+	private static KeySearch load() {
+		try {
+			Class<?> vectorClass = Class.forName("VectorKeySearch");
+			return (KeySearch)vectorClass.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			// Not compiled, so keep the scalar search
+		} catch (LinkageError e) {
+			// Compiled, but jdk.incubator.vector was not added at run time
+		}
+		return new KeySearch();
+	}
+}
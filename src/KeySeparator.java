@@ -0,0 +1,72 @@
+/**
+ * Interface for making short separator keys for the inner nodes of a B+ Tree
+ * and for storing keys that share a prefix with the prefix only stored once.
+ * 
+ * A separator only needs to tell two leaves apart, so it does not need to be
+ * a key that is actually stored in the tree.  For keys such as long Strings
+ * a separator can be a lot shorter than the keys on either side of it.
+ * 
+ * @author Nathan
+ *
+ * @param <K>  Type of the key
+ */
+public interface KeySeparator<K> {
+	/**
+	 * Makes the shortest key that is greater than left and less than or
+	 * equal to right.
+	 * 
+	 * @param left   Largest key on the left side.
+	 * @param right  Smallest key on the right side.
+	 * @return       Separator key.
+	 */
+	public K separator(K left, K right);
+	
+	/**
+	 * Gets the prefix that two keys have in common.
+	 * 
+	 * @param first  First key
+	 * @param last   Last key
+	 * @return       Shared prefix, or null if they do not share one.
+	 */
+	public K commonPrefix(K first, K last);
+	
+	/**
+	 * Removes a prefix from a key.
+	 * 
+	 * @param key     Key that starts with prefix.
+	 * @param prefix  Prefix to remove.
+	 * @return        The rest of the key.
+	 */
+	public K removePrefix(K key, K prefix);
+	
+	/**
+	 * Puts a prefix back onto a key that it had been removed from.
+	 * 
+	 * @param prefix  Prefix to add.
+	 * @param suffix  Rest of the key.
+	 * @return        Full key.
+	 */
+	public K addPrefix(K prefix, K suffix);
+	
+	/**
+	 * Compares a key to every key that starts with a prefix.
+	 * 
+	 * @param key     Key to compare.
+	 * @param prefix  Prefix to compare to.
+	 * @return  Less than 0 if key is less than every key with the prefix,
+	 *          greater than 0 if it is greater than all of them, or 0 if the
+	 *          key starts with the prefix.
+	 */
+	public int comparePrefix(K key, K prefix);
+	
+	/**
+	 * Compares a key to a key that had its prefix removed, without putting
+	 * the prefix back on.
+	 * 
+	 * @param key     Key that starts with prefix.
+	 * @param prefix  Prefix shared by both keys.
+	 * @param suffix  Other key with the prefix removed.
+	 * @return   Greater than, equal to, or less than 0 depending on comparison
+	 */
+	public int compareSuffix(K key, K prefix, K suffix);
+}
@@ -1,3 +1,4 @@
+import java.util.Arrays;
 import java.util.Map.Entry;
 
 
@@ -21,6 +22,7 @@ public class KeyVal<K extends Comparable<K>,V> implements Comparable<KeyVal<K,V>
 	 */
 	private class Key implements Comparable<Key> {
 		public K k;
+		public byte[] bytes;  // Order preserving encoding of k, once known
 		
 		public Key(K key) {
 			k = key;
@@ -30,11 +32,40 @@ public class KeyVal<K extends Comparable<K>,V> implements Comparable<KeyVal<K,V>
 		public int compareTo(Key other) {
 			if (other instanceof KeyVal.InfKey)
 				return -1;
+			if (other instanceof KeyVal.EncodedKey)
+				return -other.compareTo(this);
 			return k.compareTo(other.k);
 		}
 		
 	}
 	
+	/**
+	 * A key that is compared using its order preserving encoding.  The other
+	 * key's encoding is made the first time it is compared to and kept, so
+	 * after that comparing it does not need to touch the key object at all.
+	 * 
+	 * @author Nathan
+	 *
+	 */
+	private class EncodedKey extends Key {
+		private OrderedCodec<K> codec;
+		
+		public EncodedKey(K key, OrderedCodec<K> codec) {
+			super(key);
+			this.codec = codec;
+			bytes = codec.encodeOrdered(key);
+		}
+		
+		@Override
+		public int compareTo(Key other) {
+			if (other instanceof KeyVal.InfKey)
+				return -1;
+			if (other.bytes == null)
+				other.bytes = codec.encodeOrdered(other.k);
+			return Arrays.compareUnsigned(bytes, other.bytes);
+		}
+	}
+	
 	/**
 	 * An infinite key that is larger than everything.
 	 * 
@@ -56,6 +87,25 @@ public class KeyVal<K extends Comparable<K>,V> implements Comparable<KeyVal<K,V>
 	private Key k;
 	private V v;
 	
+	/**
+	 * Estimates the memory used by this pair and its key box, not counting
+	 * the key and value objects themselves.
+	 * 
+	 * @see TreeStats
+	 * 
+	 * @return  Estimated bytes
+	 */
+	public long estimatedBytes() {
+		int keyFields = (k instanceof KeyVal.EncodedKey) ? 4 : 3;
+		long bytes = TreeStats.align(TreeStats.OBJECT_HEADER + 2*TreeStats.REFERENCE)
+				+ TreeStats.align(TreeStats.OBJECT_HEADER + keyFields*TreeStats.REFERENCE);
+		
+		if (k.bytes != null)
+			bytes += TreeStats.arrayBytes(k.bytes.length, 1);
+		
+		return bytes;
+	}
+	
 	/**
 	 * Constructor for key value pair
 	 * 
@@ -67,6 +117,30 @@ public class KeyVal<K extends Comparable<K>,V> implements Comparable<KeyVal<K,V>
 		v = value;
 	}
 	
+	/**
+	 * Constructor for key value pair with a key that is compared by its
+	 * order preserving encoding instead of by compareTo.
+	 * 
+	 * @param key    Key
+	 * @param value  Value
+	 * @param codec  Encodes the key into bytes that sort like the key
+	 */
+	public KeyVal(K key, V value, OrderedCodec<K> codec) {
+		k = new EncodedKey(key, codec);
+		v = value;
+	}
+	
+	/**
+	 * Copy constructor.  The copy has the same key and value, but can be
+	 * changed without changing the original.
+	 * 
+	 * @param other  Key value pair to copy
+	 */
+	public KeyVal(KeyVal<K,V> other) {
+		k = other.k;
+		v = other.v;
+	}
+	
 	/**
 	 * Constructor for key value pair with infinite key.
 	 * 
@@ -157,6 +231,19 @@ public class KeyVal<K extends Comparable<K>,V> implements Comparable<KeyVal<K,V>
 		return k.compareTo(other.k);
 	}
 	
+	/**
+	 * Compare the key of this pair to the key of another pair, which may
+	 * hold a different type of value.
+	 * 
+	 * @param other  KeyVal to compare keys with
+	 * @return   Greater than, equal to, or less than 0 depending on comparison
+	 */
+	public int compareKeyTo(KeyVal<K,?> other) {
+		@SuppressWarnings("unchecked")
+		KeyVal<K,V> o = (KeyVal<K,V>)other;
+		return k.compareTo(o.k);
+	}
+	
 	/**
 	 * String representation
 	 * 
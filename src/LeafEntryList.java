@@ -0,0 +1,32 @@
+import java.util.List;
+
+/**
+ * A list of leaf entries that can search its own keys.  Lists that store
+ * their keys in an encoded form implement this so that a leaf can be searched
+ * without decoding every key it holds.
+ * 
+ * @author Nathan
+ *
+ * @param <K>  Type of the key
+ * @param <V>  Type of the value
+ */
+public interface LeafEntryList<K extends Comparable<K>, V> extends List<KeyVal<K,V>> {
+	/**
+	 * Finds the index of the first entry with a key that is greater than or
+	 * equal to the specified key.
+	 * 
+	 * @param key  Key to search for.
+	 * @return     Index where the key is, or where it would be inserted.
+	 */
+	public int findPossibleIndex(K key);
+	
+	/**
+	 * Estimates the memory used by the list, not counting the keys and
+	 * values that are still kept as objects.
+	 * 
+	 * @see TreeStats
+	 * 
+	 * @return  Estimated bytes
+	 */
+	public long estimatedBytes();
+}
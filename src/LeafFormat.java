@@ -0,0 +1,22 @@
+import java.util.List;
+
+/**
+ * Interface for choosing how leaf nodes store their entries.  By default leaf
+ * nodes keep their entries in an ArrayList, but a format can store them in a
+ * more compact way for certain types of keys.
+ * 
+ * @author Nathan
+ *
+ * @param <K>  Type of the key
+ * @param <V>  Type of the value
+ */
+public interface LeafFormat<K extends Comparable<K>, V> {
+	/**
+	 * Creates an empty list for storing the entries of a leaf node.  The
+	 * list must keep the entries in the order they are added in.
+	 * 
+	 * @param capacity  Number of entries the list will usually hold.
+	 * @return  An empty list of entries.
+	 */
+	public List<KeyVal<K,V>> newEntries(int capacity);
+}
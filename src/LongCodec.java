@@ -0,0 +1,85 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes a Long as eight big-endian bytes.
+ * 
+ * The order preserving encoding flips the sign bit, so negative numbers
+ * sort before positive numbers.
+ * 
+ * @author Nathan
+ *
+ */
+public class LongCodec implements OrderedCodec<Long> {
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void encode(Long value, DataOutput out) throws IOException {
+		out.writeLong(value);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Long decode(DataInput in) throws IOException {
+		return in.readLong();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void encode(Long value, ByteBuffer buffer) {
+		buffer.putLong(value);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Long decode(ByteBuffer buffer) {
+		return buffer.getLong();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int encodedSize(Long value) {
+		return 8;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte[] encodeOrdered(Long value) {
+		long bits = value ^ Long.MIN_VALUE;
+		byte[] bytes = new byte[8];
+		
+		for (int i=7; i>=0; i--) {
+			bytes[i] = (byte)bits;
+			bits >>>= 8;
+		}
+		
+		return bytes;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Long decodeOrdered(byte[] bytes) {
+		long bits = 0;
+		
+		for (int i=0; i<8; i++) {
+			bits = (bits << 8) | (bytes[i] & 0xFF);
+		}
+		
+		return bits ^ Long.MIN_VALUE;
+	}
+}
@@ -0,0 +1,123 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A list of leaf entries with Long keys that keeps the keys in a plain long
+ * array, so a leaf can be searched without unboxing a key or calling
+ * compareTo for every entry.
+ * 
+ * Searches go through KeySearch, which counts the last block of LANES keys
+ * with vector instructions when it can.  Leaf sizes that are a multiple of
+ * LANES, from roundLeafSize, keep the last block full.
+ * 
+ * @author Nathan
+ *
+ * @param <V>  Type of the value
+ */
+public class LongKeyList<V> extends PrimitiveKeyList<Long,V> {
+	public static final int LANES = KeySearch.LONG_BLOCK;  // Keys counted together
+	
+	private long[] keys;
+	
+	/**
+	 * LongKeyList Constructor
+	 * 
+	 * @param capacity  Number of entries to make room for.
+	 */
+	public LongKeyList(int capacity) {
+		super(roundLeafSize(Math.max(1, capacity)));
+		keys = new long[values.length];
+	}
+	
+	/**
+	 * Creates a leaf format that stores keys in long arrays.
+	 * 
+	 * @return  Leaf format for BPTree.setLeafFormat
+	 */
+	public static <V> LeafFormat<Long,V> format() {
+		return new LeafFormat<Long,V>() {
+			@Override
+			public List<KeyVal<Long,V>> newEntries(int capacity) {
+				return new LongKeyList<V>(capacity);
+			}
+		};
+	}
+	
+	/**
+	 * Rounds a leaf size up to a multiple of LANES, so every block of keys
+	 * a search counts is full.
+	 * 
+	 * @param leafSize  Wanted leaf size.
+	 * @return          Leaf size to give the BPTree constructor.
+	 */
+	public static int roundLeafSize(int leafSize) {
+		return (leafSize + LANES - 1) / LANES * LANES;
+	}
+	
+	/**
+	 * Gets the key at an index without creating a KeyVal.
+	 * 
+	 * @param index  Index of the key
+	 * @return       Key
+	 */
+	public long keyAt(int index) {
+		checkIndex(index, size);
+		return keys[index];
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int findPossibleIndex(Long key) {
+		return KeySearch.SEARCH.search(keys, size, key);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected Object keyArray() {
+		return keys;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void growKeys(int length) {
+		keys = Arrays.copyOf(keys, length);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void setKey(int index, Long key) {
+		keys[index] = key;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected Long boxedKey(int index) {
+		return keys[index];
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected int keyBytes() {
+		return 8;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected int roundLength(int length) {
+		return roundLeafSize(length);
+	}
+}
@@ -0,0 +1,294 @@
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+
+/**
+ * A B+ Tree that can hold more than one value for the same key.
+ * 
+ * Each key is stored once, in a BPTree, with all of its values packed into
+ * a PostingList.  Adding or removing a value finds the key's list in one
+ * pass down the tree and changes it in place, and the key is removed along
+ * with its last value.
+ * 
+ * The tree is not thread safe, and the lists and iterators it hands out
+ * must not be used while the tree is being changed.
+ * 
+ * @author Nathan
+ *
+ * @param <K>  Type of the key
+ * @param <V>  Type of the value
+ */
+public class MultiBPTree<K extends Comparable<K>, V> {
+	private BPTree<K,PostingList<V>> tree;  // Values for each key
+	private long valueCount = 0;            // Number of values in the tree
+	
+	/**
+	 * MultiBPTree Constructor
+	 * 
+	 * Uses a default size for nodes.
+	 */
+	public MultiBPTree() {
+		this(4, 4);
+	}
+	
+	/**
+	 * MultiBPTree Constructor
+	 * 
+	 * @param innerSize  Maximum size of inner nodes.
+	 * @param leafSize   Maximum size of leaf nodes.
+	 */
+	public MultiBPTree(int innerSize, int leafSize) {
+		tree = new BPTree<K,PostingList<V>>(innerSize, leafSize);
+	}
+	
+	/**
+	 * Adds a value for a key.  The key's other values are kept.
+	 * 
+	 * @param key    Key to add the value to.
+	 * @param value  Value to add.
+	 */
+	public void add(K key, final V value) {
+		tree.compute(key, new BiFunction<K,PostingList<V>,PostingList<V>>() {
+			@Override
+			public PostingList<V> apply(K k, PostingList<V> postings) {
+				if (postings == null)
+					postings = new PostingList<V>();
+				postings.add(value);
+				return postings;
+			}
+		});
+		valueCount++;
+	}
+	
+	/**
+	 * Removes one occurrence of a value from a key.  If it was the key's
+	 * last value, the key is removed too.
+	 * 
+	 * @param key    Key to remove the value from.
+	 * @param value  Value to remove.
+	 * @return       True if the value was found and removed.
+	 */
+	public boolean removeValue(K key, final V value) {
+		final boolean[] removed = {false};
+		
+		tree.computeIfPresent(key, new BiFunction<K,PostingList<V>,PostingList<V>>() {
+			@Override
+			public PostingList<V> apply(K k, PostingList<V> postings) {
+				removed[0] = postings.remove(value);
+				return postings.isEmpty() ? null : postings;
+			}
+		});
+		
+		if (removed[0])
+			valueCount--;
+		return removed[0];
+	}
+	
+	/**
+	 * Removes a key and every value it has.
+	 * 
+	 * @param key  Key to remove.
+	 * @return     Number of values removed.
+	 */
+	public int removeAll(K key) {
+		PostingList<V> postings = tree.remove(key);
+		if (postings == null)
+			return 0;
+		
+		valueCount -= postings.size();
+		return postings.size();
+	}
+	
+	/**
+	 * Gets the values of a key, in the order they were added.
+	 * 
+	 * @param key  Key to look up.
+	 * @return     Read-only list of values, which is empty if the key has
+	 *             none.
+	 */
+	public List<V> get(K key) {
+		PostingList<V> postings = tree.get(key);
+		if (postings == null)
+			return Collections.emptyList();
+		return Collections.unmodifiableList(postings);
+	}
+	
+	/**
+	 * Checks if a key has any values.
+	 * 
+	 * @param key  Key to look for.
+	 * @return     True if the key has at least one value.
+	 */
+	public boolean containsKey(K key) {
+		return tree.containsKey(key);
+	}
+	
+	/**
+	 * Counts the values of a key.
+	 * 
+	 * @param key  Key to look up.
+	 * @return     Number of values the key has.
+	 */
+	public int count(K key) {
+		PostingList<V> postings = tree.get(key);
+		return (postings == null) ? 0 : postings.size();
+	}
+	
+	/**
+	 * Gets the number of values in the tree, counting every value of every
+	 * key.
+	 * 
+	 * @return  Number of values
+	 */
+	public long size() {
+		return valueCount;
+	}
+	
+	/**
+	 * Gets the number of different keys in the tree.
+	 * 
+	 * @return  Number of keys
+	 */
+	public int keyCount() {
+		return tree.size();
+	}
+	
+	/**
+	 * Checks if the tree is empty.
+	 * 
+	 * @return  True if there are no values.
+	 */
+	public boolean isEmpty() {
+		return valueCount == 0;
+	}
+	
+	/**
+	 * Removes every key and value.
+	 */
+	public void clear() {
+		tree.clear();
+		valueCount = 0;
+	}
+	
+	/**
+	 * Shrinks every key's list of values to fit.  Useful once the tree is
+	 * done being added to.
+	 */
+	public void trimToSize() {
+		for (PostingList<V> postings : tree.values()) {
+			postings.trimToSize();
+		}
+	}
+	
+	/**
+	 * Gets an iterator over the values of every key from lo to hi, in key
+	 * order, and in the order they were added for each key.  The values are
+	 * read from the leaves as the iterator goes, so nothing is copied.
+	 * 
+	 * @param lo  Smallest key, or null to start at the first key.
+	 * @param hi  Largest key, or null to go to the last key.
+	 * @return    Iterator over the values
+	 */
+	public Iterator<V> valueIterator(K lo, K hi) {
+		return new RangeIterator(lo, hi);
+	}
+	
+	/**
+	 * Gets an iterator over every value in the tree, in key order.
+	 * 
+	 * @return  Iterator over the values
+	 */
+	public Iterator<V> valueIterator() {
+		return valueIterator(null, null);
+	}
+	
+	/**
+	 * Walks the leaf chain of the tree, through the values of every key in a
+	 * range.
+	 * 
+	 * @author Nathan
+	 */
+	private class RangeIterator implements Iterator<V> {
+		private BPTree.LeafNode<K,PostingList<V>> leaf;  // Leaf being read
+		private int entryIndex;         // Index of the next entry in the leaf
+		private PostingList<V> postings = null;  // Values of the current key
+		private int valueIndex = 0;     // Index of the next value in postings
+		private K hi;                   // Largest key, or null for no limit
+		
+		/**
+		 * RangeIterator Constructor
+		 * 
+		 * @param lo  Smallest key, or null to start at the first key.
+		 * @param hi  Largest key, or null to go to the last key.
+		 */
+		public RangeIterator(K lo, K hi) {
+			this.hi = hi;
+			
+			if (lo == null) {
+				leaf = tree.root.getFirstLeaf(tree);
+				entryIndex = 0;
+			}
+			else {
+				leaf = tree.root.getLeaf(tree, lo);
+				entryIndex = 0;
+				while (entryIndex < leaf.entries.size() &&
+						leaf.entries.get(entryIndex).getKey().compareTo(lo) < 0) {
+					entryIndex++;
+				}
+			}
+			
+			advance();
+		}
+		
+		/**
+		 * Moves on to the next key with values, if the current key has run
+		 * out of them.
+		 */
+		private void advance() {
+			while (postings == null || valueIndex >= postings.size()) {
+				while (leaf != null && entryIndex >= leaf.entries.size()) {
+					leaf = leaf.getNext(tree);
+					entryIndex = 0;
+				}
+				
+				if (leaf == null) {
+					postings = null;
+					return;
+				}
+				
+				KeyVal<K,PostingList<V>> entry = leaf.entries.get(entryIndex++);
+				if (hi != null && entry.getKey().compareTo(hi) > 0) {
+					leaf = null;
+					postings = null;
+					return;
+				}
+				
+				postings = entry.getValue();
+				valueIndex = 0;
+			}
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public boolean hasNext() {
+			return postings != null;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public V next() {
+			if (postings == null)
+				throw new NoSuchElementException();
+			
+			V value = postings.get(valueIndex++);
+			advance();
+			return value;
+		}
+	}
+}
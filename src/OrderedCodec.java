@@ -0,0 +1,27 @@
+/**
+ * A Codec that can also encode objects into bytes that sort in the same
+ * order as the objects themselves.  Comparing two encodings byte by byte,
+ * as unsigned values, gives the same result as calling compareTo on the
+ * objects, so keys can be compared without decoding them.
+ * 
+ * @author Nathan
+ *
+ * @param <T>  Type of object that is encoded
+ */
+public interface OrderedCodec<T> extends Codec<T> {
+	/**
+	 * Encodes an object into order preserving bytes.
+	 * 
+	 * @param value  Object to encode.
+	 * @return       Bytes that sort the same way the object does.
+	 */
+	public byte[] encodeOrdered(T value);
+	
+	/**
+	 * Decodes an object from bytes made by encodeOrdered.
+	 * 
+	 * @param bytes  Order preserving bytes.
+	 * @return       Object that was encoded.
+	 */
+	public T decodeOrdered(byte[] bytes);
+}
@@ -0,0 +1,133 @@
+import java.util.Arrays;
+
+/**
+ * A piecewise linear model of where keys are in a sorted array, for
+ * learned routing.  The keys are split into segments, and each segment is
+ * a straight line from key to array index.  The lines are fit so that the
+ * index predicted for every key the model was built from is off by at most
+ * maxError, so a key can be found by searching a small window around the
+ * prediction.
+ * 
+ * Segments are fit in one pass with a shrinking cone: each new key narrows
+ * the range of slopes that keep every key so far within the error, and a
+ * new segment starts when the range would be empty.
+ * 
+ * @author Nathan
+ *
+ */
+public class PiecewiseLinearModel {
+	private double[] startKeys;  // First key of each segment
+	private int[] startIndexes;  // Index of the first key of each segment
+	private double[] slopes;     // Indexes per unit of key, in each segment
+	private int size;            // Number of keys modeled
+	private int maxError;        // Most a prediction is off by
+	
+	/**
+	 * PiecewiseLinearModel Constructor
+	 * 
+	 * @param keys      Keys in increasing order, with no duplicates.
+	 * @param maxError  Most a prediction may be off by.  Smaller errors
+	 *                  need more segments.
+	 */
+	public PiecewiseLinearModel(double[] keys, int maxError) {
+		this.size = keys.length;
+		this.maxError = Math.max(1, maxError);
+		
+		double[] starts = new double[16];
+		int[] indexes = new int[16];
+		double[] fitSlopes = new double[16];
+		int segments = 0;
+		
+		int start = 0;
+		while (start < size) {
+			double lo = 0;
+			double hi = Double.POSITIVE_INFINITY;
+			int end = start + 1;
+			
+			// Grow the segment while some slope keeps every key in range
+			while (end < size) {
+				double dx = keys[end] - keys[start];
+				if (dx <= 0)
+					break;
+				
+				double dy = end - start;
+				double newLo = Math.max(lo, (dy - this.maxError) / dx);
+				double newHi = Math.min(hi, (dy + this.maxError) / dx);
+				if (newLo > newHi)
+					break;
+				
+				lo = newLo;
+				hi = newHi;
+				end++;
+			}
+			
+			if (segments == starts.length) {
+				starts = Arrays.copyOf(starts, segments*2);
+				indexes = Arrays.copyOf(indexes, segments*2);
+				fitSlopes = Arrays.copyOf(fitSlopes, segments*2);
+			}
+			
+			starts[segments] = keys[start];
+			indexes[segments] = start;
+			fitSlopes[segments] = (end - start == 1) ? 0 : (lo + hi) / 2;
+			segments++;
+			
+			start = end;
+		}
+		
+		startKeys = Arrays.copyOf(starts, segments);
+		startIndexes = Arrays.copyOf(indexes, segments);
+		slopes = Arrays.copyOf(fitSlopes, segments);
+	}
+	
+	/**
+	 * Predicts the index of a key.  For a key the model was built from, the
+	 * real index is within maxError of the prediction.  For a key between
+	 * two of them, the index of the smaller one is within maxError + 1.
+	 * 
+	 * @param key  Key to find.
+	 * @return     Predicted index, from 0 to size()-1.
+	 */
+	public int predict(double key) {
+		if (size == 0)
+			return 0;
+		
+		// Last segment starting at or before the key
+		int segment = Arrays.binarySearch(startKeys, key);
+		if (segment < 0)
+			segment = Math.max(0, -segment - 2);
+		
+		double index = startIndexes[segment] + slopes[segment] * (key - startKeys[segment]);
+		
+		// Never past the start of the next segment or before this one
+		int limit = (segment + 1 < startIndexes.length) ? startIndexes[segment+1] : size;
+		return (int)Math.max(startIndexes[segment], Math.min(limit - 1, index));
+	}
+	
+	/**
+	 * Gets the most a prediction is off by.
+	 * 
+	 * @return  Maximum error
+	 */
+	public int getMaxError() {
+		return maxError;
+	}
+	
+	/**
+	 * Gets the number of keys the model was built from.
+	 * 
+	 * @return  Number of keys
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Gets the number of line segments in the model.
+	 * 
+	 * @return  Number of segments
+	 */
+	public int segmentCount() {
+		return startKeys.length;
+	}
+}
@@ -0,0 +1,98 @@
+import java.util.AbstractList;
+import java.util.Arrays;
+
+/**
+ * The values stored under one key of a MultiBPTree, packed into a single
+ * array.  The array grows by half its size when it is full, and can be
+ * trimmed down to fit once a key is done being added to.
+ * 
+ * Values are kept in the order they were added.
+ * 
+ * @author Nathan
+ *
+ * @param <V>  Type of the value
+ */
+public class PostingList<V> extends AbstractList<V> {
+	private static final Object[] EMPTY = new Object[0];
+	
+	private Object[] values = EMPTY;  // Values, with room to grow at the end
+	private int size = 0;             // Number of values in use
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public V get(int index) {
+		checkIndex(index);
+		return (V)values[index];
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean add(V value) {
+		if (size == values.length) {
+			values = Arrays.copyOf(values, size + (size >> 1) + 1);
+		}
+		
+		values[size++] = value;
+		modCount++;
+		return true;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public V remove(int index) {
+		checkIndex(index);
+		
+		V old = (V)values[index];
+		System.arraycopy(values, index+1, values, index, size-index-1);
+		values[--size] = null;
+		modCount++;
+		return old;
+	}
+	
+	/**
+	 * Shrinks the array to hold exactly the values in the list.
+	 */
+	public void trimToSize() {
+		if (size < values.length) {
+			values = (size == 0) ? EMPTY : Arrays.copyOf(values, size);
+		}
+	}
+	
+	/**
+	 * Estimates the memory used by the list, not counting the values.
+	 * 
+	 * @see TreeStats
+	 * 
+	 * @return  Estimated bytes
+	 */
+	public long estimatedBytes() {
+		return TreeStats.align(TreeStats.OBJECT_HEADER + TreeStats.REFERENCE + 2*4)
+				+ TreeStats.arrayBytes(values.length, TreeStats.REFERENCE);
+	}
+	
+	/**
+	 * Throws an exception if an index is out of range.
+	 * 
+	 * @param index  Index to check
+	 */
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+	}
+}
@@ -0,0 +1,214 @@
+import java.util.AbstractList;
+import java.util.Arrays;
+
+/**
+ * A list of leaf entries that keeps its keys in a primitive array, with the
+ * values beside them.  Subclasses pick the type of the array, and this class
+ * moves the keys and values around together as entries are added and
+ * removed.
+ * 
+ * Arrays are always a multiple of the subclass's block size long, so every
+ * block of keys a search counts fits inside the array.
+ * 
+ * @author Nathan
+ *
+ * @param <K>  Type of the key
+ * @param <V>  Type of the value
+ */
+public abstract class PrimitiveKeyList<K extends Comparable<K>, V>
+		extends AbstractList<KeyVal<K,V>> implements LeafEntryList<K,V> {
+	protected Object[] values;
+	protected int size = 0;
+	
+	/**
+	 * PrimitiveKeyList Constructor
+	 * 
+	 * @param length  Length of the value array, the same as the key array.
+	 */
+	protected PrimitiveKeyList(int length) {
+		values = new Object[length];
+	}
+	
+	/**
+	 * Gets the array the keys are kept in.
+	 * 
+	 * @return  Primitive array of keys
+	 */
+	protected abstract Object keyArray();
+	
+	/**
+	 * Replaces the key array with a longer copy of it.
+	 * 
+	 * @param length  New length of the array.
+	 */
+	protected abstract void growKeys(int length);
+	
+	/**
+	 * Stores a key at an index.
+	 * 
+	 * @param index  Index to store at.
+	 * @param key    Key to store.
+	 */
+	protected abstract void setKey(int index, K key);
+	
+	/**
+	 * Gets the key at an index as an object.
+	 * 
+	 * @param index  Index of the key
+	 * @return       Key
+	 */
+	protected abstract K boxedKey(int index);
+	
+	/**
+	 * Gets the size of one key in the key array.
+	 * 
+	 * @return  Bytes per key
+	 */
+	protected abstract int keyBytes();
+	
+	/**
+	 * Rounds an array length up to a whole number of blocks.
+	 * 
+	 * @param length  Wanted length.
+	 * @return        Length to use.
+	 */
+	protected abstract int roundLength(int length);
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * A new KeyVal is created every time.
+	 */
+	@Override
+	public KeyVal<K,V> get(int index) {
+		checkIndex(index, size);
+		return new KeyVal<K,V>(boxedKey(index), valueAt(index));
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public KeyVal<K,V> set(int index, KeyVal<K,V> entry) {
+		KeyVal<K,V> old = get(index);
+		
+		if (!old.getKey().equals(entry.getKey())) {
+			remove(index);
+			add(index, entry);
+			return old;
+		}
+		
+		values[index] = entry.getValue();
+		return old;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void add(int index, KeyVal<K,V> entry) {
+		checkIndex(index, size+1);
+		
+		if (size == values.length) {
+			int length = roundLength(size * 2);
+			growKeys(length);
+			values = Arrays.copyOf(values, length);
+		}
+		
+		Object keys = keyArray();
+		System.arraycopy(keys, index, keys, index+1, size-index);
+		System.arraycopy(values, index, values, index+1, size-index);
+		setKey(index, entry.getKey());
+		values[index] = entry.getValue();
+		size++;
+		modCount++;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public KeyVal<K,V> remove(int index) {
+		KeyVal<K,V> old = get(index);
+		
+		Object keys = keyArray();
+		System.arraycopy(keys, index+1, keys, index, size-index-1);
+		System.arraycopy(values, index+1, values, index, size-index-1);
+		size--;
+		values[size] = null;
+		modCount++;
+		
+		return old;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * Moves the following entries along once, instead of once for every
+	 * removed entry.
+	 */
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		if (fromIndex >= toIndex)
+			return;
+		
+		int count = toIndex - fromIndex;
+		Object keys = keyArray();
+		System.arraycopy(keys, toIndex, keys, fromIndex, size-toIndex);
+		System.arraycopy(values, toIndex, values, fromIndex, size-toIndex);
+		Arrays.fill(values, size-count, size, null);
+		size -= count;
+		modCount++;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long estimatedBytes() {
+		return TreeStats.align(TreeStats.OBJECT_HEADER + 2*TreeStats.REFERENCE + 2*4)
+				+ TreeStats.arrayBytes(values.length, keyBytes())
+				+ TreeStats.arrayBytes(values.length, TreeStats.REFERENCE);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void clear() {
+		Arrays.fill(values, 0, size, null);
+		size = 0;
+		modCount++;
+	}
+	
+	/**
+	 * Gets the value at an index.
+	 * 
+	 * @param index  Index of value
+	 * @return       Value
+	 */
+	@SuppressWarnings("unchecked")
+	private V valueAt(int index) {
+		return (V)values[index];
+	}
+	
+	/**
+	 * Throws an exception if an index is out of range.
+	 * 
+	 * @param index  Index to check.
+	 * @param limit  Index must be less than this.
+	 */
+	protected void checkIndex(int index, int limit) {
+		if (index < 0 || index >= limit) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+}
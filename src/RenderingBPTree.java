@@ -14,7 +14,7 @@ public class RenderingBPTree<K extends Comparable<K>, V> extends BPTree<K, V> {
 	private abstract class NodePanel extends JPanel {
 		private static final long serialVersionUID = 1L;
 
-		public NodePanel(BPTree<K,V>.Node node) {
+		public NodePanel(BPTree.Node<K,V> node) {
 		}
 		
 		public abstract int getConnectionX(int index);
@@ -32,7 +32,7 @@ public class RenderingBPTree<K extends Comparable<K>, V> extends BPTree<K, V> {
 	private class LeafPanel extends NodePanel {
 		private static final long serialVersionUID = 1L;
 
-		public LeafPanel(BPTree<K,V>.Node node) {
+		public LeafPanel(BPTree.Node<K,V> node) {
 			super(node);
 			
 			setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
@@ -40,7 +40,7 @@ public class RenderingBPTree<K extends Comparable<K>, V> extends BPTree<K, V> {
 			setBorder(BorderFactory.createLineBorder(Color.black));
 			
 			@SuppressWarnings("unchecked")
-			BPTree<K,V>.LeafNode leafNode = (BPTree<K,V>.LeafNode)node;
+			BPTree.LeafNode<K,V> leafNode = (BPTree.LeafNode<K,V>)node;
 			
 			for (int i=0; i<leafSize; i++) {
 				JLabel lbl;
@@ -71,7 +71,7 @@ public class RenderingBPTree<K extends Comparable<K>, V> extends BPTree<K, V> {
 		private static final long serialVersionUID = 1L;
 		private ArrayList<JPanel> childPoints;
 		
-		public InnerPanel(BPTree<K,V>.Node node) {
+		public InnerPanel(BPTree.Node<K,V> node) {
 			super(node);
 			
 			childPoints = new ArrayList<JPanel>();
@@ -81,19 +81,20 @@ public class RenderingBPTree<K extends Comparable<K>, V> extends BPTree<K, V> {
 			setBorder(BorderFactory.createLineBorder(Color.black));
 			
 			@SuppressWarnings("unchecked")
-			BPTree<K,V>.InnerNode innerNode = (BPTree<K,V>.InnerNode)node;
+			BPTree.InnerNode<K,V> innerNode = (BPTree.InnerNode<K,V>)node;
 			
 			for (int i=0; i<innerSize-1; i++) {
 				JLabel lbl;
 				
 				if (i < innerNode.size()) {
-					KeyVal<K, BPTree<K, V>.Node> kv = innerNode.children.get(i);
+					KeyVal<K, BPTree.Node<K,V>> kv = innerNode.children.get(i);
 					
 					if (kv.hasInfKey()) {
 						lbl = new JLabel(" \u221E ");
 					}
 					else {
-						lbl = new JLabel(" " + kv.getKey().toString() + " ");
+						K key = innerNode.keyAt(RenderingBPTree.this, i);
+						lbl = new JLabel(" " + key.toString() + " ");
 					}
 				}
 				else {
@@ -201,12 +202,12 @@ public class RenderingBPTree<K extends Comparable<K>, V> extends BPTree<K, V> {
 		outerPanel.repaint();
 	}
 	
-	private Rectangle makePanel(Node node, NodePanel parent, Rectangle outerRect, int index) {
+	private Rectangle makePanel(Node<K,V> node, NodePanel parent, Rectangle outerRect, int index) {
 		Rectangle rect;
 		
 		if (node instanceof BPTree.LeafNode) {
 			@SuppressWarnings("unchecked")
-			LeafNode leafNode = (LeafNode)node;
+			LeafNode<K,V> leafNode = (LeafNode<K,V>)node;
 			
 			LeafPanel pnl = new LeafPanel(leafNode);
 			panel.add(pnl);
@@ -225,7 +226,7 @@ public class RenderingBPTree<K extends Comparable<K>, V> extends BPTree<K, V> {
 		}
 		else {
 			@SuppressWarnings("unchecked")
-			InnerNode innerNode = (InnerNode)node;
+			InnerNode<K,V> innerNode = (InnerNode<K,V>)node;
 			
 			InnerPanel pnl = new InnerPanel(innerNode);
 			panel.add(pnl);
@@ -244,7 +245,7 @@ public class RenderingBPTree<K extends Comparable<K>, V> extends BPTree<K, V> {
 			int newX = 0;
 			Rectangle current;
 			for (int i=0; i<innerNode.size(); i++) {
-				Node childNode = innerNode.children.get(i).getValue();
+				Node<K,V> childNode = innerNode.child(this, i);
 				Rectangle newRect = (Rectangle) pnl.getBounds().clone();
 				newRect.x += newX;
 				newRect.y += VERTICAL_SPACE;
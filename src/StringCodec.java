@@ -0,0 +1,162 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes a String as UTF-8 bytes, prefixed with the number of bytes as a
+ * four byte int.
+ * 
+ * The order preserving encoding writes each char on its own, the same way
+ * UTF-8 writes a code point below 0x10000.  Surrogate pairs are not combined,
+ * so the bytes sort in the same order as String.compareTo, which compares
+ * chars and not code points.
+ * 
+ * @author Nathan
+ *
+ */
+public class StringCodec implements OrderedCodec<String> {
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void encode(String value, DataOutput out) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String decode(DataInput in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void encode(String value, ByteBuffer buffer) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String decode(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		
+		if (buffer.hasArray()) {
+			int offset = buffer.arrayOffset() + buffer.position();
+			buffer.position(buffer.position() + length);
+			return new String(buffer.array(), offset, length, StandardCharsets.UTF_8);
+		}
+		
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * The size is counted without encoding the String.
+	 */
+	@Override
+	public int encodedSize(String value) {
+		int size = 4;
+		
+		for (int i=0; i<value.length(); i++) {
+			char c = value.charAt(i);
+			
+			if (c < 0x80) {
+				size += 1;
+			}
+			else if (c < 0x800) {
+				size += 2;
+			}
+			else if (Character.isHighSurrogate(c) && i+1 < value.length()
+					&& Character.isLowSurrogate(value.charAt(i+1))) {
+				size += 4;
+				i++;
+			}
+			else if (Character.isSurrogate(c)) {
+				// Unpaired surrogates are encoded as '?'
+				size += 1;
+			}
+			else {
+				size += 3;
+			}
+		}
+		
+		return size;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte[] encodeOrdered(String value) {
+		int size = 0;
+		for (int i=0; i<value.length(); i++) {
+			char c = value.charAt(i);
+			size += (c < 0x80) ? 1 : (c < 0x800) ? 2 : 3;
+		}
+		
+		byte[] bytes = new byte[size];
+		int pos = 0;
+		
+		for (int i=0; i<value.length(); i++) {
+			char c = value.charAt(i);
+			
+			if (c < 0x80) {
+				bytes[pos++] = (byte)c;
+			}
+			else if (c < 0x800) {
+				bytes[pos++] = (byte)(0xC0 | (c >> 6));
+				bytes[pos++] = (byte)(0x80 | (c & 0x3F));
+			}
+			else {
+				bytes[pos++] = (byte)(0xE0 | (c >> 12));
+				bytes[pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+				bytes[pos++] = (byte)(0x80 | (c & 0x3F));
+			}
+		}
+		
+		return bytes;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String decodeOrdered(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length);
+		int pos = 0;
+		
+		while (pos < bytes.length) {
+			int b = bytes[pos++] & 0xFF;
+			
+			if (b < 0x80) {
+				sb.append((char)b);
+			}
+			else if (b < 0xE0) {
+				sb.append((char)(((b & 0x1F) << 6) | (bytes[pos++] & 0x3F)));
+			}
+			else {
+				int c = ((b & 0x0F) << 12) | ((bytes[pos++] & 0x3F) << 6);
+				sb.append((char)(c | (bytes[pos++] & 0x3F)));
+			}
+		}
+		
+		return sb.toString();
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * Makes separators and prefixes for String keys.
+ * 
+ * @author Nathan
+ *
+ */
+public class StringKeySeparator implements KeySeparator<String> {
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * The separator is the start of right, up to and including the first
+	 * character that is different from left.
+	 */
+	@Override
+	public String separator(String left, String right) {
+		int length = prefixLength(left, right);
+		
+		if (length >= right.length()) {
+			return right;
+		}
+		
+		return right.substring(0, length+1);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String commonPrefix(String first, String last) {
+		int length = prefixLength(first, last);
+		
+		if (length == 0) {
+			return null;
+		}
+		
+		return first.substring(0, length);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String removePrefix(String key, String prefix) {
+		return key.substring(prefix.length());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String addPrefix(String prefix, String suffix) {
+		return prefix.concat(suffix);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int comparePrefix(String key, String prefix) {
+		int length = Math.min(key.length(), prefix.length());
+		
+		for (int i=0; i<length; i++) {
+			int cmp = key.charAt(i) - prefix.charAt(i);
+			if (cmp != 0)
+				return cmp;
+		}
+		
+		// A key that is cut off before the end of the prefix is smaller
+		return (key.length() < prefix.length()) ? -1 : 0;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int compareSuffix(String key, String prefix, String suffix) {
+		int start = prefix.length();
+		int length = Math.min(key.length() - start, suffix.length());
+		
+		for (int i=0; i<length; i++) {
+			int cmp = key.charAt(start + i) - suffix.charAt(i);
+			if (cmp != 0)
+				return cmp;
+		}
+		
+		return (key.length() - start) - suffix.length();
+	}
+	
+	/**
+	 * Counts how many characters at the start of two Strings are the same.
+	 * 
+	 * @param a  First String
+	 * @param b  Second String
+	 * @return   Length of the shared prefix.
+	 */
+	private int prefixLength(String a, String b) {
+		int length = Math.min(a.length(), b.length());
+		int i = 0;
+		
+		while (i < length && a.charAt(i) == b.charAt(i)) {
+			i++;
+		}
+		
+		return i;
+	}
+}
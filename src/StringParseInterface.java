@@ -2,6 +2,9 @@
  * Interface for converting a data object into a string or extracting data from
  * a string.
  * 
+ * This is used by the text file format.  The binary file format uses Codec,
+ * which is typed and does not need to go through a String.
+ * 
  * @author Nathan
  *
  */
@@ -1,9 +1,18 @@
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A mess of tests.  Nothing special.
@@ -100,6 +109,961 @@ public class Tests {
 		}
 	}
 
+	public static void binary() {
+		BPTree<String,Integer> bpTree = new BPTree<String,Integer>(4,5);
+		
+		for (int i=0; i<100; i++) {
+			bpTree.put("key" + i, i);
+		}
+		
+		try {
+			bpTree.saveBinary("test.bin", new StringCodec(), new IntegerCodec());
+			
+			BPTree<String,Integer> loaded = new BPTree<String,Integer>();
+			loaded.loadBinary("test.bin", new StringCodec(), new IntegerCodec());
+			
+			System.out.println("Sizes: " + bpTree.size() + " " + loaded.size());
+			System.out.println("Same: " + new TreeMap<String,Integer>(bpTree).equals(new TreeMap<String,Integer>(loaded)));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void bulkLoad() {
+		Random random = new Random(1);
+		List<Entry<Integer,Integer>> entries = new ArrayList<Entry<Integer,Integer>>();
+		
+		for (int i=0; i<10000; i++) {
+			int key = random.nextInt(5000);
+			entries.add(new KeyVal<Integer,Integer>(key, i));
+		}
+		
+		BPTree<Integer,Integer> bpTree = new BPTree<Integer,Integer>(4,5);
+		ExternalBulkLoader<Integer,Integer> loader = new ExternalBulkLoader<Integer,Integer>(
+				new IntegerCodec(), new IntegerCodec(), 1000, null);
+		
+		try {
+			loader.load(entries.iterator(), bpTree);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		BPTree<Integer,Integer> puts = new BPTree<Integer,Integer>(4,5);
+		for (Entry<Integer,Integer> entry : entries) {
+			puts.put(entry.getKey(), entry.getValue());
+		}
+		
+		System.out.println("Sizes: " + bpTree.size() + " " + puts.size());
+		System.out.println("Same: " + new TreeMap<Integer,Integer>(bpTree).equals(new TreeMap<Integer,Integer>(puts)));
+		System.out.println("Nodes: " + bpTree.countNodes() + " " + puts.countNodes());
+		System.out.println(bpTree.stats());
+		System.out.println(puts.stats());
+	}
+
+	public static void removeRange() {
+		BPTree<Integer,Integer> bpTree = new BPTree<Integer,Integer>(4,5);
+		TreeMap<Integer,Integer> map = new TreeMap<Integer,Integer>();
+		
+		for (int i=0; i<10000; i++) {
+			bpTree.put(i, i);
+			map.put(i, i);
+		}
+		
+		System.out.println("Removed: " + bpTree.removeRange(1234, 8765));
+		map.subMap(1234, true, 8765, true).clear();
+		
+		System.out.println("Sizes: " + bpTree.size() + " " + map.size());
+		System.out.println("Same: " + new TreeMap<Integer,Integer>(bpTree).equals(map));
+		System.out.println("Range: " + bpTree.getKeyToKey(1230, 8770));
+	}
+
+	public static void leafSearch() {
+		Random random = new Random(1);
+		int[] probes = new int[1 << 16];
+		for (int i=0; i<probes.length; i++) {
+			probes[i] = random.nextInt(1 << 20);
+		}
+		
+		// The scalar search and the one in use, timed side by side
+		KeySearch[] searches = {new KeySearch(), KeySearch.SEARCH};
+		System.out.println("Search in use: " + KeySearch.SEARCH.getName());
+		
+		for (int leafSize=32; leafSize<=256; leafSize*=2) {
+			// Random sorted keys, the same in each kind of leaf
+			TreeMap<Integer,Integer> sorted = new TreeMap<Integer,Integer>();
+			while (sorted.size() < leafSize) {
+				sorted.put(random.nextInt(1 << 20), sorted.size());
+			}
+			
+			List<KeyVal<Integer,Integer>> boxed = new ArrayList<KeyVal<Integer,Integer>>();
+			int[] ints = new int[leafSize];
+			long[] longs = new long[leafSize];
+			for (Entry<Integer,Integer> entry : sorted.entrySet()) {
+				ints[boxed.size()] = entry.getKey();
+				longs[boxed.size()] = entry.getKey();
+				boxed.add(new KeyVal<Integer,Integer>(entry.getKey(), entry.getValue()));
+			}
+			
+			// Fastest of several rounds, once the JIT has compiled each loop
+			long[] nanos = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+			long[] sums = new long[5];
+			for (int round=0; round<20; round++) {
+				long start = System.nanoTime();
+				for (int probe : probes) {
+					// Same scan as LeafNode.findPossibleIndex
+					KeyVal<Integer,Integer> entry = new KeyVal<Integer,Integer>(probe, null);
+					int index = 0;
+					while (index < boxed.size() && entry.compareTo(boxed.get(index)) > 0) {
+						index++;
+					}
+					sums[0] += index;
+				}
+				nanos[0] = Math.min(nanos[0], System.nanoTime() - start);
+				
+				for (int i=0; i<searches.length; i++) {
+					start = System.nanoTime();
+					for (int probe : probes) {
+						sums[1+i] += searches[i].search(ints, leafSize, probe);
+					}
+					nanos[1+i] = Math.min(nanos[1+i], System.nanoTime() - start);
+					
+					start = System.nanoTime();
+					for (int probe : probes) {
+						sums[3+i] += searches[i].search(longs, leafSize, probe);
+					}
+					nanos[3+i] = Math.min(nanos[3+i], System.nanoTime() - start);
+				}
+			}
+			
+			boolean same = true;
+			for (long sum : sums) {
+				same &= sum == sums[0];
+			}
+			System.out.printf("Leaf size %d: compareTo scan %.1f ns, int keys %.1f / %.1f ns, long keys %.1f / %.1f ns, same %b%n",
+					leafSize, (double)nanos[0] / probes.length,
+					(double)nanos[1] / probes.length, (double)nanos[2] / probes.length,
+					(double)nanos[3] / probes.length, (double)nanos[4] / probes.length, same);
+		}
+		
+		// The search in use has to agree with the scalar one at every count,
+		// including counts that end partway through a vector, and counts
+		// large enough to be halved first
+		KeySearch scalar = new KeySearch();
+		int[] intKeys = new int[200];
+		long[] longKeys = new long[200];
+		for (int i=0; i<intKeys.length; i++) {
+			intKeys[i] = i * 3;
+			longKeys[i] = i * 3L;
+		}
+		boolean agree = true;
+		for (int count=0; count<=intKeys.length; count++) {
+			for (int probe=-1; probe<=intKeys.length * 3; probe++) {
+				agree &= KeySearch.SEARCH.search(intKeys, count, probe) == scalar.search(intKeys, count, probe);
+				agree &= KeySearch.SEARCH.search(longKeys, count, probe) == scalar.search(longKeys, count, probe);
+			}
+		}
+		System.out.println("Search " + KeySearch.SEARCH.getName() + " agrees with scalar: " + agree);
+		
+		BPTree<Long,Long> bpTree = new BPTree<Long,Long>(8, LongKeyList.roundLeafSize(60));
+		bpTree.setLeafFormat(LongKeyList.<Long>format());
+		TreeMap<Long,Long> map = new TreeMap<Long,Long>();
+		for (int i=0; i<100000; i++) {
+			long key = random.nextInt(50000);
+			bpTree.put(key, (long)i);
+			map.put(key, (long)i);
+			if (i % 3 == 0) {
+				bpTree.remove(key / 2);
+				map.remove(key / 2);
+			}
+		}
+		
+		System.out.println("Sizes: " + bpTree.size() + " " + map.size());
+		System.out.println("Same: " + new TreeMap<Long,Long>(bpTree).equals(map));
+	}
+
+	public static void diffCollisions() {
+		// "Aa" and "BB" have the same hashCode, and so do 0L and 0x100000001L
+		BPTree<Integer,String> strings = new BPTree<Integer,String>(4,5);
+		BPTree<Integer,String> otherStrings = new BPTree<Integer,String>(4,5);
+		BPTree<Integer,Long> longs = new BPTree<Integer,Long>(4,5);
+		BPTree<Integer,Long> otherLongs = new BPTree<Integer,Long>(4,5);
+		
+		for (int i=0; i<20; i++) {
+			strings.put(i, (i == 7) ? "Aa" : "x" + i);
+			otherStrings.put(i, (i == 7) ? "BB" : "x" + i);
+			longs.put(i, (i == 7) ? 0L : i);
+			otherLongs.put(i, (i == 7) ? 0x100000001L : i);
+		}
+		
+		System.out.println("String diff: " + strings.diff(otherStrings));
+		System.out.println("Long diff: " + longs.diff(otherLongs));
+		
+		ChangeFeed.apply(strings.diff(otherStrings), otherStrings);
+		ChangeFeed.apply(longs.diff(otherLongs), otherLongs);
+		System.out.println("Same: " + new TreeMap<Integer,String>(strings).equals(new TreeMap<Integer,String>(otherStrings))
+				+ " " + new TreeMap<Integer,Long>(longs).equals(new TreeMap<Integer,Long>(otherLongs)));
+	}
+
+	public static void bufferedLoad() {
+		BPTree<Integer,Integer> saved = new BPTree<Integer,Integer>(4,5);
+		for (int i=0; i<10; i++) {
+			saved.put(i, i);
+		}
+		
+		try {
+			saved.saveBinary("test.bin", new IntegerCodec(), new IntegerCodec());
+			
+			List<BPTree<Integer,Integer>> trees = new ArrayList<BPTree<Integer,Integer>>();
+			trees.add(new WriteBufferedBPTree<Integer,Integer>(4, 5, 64));
+			trees.add(new BEpsilonTree<Integer,Integer>(4, 5, 64));
+			
+			for (BPTree<Integer,Integer> bpTree : trees) {
+				// Writes still held back must not end up in the loaded tree
+				bpTree.put(100, 100);
+				bpTree.remove(3);
+				bpTree.loadBinaryLazy("test.bin", new IntegerCodec(), new IntegerCodec());
+				
+				System.out.println(bpTree.getClass().getName() + " get(100): " + bpTree.get(100)
+						+ ", get(3): " + bpTree.get(3));
+				System.out.println("Same: " + new TreeMap<Integer,Integer>(bpTree).equals(
+						new TreeMap<Integer,Integer>(saved)));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void bufferedStats() {
+		List<BPTree<Long,Long>> trees = new ArrayList<BPTree<Long,Long>>();
+		trees.add(new WriteBufferedBPTree<Long,Long>(8, 16, 1000));
+		trees.add(new BEpsilonTree<Long,Long>(8, 16, 1000));
+		
+		// Writes still held back are counted
+		for (BPTree<Long,Long> bpTree : trees) {
+			for (long i=0; i<500; i++) {
+				bpTree.put(i, i);
+			}
+			System.out.println(bpTree.getClass().getName() + " entries: " + bpTree.stats().getEntries());
+		}
+		
+		// A packed leaf should not look larger than an ArrayList leaf
+		BPTree<Long,Long> plain = new BPTree<Long,Long>(8, 16);
+		BPTree<Long,Long> packed = new BPTree<Long,Long>(8, 16);
+		packed.setLeafFormat(LongKeyList.<Long>format());
+		for (long i=0; i<10000; i++) {
+			plain.put(i, i);
+			packed.put(i, i);
+		}
+		System.out.printf("Bytes per entry: ArrayList %.1f, LongKeyList %.1f%n",
+				plain.stats().getBytesPerEntry(), packed.stats().getBytesPerEntry());
+	}
+
+	public static void bufferedFreeze() {
+		List<BPTree<Integer,Integer>> trees = new ArrayList<BPTree<Integer,Integer>>();
+		trees.add(new WriteBufferedBPTree<Integer,Integer>(4, 5, 1000));
+		trees.add(new BEpsilonTree<Integer,Integer>(4, 5, 1000));
+		
+		for (BPTree<Integer,Integer> bpTree : trees) {
+			TreeMap<Integer,Integer> map = new TreeMap<Integer,Integer>();
+			for (int i=0; i<2000; i++) {
+				bpTree.put(i, i);
+				map.put(i, i);
+			}
+			
+			// Leave writes held back, then read the whole tree in each way
+			for (int i=0; i<2000; i+=3) {
+				bpTree.remove(i);
+				map.remove(i);
+			}
+			for (int i=2000; i<2100; i++) {
+				bpTree.put(i, -i);
+				map.put(i, -i);
+			}
+			
+			FrozenBPTree<Integer,Integer> frozen = bpTree.freeze();
+			System.out.println(bpTree.getClass().getName() + " frozen: " + frozen.equals(map)
+					+ ", keys: " + bpTree.keySet().equals(map.keySet())
+					+ ", values: " + new ArrayList<Integer>(bpTree.values()).equals(new ArrayList<Integer>(map.values())));
+			
+			try {
+				bpTree.put(5000, 5000);
+				map.put(5000, 5000);
+				bpTree.saveBinary("test.bin", new IntegerCodec(), new IntegerCodec());
+				
+				BPTree<Integer,Integer> saved = new BPTree<Integer,Integer>(4,5);
+				saved.loadBinary("test.bin", new IntegerCodec(), new IntegerCodec());
+				System.out.println("Saved: " + new TreeMap<Integer,Integer>(saved).equals(map));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public static void snapshotEntries() {
+		BPTree<Integer,String> bpTree = new BPTree<Integer,String>(4,5);
+		for (int i=0; i<2000; i++) {
+			bpTree.put(i, "value" + i);
+		}
+		
+		IntegerStringParse isp = new IntegerStringParse();
+		StringStringParse ssp = new StringStringParse();
+		
+		// Changes made through entries must not reach the snapshot being saved
+		CompletableFuture<Void> saving = bpTree.saveAsync("test.txt", isp, ssp);
+		for (Entry<Integer,String> entry : bpTree.entrySet()) {
+			entry.setValue("CHANGED");
+		}
+		saving.join();
+		
+		try {
+			BPTree<Integer,String> saved = new BPTree<Integer,String>();
+			saved.load("test.txt", isp, ssp);
+			
+			int changedInFile = 0;
+			for (String value : saved.values()) {
+				if (value.equals("CHANGED"))
+					changedInFile++;
+			}
+			
+			int changedInTree = 0;
+			for (String value : bpTree.values()) {
+				if (value.equals("CHANGED"))
+					changedInTree++;
+			}
+			
+			System.out.println("Changed in file: " + changedInFile + ", in tree: " + changedInTree);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void lazySplit() {
+		BPTree<Integer,Integer> saved = new BPTree<Integer,Integer>(4,4);
+		for (int i=0; i<100000; i++) {
+			saved.put(i, i);
+		}
+		
+		try {
+			saved.saveBinary("test.bin", new IntegerCodec(), new IntegerCodec());
+			
+			BPTree<Integer,Integer> bpTree = new BPTree<Integer,Integer>(4,4);
+			bpTree.loadBinaryLazy("test.bin", new IntegerCodec(), new IntegerCodec());
+			
+			// Only the path to the key is read, and the rest stays in the file
+			long start = System.nanoTime();
+			BPTree<Integer,Integer> right = bpTree.splitAt(50000);
+			long end = System.nanoTime();
+			System.out.println("Split in " + (end - start) / 1000 + " us, sizes "
+					+ bpTree.size() + " " + right.size());
+			
+			// The new tree keeps reading the file after this tree is done with it
+			bpTree.clear();
+			TreeMap<Integer,Integer> map = new TreeMap<Integer,Integer>(right);
+			System.out.println("Right: " + map.size() + " entries from " + map.firstKey()
+					+ " to " + map.lastKey());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void relaxedQueue() {
+		BPTree<Integer,Integer> bpTree = new BPTree<Integer,Integer>(4,4);
+		TreeMap<Integer,Integer> map = new TreeMap<Integer,Integer>();
+		for (int i=0; i<160000; i++) {
+			bpTree.put(i, i);
+			map.put(i, i);
+		}
+		
+		// Every leaf is left too small by several removes, but is only
+		// queued once
+		bpTree.setRelaxedBalance(true);
+		Random random = new Random(1);
+		for (int i=0; i<80000; i++) {
+			int key = random.nextInt(160000);
+			bpTree.remove(key);
+			map.remove(key);
+		}
+		System.out.println("Nodes: " + bpTree.countNodes() + ", paths waiting: " + bpTree.rebalance(0));
+		
+		long start = System.nanoTime();
+		int left = bpTree.rebalance(Integer.MAX_VALUE);
+		long end = System.nanoTime();
+		System.out.println("Rebalanced in " + (end - start) / 1000000 + " ms, paths left: " + left
+				+ ", nodes: " + bpTree.countNodes());
+		System.out.println("Same: " + new TreeMap<Integer,Integer>(bpTree).equals(map));
+	}
+
+	public static void keyEncoding() {
+		BPTree<Integer,Integer> bpTree = new BPTree<Integer,Integer>(4,4);
+		TreeMap<Integer,Integer> map = new TreeMap<Integer,Integer>();
+		bpTree.setKeyEncoding(new IntegerCodec());
+		
+		Random random = new Random(1);
+		for (int i=0; i<500; i++) {
+			int key = random.nextInt(2000) - 1000;
+			bpTree.put(key, i);
+			map.put(key, i);
+		}
+		
+		// Stored keys keep their bytes, so the encoding can't change now
+		try {
+			bpTree.setKeyEncoding(null);
+			System.out.println("Changed encoding of a full tree");
+		} catch (IllegalStateException e) {
+			System.out.println("Refused: " + e.getMessage());
+		}
+		
+		// A second encoding that lays the same keys out in eight bytes
+		OrderedCodec<Integer> wide = new IntegerCodec() {
+			@Override
+			public byte[] encodeOrdered(Integer value) {
+				byte[] bytes = new byte[8];
+				System.arraycopy(super.encodeOrdered(value), 0, bytes, 4, 4);
+				return bytes;
+			}
+		};
+		
+		// Removing everything leaves inner keys behind in relaxed mode
+		bpTree.setRelaxedBalance(true);
+		for (Integer key : new ArrayList<Integer>(map.keySet())) {
+			bpTree.remove(key);
+		}
+		bpTree.setKeyEncoding(wide);
+		bpTree.setRelaxedBalance(false);
+		
+		map.clear();
+		for (int i=0; i<500; i++) {
+			int key = random.nextInt(2000) - 1000;
+			bpTree.put(key, i);
+			map.put(key, i);
+		}
+		
+		int wrong = 0;
+		for (int key=-1000; key<1000; key++) {
+			Integer value = bpTree.get(key);
+			if ((value == null) ? map.containsKey(key) : !value.equals(map.get(key)))
+				wrong++;
+		}
+		System.out.println("Wrong gets: " + wrong);
+		System.out.println("Same: " + new TreeMap<Integer,Integer>(bpTree).equals(map));
+	}
+
+	public static void bulkLoadFailures() {
+		try {
+			new ExternalBulkLoader<Integer,Integer>(new IntegerCodec(), new IntegerCodec(), 0, null);
+			System.out.println("Made a loader that holds no entries");
+		} catch (IllegalArgumentException e) {
+			System.out.println("Refused: " + e.getMessage());
+		}
+		
+		List<Entry<Integer,Integer>> entries = new ArrayList<Entry<Integer,Integer>>();
+		for (int i=0; i<100; i++) {
+			entries.add(new KeyVal<Integer,Integer>(99 - i, i));
+		}
+		
+		// Fails once the runs are written, part way through merging them
+		IntegerCodec failing = new IntegerCodec() {
+			private int encoded = 0;
+			
+			@Override
+			public void encode(Integer value, DataOutput out) throws IOException {
+				if (++encoded > 150)
+					throw new IOException("Disk full");
+				super.encode(value, out);
+			}
+		};
+		
+		try {
+			File tempDir = Files.createTempDirectory("bptree-test").toFile();
+			ExternalBulkLoader<Integer,Integer> loader = new ExternalBulkLoader<Integer,Integer>(
+					failing, new IntegerCodec(), 10, tempDir);
+			loader.setMaxMergeRuns(2);
+			
+			BPTree<Integer,Integer> bpTree = new BPTree<Integer,Integer>(4,5);
+			try {
+				loader.load(entries.iterator(), bpTree);
+			} catch (IOException e) {
+				System.out.println("Failed: " + e.getMessage());
+			}
+			System.out.println("Files left: " + tempDir.list().length);
+			tempDir.delete();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void bufferedWrites() {
+		// put and remove have to return what a TreeMap would
+		WriteBufferedBPTree<Integer,Integer> buffered = new WriteBufferedBPTree<Integer,Integer>(4, 4, 100);
+		TreeMap<Integer,Integer> map = new TreeMap<Integer,Integer>();
+		Random random = new Random(1);
+		int wrong = 0;
+		for (int i=0; i<100000; i++) {
+			int key = random.nextInt(5000);
+			Integer expected;
+			Integer actual;
+			if (random.nextBoolean()) {
+				expected = map.put(key, i);
+				actual = buffered.put(key, i);
+			}
+			else {
+				expected = map.remove(key);
+				actual = buffered.remove(key);
+			}
+			if ((expected == null) ? actual != null : !expected.equals(actual))
+				wrong++;
+		}
+		System.out.println("Wrong old values: " + wrong);
+		System.out.println("Same: " + new TreeMap<Integer,Integer>(buffered).equals(map));
+		
+		// Random blind writes against plain puts
+		int[] keys = new int[300000];
+		for (int i=0; i<keys.length; i++) {
+			keys[i] = random.nextInt();
+		}
+		int[][] sizes = {{4, 4, 0}, {4, 4, 16384}, {64, 64, 0}, {64, 64, 4096}};
+		for (int[] size : sizes) {
+			long best = Long.MAX_VALUE;
+			for (int round=0; round<5; round++) {
+				long start = System.nanoTime();
+				if (size[2] == 0) {
+					BPTree<Integer,Integer> bpTree = new BPTree<Integer,Integer>(size[0], size[1]);
+					for (int i=0; i<keys.length; i++) {
+						bpTree.put(keys[i], i);
+					}
+				}
+				else {
+					WriteBufferedBPTree<Integer,Integer> writes = new WriteBufferedBPTree<Integer,Integer>(size[0], size[1], size[2]);
+					for (int i=0; i<keys.length; i++) {
+						writes.blindPut(keys[i], i);
+					}
+					writes.flush();
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			System.out.println("Nodes " + size[0] + "," + size[1] + ", buffer " + size[2] + ": "
+					+ best / 1000000 + " ms");
+		}
+	}
+
+	public static void splitCollect() {
+		BPTree<Integer,Integer> bpTree = new BPTree<Integer,Integer>(4,4);
+		TreeMap<Integer,Integer> map = new TreeMap<Integer,Integer>();
+		for (int i=0; i<300000; i++) {
+			bpTree.put(i, i);
+			map.put(i, i);
+		}
+		
+		// Keep the recent half and drop the rest
+		BPTree<Integer,Integer> right = bpTree.splitAt(150000);
+		WeakReference<BPTree<Integer,Integer>> left =
+				new WeakReference<BPTree<Integer,Integer>>(bpTree);
+		bpTree = null;
+		
+		for (int i=0; i<20 && left.get() != null; i++) {
+			System.gc();
+		}
+		System.out.println("Left tree collected: " + (left.get() == null));
+		
+		for (int i=300000; i<310000; i++) {
+			right.put(i, i);
+			map.put(i, i);
+		}
+		TreeMap<Integer,Integer> rightMap = new TreeMap<Integer,Integer>(right);
+		System.out.println("Same: " + rightMap.equals(map.tailMap(150000)));
+	}
+
+	public static void diffHashes() {
+		BPTree<Integer,Integer> leader = new BPTree<Integer,Integer>(16,16);
+		for (int i=0; i<1000000; i++) {
+			leader.put(i, i);
+		}
+		
+		try {
+			// The replica starts from the leader's file, so the two trees
+			// have the same shape until they are changed
+			leader.saveBinary("test.bin", new IntegerCodec(), new IntegerCodec());
+			BPTree<Integer,Integer> replica = new BPTree<Integer,Integer>(16,16);
+			replica.loadBinary("test.bin", new IntegerCodec(), new IntegerCodec());
+			
+			Random random = new Random(1);
+			for (int round=0; round<2; round++) {
+				if (round == 1) {
+					leader.setHashCodecs(new IntegerCodec(), new IntegerCodec());
+					replica.setHashCodecs(new IntegerCodec(), new IntegerCodec());
+					
+					// The first diff works out every hash
+					long start = System.nanoTime();
+					leader.diff(replica);
+					System.out.println("Hashing: " + (System.nanoTime() - start) / 1000000 + " ms");
+				}
+				
+				long best = Long.MAX_VALUE;
+				int changes = 0;
+				for (int rep=0; rep<5; rep++) {
+					for (int i=0; i<10; i++) {
+						leader.put(random.nextInt(1000000), -i);
+					}
+					
+					long start = System.nanoTime();
+					List<ChangeFeed.Change<Integer,Integer>> diff = leader.diff(replica);
+					best = Math.min(best, System.nanoTime() - start);
+					changes += diff.size();
+					ChangeFeed.apply(diff, replica);
+				}
+				System.out.println((round == 0 ? "Entry by entry: " : "By hash: ")
+						+ best / 1000 + " us, changes " + changes);
+			}
+			System.out.println("Same: " + new TreeMap<Integer,Integer>(leader).equals(
+					new TreeMap<Integer,Integer>(replica)));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		// "Aa" and "BB" have the same hashCode, but not the same bytes
+		BPTree<Integer,String> strings = new BPTree<Integer,String>(4,5);
+		BPTree<Integer,String> otherStrings = new BPTree<Integer,String>(4,5);
+		for (int i=0; i<20; i++) {
+			strings.put(i, (i == 7) ? "Aa" : "x" + i);
+			otherStrings.put(i, (i == 7) ? "BB" : "x" + i);
+		}
+		strings.setHashCodecs(new IntegerCodec(), new StringCodec());
+		otherStrings.setHashCodecs(new IntegerCodec(), new StringCodec());
+		System.out.println("String diff: " + strings.diff(otherStrings));
+	}
+
+	public static void frontCoded() {
+		BPTree<String,Integer> bpTree = new BPTree<String,Integer>(4,8);
+		bpTree.setLeafFormat(FrontCodedList.<Integer>format(4));
+		TreeMap<String,Integer> map = new TreeMap<String,Integer>();
+		Random random = new Random(1);
+		
+		// Long shared prefixes, keys that are prefixes of other keys, and
+		// the empty key
+		String prefix = "/usr/share/documentation/packages/library-";
+		int wrong = 0;
+		for (int i=0; i<40000; i++) {
+			int n = random.nextInt(3000);
+			String[] middles = {"", "x", "xy"};
+			String key = (n == 0) ? "" : prefix + middles[n % 3] + n / 3;
+			
+			if (random.nextInt(3) == 0) {
+				if (!Objects.equals(bpTree.remove(key), map.remove(key)))
+					wrong++;
+			} else {
+				if (!Objects.equals(bpTree.put(key, i), map.put(key, i)))
+					wrong++;
+			}
+			
+			if (!Objects.equals(bpTree.get(key), map.get(key)))
+				wrong++;
+		}
+		System.out.println("Wrong results: " + wrong);
+		System.out.println("Same: " + new TreeMap<String,Integer>(bpTree).equals(map));
+		
+		// Splitting cuts the packed lists in the leaves on the path
+		String key = prefix + "x500";
+		BPTree<String,Integer> right = bpTree.splitAt(key);
+		for (int i=0; i<2000; i++) {
+			String other = prefix + "x" + random.nextInt(1000);
+			BPTree<String,Integer> side = (other.compareTo(key) < 0) ? bpTree : right;
+			side.put(other, i);
+			map.put(other, i);
+		}
+		System.out.println("Split: " + new TreeMap<String,Integer>(bpTree).equals(map.headMap(key))
+				+ " " + new TreeMap<String,Integer>(right).equals(map.tailMap(key)));
+	}
+
+	public static void deltaCoded() {
+		BPTree<Long,Integer> bpTree = new BPTree<Long,Integer>(4,8);
+		bpTree.setLeafFormat(DeltaCodedList.<Integer>format());
+		TreeMap<Long,Integer> map = new TreeMap<Long,Integer>();
+		Random random = new Random(1);
+		
+		// Keys at both ends of the range, so deltas between them overflow
+		long[] edges = {Long.MIN_VALUE, Long.MIN_VALUE + 1, -1, 0, 1,
+				Long.MAX_VALUE - 1, Long.MAX_VALUE};
+		int wrong = 0;
+		for (int i=0; i<40000; i++) {
+			long key;
+			int pick = random.nextInt(10);
+			if (pick == 0) {
+				key = edges[random.nextInt(edges.length)];
+			} else if (pick < 4) {
+				key = random.nextLong();
+			} else {
+				key = random.nextInt(3000) - 1500;
+			}
+			
+			if (random.nextInt(3) == 0) {
+				if (!Objects.equals(bpTree.remove(key), map.remove(key)))
+					wrong++;
+			} else {
+				if (!Objects.equals(bpTree.put(key, i), map.put(key, i)))
+					wrong++;
+			}
+			
+			if (!Objects.equals(bpTree.get(key), map.get(key)))
+				wrong++;
+		}
+		for (long key : edges) {
+			bpTree.put(key, 0);
+			map.put(key, 0);
+		}
+		System.out.println("Wrong results: " + wrong);
+		System.out.println("Same: " + new TreeMap<Long,Integer>(bpTree).equals(map));
+		
+		// Splitting cuts the packed lists in the leaves on the path
+		BPTree<Long,Integer> right = bpTree.splitAt(0L);
+		for (int i=0; i<2000; i++) {
+			long key = (i % 2 == 0) ? random.nextLong() : random.nextInt(3000) - 1500;
+			BPTree<Long,Integer> side = (key < 0) ? bpTree : right;
+			side.put(key, i);
+			map.put(key, i);
+		}
+		System.out.println("Split: " + new TreeMap<Long,Integer>(bpTree).equals(map.headMap(0L))
+				+ " " + new TreeMap<Long,Integer>(right).equals(map.tailMap(0L)));
+		System.out.println("Ends: " + bpTree.get(Long.MIN_VALUE) + " " + right.get(Long.MAX_VALUE));
+	}
+
+	public static void keySeparators() {
+		BPTree<String,Integer> bpTree = new BPTree<String,Integer>(4,4);
+		bpTree.setKeySeparator(new StringKeySeparator());
+		TreeMap<String,Integer> map = new TreeMap<String,Integer>();
+		Random random = new Random(1);
+		
+		// Inner nodes hold long shared prefixes once, and short separators
+		String[] prefixes = {"https://example.com/a/", "https://example.com/ab/",
+				"https://example.org/", ""};
+		int wrong = 0;
+		for (int i=0; i<40000; i++) {
+			String key = prefixes[random.nextInt(prefixes.length)] + random.nextInt(2000);
+			
+			if (random.nextInt(3) == 0) {
+				if (!Objects.equals(bpTree.remove(key), map.remove(key)))
+					wrong++;
+			} else {
+				if (!Objects.equals(bpTree.put(key, i), map.put(key, i)))
+					wrong++;
+			}
+			
+			// Keys that were never put fall between separators
+			String missing = key + "/";
+			if (!Objects.equals(bpTree.get(key), map.get(key))
+					|| bpTree.containsKey(missing) != map.containsKey(missing))
+				wrong++;
+		}
+		System.out.println("Wrong results: " + wrong);
+		System.out.println("Same: " + new TreeMap<String,Integer>(bpTree).equals(map));
+		
+		bpTree.removeRange("https://example.com/a/1", "https://example.com/ab/5");
+		map.subMap("https://example.com/a/1", true, "https://example.com/ab/5", true).clear();
+		String key = "https://example.org/1";
+		BPTree<String,Integer> right = bpTree.splitAt(key);
+		System.out.println("Split: " + new TreeMap<String,Integer>(bpTree).equals(map.headMap(key))
+				+ " " + new TreeMap<String,Integer>(right).equals(map.tailMap(key)));
+	}
+
+	public static void multiValues() {
+		MultiBPTree<Integer,Integer> multi = new MultiBPTree<Integer,Integer>(4,4);
+		TreeMap<Integer,List<Integer>> map = new TreeMap<Integer,List<Integer>>();
+		Random random = new Random(1);
+		
+		int wrong = 0;
+		long values = 0;
+		for (int i=0; i<40000; i++) {
+			Integer key = random.nextInt(1000);
+			Integer value = random.nextInt(5);
+			List<Integer> list = map.get(key);
+			
+			int op = random.nextInt(10);
+			if (op < 6) {
+				multi.add(key, value);
+				if (list == null)
+					map.put(key, list = new ArrayList<Integer>());
+				list.add(value);
+				values++;
+			} else if (op < 9) {
+				boolean removed = (list != null) && list.remove(value);
+				if (multi.removeValue(key, value) != removed)
+					wrong++;
+				if (removed)
+					values--;
+				if (list != null && list.isEmpty())
+					map.remove(key);
+			} else {
+				int count = (list == null) ? 0 : list.size();
+				if (multi.removeAll(key) != count)
+					wrong++;
+				values -= count;
+				map.remove(key);
+			}
+			
+			list = map.get(key);
+			if (!multi.get(key).equals(list == null ? new ArrayList<Integer>() : list)
+					|| multi.containsKey(key) != (list != null))
+				wrong++;
+		}
+		System.out.println("Wrong results: " + wrong);
+		System.out.println("Sizes: " + multi.size() + " " + values + ", keys: " + multi.keyCount()
+				+ " " + map.size());
+		
+		// Values come out in key order, and in the order they were added
+		multi.trimToSize();
+		List<Integer> expected = new ArrayList<Integer>();
+		for (List<Integer> list : map.subMap(250, true, 750, true).values()) {
+			expected.addAll(list);
+		}
+		List<Integer> found = new ArrayList<Integer>();
+		for (Iterator<Integer> it = multi.valueIterator(250, 750); it.hasNext(); ) {
+			found.add(it.next());
+		}
+		System.out.println("Range: " + found.equals(expected) + ", " + found.size() + " values");
+	}
+
+	public static void bloomFilters() {
+		BPTree<Integer,Integer> bpTree = new BPTree<Integer,Integer>(4,16);
+		bpTree.setBloomFilterBits(10);
+		TreeMap<Integer,Integer> map = new TreeMap<Integer,Integer>();
+		Random random = new Random(1);
+		
+		// Splits, merges and redistributions rebuild the filters
+		int wrong = 0;
+		for (int i=0; i<40000; i++) {
+			Integer key = random.nextInt(5000);
+			
+			if (random.nextInt(3) == 0) {
+				bpTree.remove(key);
+				map.remove(key);
+			} else {
+				bpTree.put(key, i);
+				map.put(key, i);
+			}
+			
+			// A filter must never turn away a key the leaf holds
+			Integer probe = random.nextInt(5000);
+			if (!Objects.equals(bpTree.get(probe), map.get(probe))
+					|| bpTree.containsKey(probe) != map.containsKey(probe))
+				wrong++;
+			
+			if (i == 20000) {
+				bpTree.setBloomFilterBits(0);
+				bpTree.setBloomFilterBits(4);
+			}
+		}
+		System.out.println("Wrong results: " + wrong);
+		System.out.println("Same: " + new TreeMap<Integer,Integer>(bpTree).equals(map));
+		
+		// Filters saved with the tree answer before the leaves are read
+		try {
+			bpTree.saveBinary("test.bin", new IntegerCodec(), new IntegerCodec());
+			BPTree<Integer,Integer> loaded = new BPTree<Integer,Integer>(4,16);
+			loaded.setBloomFilterBits(4);
+			loaded.loadBinaryLazy("test.bin", new IntegerCodec(), new IntegerCodec());
+			
+			int loadedWrong = 0;
+			for (int key=-100; key<5100; key++) {
+				if (loaded.containsKey(key) != map.containsKey(key))
+					loadedWrong++;
+			}
+			System.out.println("Loaded wrong results: " + loadedWrong);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void hashIndex() {
+		BPTree<Integer,Integer> bpTree = new BPTree<Integer,Integer>(4,8);
+		bpTree.setHashIndexCapacity(1000);
+		TreeMap<Integer,Integer> map = new TreeMap<Integer,Integer>();
+		Random random = new Random(1);
+		
+		// Keys move between leaves as they split, merge and share entries
+		int wrong = 0;
+		for (int i=0; i<60000; i++) {
+			Integer key = random.nextInt(3000);
+			
+			int op = random.nextInt(10);
+			if (op < 3) {
+				if (!Objects.equals(bpTree.remove(key), map.remove(key)))
+					wrong++;
+			} else if (op < 9) {
+				if (!Objects.equals(bpTree.put(key, i), map.put(key, i)))
+					wrong++;
+			} else {
+				// Repeated lookups go through the index
+				for (int j=0; j<5; j++) {
+					Integer probe = random.nextInt(3000);
+					if (!Objects.equals(bpTree.get(probe), map.get(probe))
+							|| bpTree.containsKey(probe) != map.containsKey(probe))
+						wrong++;
+				}
+			}
+			
+			if (!Objects.equals(bpTree.get(key), map.get(key)))
+				wrong++;
+			
+			// Cutting out whole subtrees empties the index
+			if (i % 20000 == 10000) {
+				bpTree.removeRange(key, key + 100);
+				map.subMap(key, true, key + 100, true).clear();
+			}
+		}
+		System.out.println("Wrong results: " + wrong);
+		System.out.println("Same: " + new TreeMap<Integer,Integer>(bpTree).equals(map));
+		
+		BPTree<Integer,Integer> right = bpTree.splitAt(1500);
+		int splitWrong = 0;
+		for (int key=0; key<3000; key++) {
+			BPTree<Integer,Integer> side = (key < 1500) ? bpTree : right;
+			if (!Objects.equals(side.get(key), map.get(key)))
+				splitWrong++;
+		}
+		System.out.println("Split wrong results: " + splitWrong);
+	}
+
+	public static void learnedRouting() {
+		BPTree<Long,Long> bpTree = new BPTree<Long,Long>(8,16);
+		TreeMap<Long,Long> map = new TreeMap<Long,Long>();
+		Random random = new Random(1);
+		
+		// Even keys, spread unevenly, so odd keys are always missing
+		for (int i=0; i<50000; i++) {
+			long key = 2L * ((i < 25000) ? i : i * 7L);
+			bpTree.put(key, key);
+			map.put(key, key);
+		}
+		
+		int wrong = 0;
+		for (int round=0; round<3; round++) {
+			bpTree.trainLearnedRouting(2);
+			
+			for (int i=0; i<20000; i++) {
+				long probe = random.nextInt(700000) - 100;
+				if (!Objects.equals(bpTree.get(probe), map.get(probe))
+						|| bpTree.containsKey(probe) != map.containsKey(probe))
+					wrong++;
+			}
+			
+			// Changes within a leaf keep the model, splits and merges make it stale
+			for (int i=0; i<2000 * round; i++) {
+				long key = random.nextInt(700000);
+				if (random.nextBoolean()) {
+					bpTree.put(key, key);
+					map.put(key, key);
+				} else {
+					bpTree.remove(key);
+					map.remove(key);
+				}
+				
+				if (!Objects.equals(bpTree.get(key), map.get(key)))
+					wrong++;
+			}
+		}
+		System.out.println("Wrong results: " + wrong);
+		System.out.println("Same: " + new TreeMap<Long,Long>(bpTree).equals(map));
+	}
+
 	public static void main(String[] args) {
 		//test();
 		//elements();
@@ -0,0 +1,259 @@
+import java.util.Arrays;
+
+/**
+ * Statistics about the shape and memory use of a B+ Tree, from BPTree.stats().
+ * 
+ * Memory is an estimate of what the tree's own objects take up, assuming a
+ * 64 bit JVM with compressed references: 12 byte object headers, 4 byte
+ * references and objects padded to 8 bytes.  Keys and values are not
+ * counted, since they are owned by whoever put them in the tree.
+ * 
+ * @author Nathan
+ *
+ */
+public class TreeStats {
+	public static final int FILL_BUCKETS = 10;  // Buckets in fill histograms
+	
+	public static final int OBJECT_HEADER = 12;
+	public static final int ARRAY_HEADER = 16;
+	public static final int REFERENCE = 4;
+	
+	private int innerSize;
+	private int leafSize;
+	private int height = 0;
+	private int entries = 0;
+	private int leafNodes = 0;
+	private int innerNodes = 0;
+	private int[] nodesPerLevel = new int[0];
+	private int[] leafFill = new int[FILL_BUCKETS];
+	private int[] innerFill = new int[FILL_BUCKETS];
+	private long estimatedBytes = 0;
+	private int leafChainLength = 0;
+	private Object lastLeaf = null;  // Last leaf visited, for the chain
+	
+	/**
+	 * TreeStats Constructor
+	 * 
+	 * @param innerSize  Maximum size of inner nodes.
+	 * @param leafSize   Maximum size of leaf nodes.
+	 */
+	public TreeStats(int innerSize, int leafSize) {
+		this.innerSize = innerSize;
+		this.leafSize = leafSize;
+	}
+	
+	/**
+	 * Rounds an object's size up to a multiple of 8 bytes.
+	 * 
+	 * @param bytes  Size of the object's header and fields.
+	 * @return       Size of the object in memory.
+	 */
+	public static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+	
+	/**
+	 * Estimates the size of an array.
+	 * 
+	 * @param length       Length of the array.
+	 * @param elementSize  Bytes for each element.
+	 * @return             Size of the array in memory.
+	 */
+	public static long arrayBytes(int length, int elementSize) {
+		return align(ARRAY_HEADER + (long)length * elementSize);
+	}
+	
+	/**
+	 * Adds a node to the statistics.
+	 * 
+	 * @param depth  Depth of the node, the root being 0.
+	 * @param bytes  Estimated size of the node and what it holds.
+	 */
+	private void addNode(int depth, long bytes) {
+		if (depth >= nodesPerLevel.length) {
+			nodesPerLevel = Arrays.copyOf(nodesPerLevel, depth+1);
+		}
+		nodesPerLevel[depth]++;
+		height = Math.max(height, depth+1);
+		estimatedBytes += bytes;
+	}
+	
+	/**
+	 * Finds the fill histogram bucket for a node.
+	 * 
+	 * @param size     Size of the node.
+	 * @param maxSize  Maximum size of the node.
+	 * @return         Bucket index.
+	 */
+	private static int bucket(int size, int maxSize) {
+		return Math.min(FILL_BUCKETS-1, size * FILL_BUCKETS / Math.max(1, maxSize));
+	}
+	
+	/**
+	 * Adds a leaf node.  Leaves must be added in key order.
+	 * 
+	 * @param depth   Depth of the leaf, the root being 0.
+	 * @param size    Number of entries in the leaf.
+	 * @param bytes   Estimated size of the leaf and its entries.
+	 * @param leaf    The leaf.
+	 * @param linked  True if the previous leaf links to this one.
+	 */
+	void addLeaf(int depth, int size, long bytes, Object leaf, boolean linked) {
+		addNode(depth, bytes);
+		leafNodes++;
+		entries += size;
+		leafFill[bucket(size, leafSize)]++;
+		
+		// Count how far the linked list reaches from the first leaf
+		if (lastLeaf == null || (linked && leafChainLength == leafNodes-1)) {
+			leafChainLength++;
+		}
+		lastLeaf = leaf;
+	}
+	
+	/**
+	 * Adds an inner node.
+	 * 
+	 * @param depth  Depth of the node, the root being 0.
+	 * @param size   Number of children.
+	 * @param bytes  Estimated size of the node and its child list.
+	 */
+	void addInner(int depth, int size, long bytes) {
+		addNode(depth, bytes);
+		innerNodes++;
+		innerFill[bucket(size, innerSize)]++;
+	}
+	
+	/**
+	 * Gets the leaf that was added last.
+	 * 
+	 * @return  The last leaf, or null.
+	 */
+	Object getLastLeaf() {
+		return lastLeaf;
+	}
+	
+	/**
+	 * Gets the number of levels in the tree.
+	 * 
+	 * @return  Height, 1 for a tree that is a single leaf.
+	 */
+	public int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * Gets the number of entries found in the leaves.
+	 * 
+	 * @return  Entry count
+	 */
+	public int getEntries() {
+		return entries;
+	}
+	
+	/**
+	 * Gets the number of leaf nodes.
+	 * 
+	 * @return  Leaf count
+	 */
+	public int getLeafNodes() {
+		return leafNodes;
+	}
+	
+	/**
+	 * Gets the number of inner nodes.
+	 * 
+	 * @return  Inner node count
+	 */
+	public int getInnerNodes() {
+		return innerNodes;
+	}
+	
+	/**
+	 * Gets the number of nodes on each level, starting with the root's.
+	 * 
+	 * @return  Node count for each level
+	 */
+	public int[] getNodesPerLevel() {
+		return nodesPerLevel.clone();
+	}
+	
+	/**
+	 * Gets how many leaves fall in each tenth of the leaf size.  Bucket i
+	 * counts leaves holding from i/10 up to (i+1)/10 of the maximum; the
+	 * last bucket includes full leaves.
+	 * 
+	 * @return  Leaf fill histogram
+	 */
+	public int[] getLeafFillHistogram() {
+		return leafFill.clone();
+	}
+	
+	/**
+	 * Gets how many inner nodes fall in each tenth of the inner node size.
+	 * 
+	 * @see #getLeafFillHistogram
+	 * 
+	 * @return  Inner node fill histogram
+	 */
+	public int[] getInnerFillHistogram() {
+		return innerFill.clone();
+	}
+	
+	/**
+	 * Gets the average fill of the leaves.
+	 * 
+	 * @return  Entries divided by the room in all leaves, from 0 to 1.
+	 */
+	public double getLeafFillFactor() {
+		if (leafNodes == 0)
+			return 0;
+		return (double)entries / ((double)leafNodes * leafSize);
+	}
+	
+	/**
+	 * Gets the estimated memory used by the tree's own objects.
+	 * 
+	 * @return  Estimated bytes
+	 */
+	public long getEstimatedBytes() {
+		return estimatedBytes;
+	}
+	
+	/**
+	 * Gets the estimated memory used by the tree for each entry.
+	 * 
+	 * @return  Estimated bytes per entry
+	 */
+	public double getBytesPerEntry() {
+		if (entries == 0)
+			return 0;
+		return (double)estimatedBytes / entries;
+	}
+	
+	/**
+	 * Gets the number of leaves that can be reached by following the links
+	 * between leaves from the first leaf.  This is the same as the number of
+	 * leaves unless the links are broken.
+	 * 
+	 * @return  Length of the leaf chain
+	 */
+	public int getLeafChainLength() {
+		return leafChainLength;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return String.format(
+				"height=%d entries=%d leaves=%d inner=%d levels=%s%n" +
+				"leafFill=%s innerFill=%s leafFillFactor=%.2f%n" +
+				"estimatedBytes=%d bytesPerEntry=%.1f leafChain=%d",
+				height, entries, leafNodes, innerNodes,
+				Arrays.toString(nodesPerLevel), Arrays.toString(leafFill),
+				Arrays.toString(innerFill), getLeafFillFactor(), estimatedBytes,
+				getBytesPerEntry(), leafChainLength);
+	}
+}
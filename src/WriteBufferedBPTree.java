@@ -0,0 +1,338 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
+
+/**
+ * A B+ Tree with a small sorted write buffer in front of it, the same idea
+ * as the memtable of a log-structured merge tree.
+ * 
+ * Puts and removes only go into the buffer.  A remove is stored as a
+ * tombstone so it can hide an entry that is still in the tree.  Once the
+ * buffer is full, its puts are applied to the tree as one sorted batch,
+ * which only descends once per leaf it touches instead of once per put.
+ * 
+ * Point reads look in the buffer first and range reads merge the buffer
+ * with the leaves, so reads cost a little more.  Anything that needs the
+ * whole tree (size, saving, the key, value and entry sets, ...) flushes the
+ * buffer first.
+ * 
+ * put and remove return the old value like any Map, so they search the
+ * tree when the buffer does not hold the key, which costs more than the
+ * batching saves.  blindPut and blindRemove skip the search, and are the
+ * writes the buffer speeds up.
+ * 
+ * With the nodes in the heap the gain is modest, and comes mostly from a
+ * buffer that is large next to the number of leaves.  For 300,000 random
+ * blindPuts, the fastest of eight runs:
+ * 
+ *   BPTree(4,4)                     about 850 ms
+ *   WriteBufferedBPTree(4,4,16384)  about 510 ms
+ *   BPTree(64,64)                   about 270-430 ms
+ *   WriteBufferedBPTree(64,64,4096) about 240-300 ms
+ * 
+ * Larger nodes alone help more than the buffer does.  A small buffer in
+ * front of small nodes, like 256 writes with (4,4), is slower than the
+ * plain tree, and so is put with its search for the old value.
+ * 
+ * @author Nathan
+ *
+ * @param <K>  Type of the key
+ * @param <V>  Type of the value
+ */
+public class WriteBufferedBPTree<K extends Comparable<K>, V> extends BPTree<K, V> {
+	private static final Object TOMBSTONE = new Object();  // Marks a remove
+	
+	private TreeMap<K,Object> buffer;  // Set by discardBufferedWrites(), which BPTree's constructor calls
+	private int bufferSize;  // Most writes held before flushing
+	
+	/**
+	 * WriteBufferedBPTree Constructor
+	 * 
+	 * Uses a default size for nodes and the buffer, the fastest of the
+	 * sizes measured above.
+	 */
+	public WriteBufferedBPTree() {
+		this(64, 64, 4096);
+	}
+	
+	/**
+	 * WriteBufferedBPTree Constructor
+	 * 
+	 * @param innerSize   Maximum size of inner nodes.
+	 * @param leafSize    Maximum size of leaf nodes.
+	 * @param bufferSize  Most writes to buffer before applying them.
+	 */
+	public WriteBufferedBPTree(int innerSize, int leafSize, int bufferSize) {
+		super(innerSize, leafSize);
+		this.bufferSize = Math.max(1, bufferSize);
+	}
+	
+	/**
+	 * Gets the most writes held in the buffer before they are applied.
+	 * 
+	 * @return  Buffer size
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+	
+	/**
+	 * Gets the number of writes waiting in the buffer.
+	 * 
+	 * @return  Number of buffered writes
+	 */
+	public int bufferedWrites() {
+		return buffer.size();
+	}
+	
+	/**
+	 * Applies every buffered write to the tree, in key order.
+	 */
+	@SuppressWarnings("unchecked")
+	public void flush() {
+		if (buffer.isEmpty())
+			return;
+		
+		// Take the buffer first, so the writes below go to the tree
+		TreeMap<K,Object> writes = buffer;
+		buffer = new TreeMap<K,Object>();
+		
+		ArrayList<KeyVal<K,V>> puts = new ArrayList<KeyVal<K,V>>(writes.size());
+		
+		for (Map.Entry<K,Object> write : writes.entrySet()) {
+			if (write.getValue() == TOMBSTONE) {
+				super.remove(write.getKey());
+			} else {
+				puts.add(makeEntry(write.getKey(), (V)write.getValue()));
+			}
+		}
+		
+		insertSorted(puts);
+	}
+	
+	/**
+	 * Buffers a write and flushes the buffer once it is full.
+	 * 
+	 * @param key    Key being written
+	 * @param value  New value or TOMBSTONE
+	 */
+	private void bufferWrite(K key, Object value) {
+		buffer.put(key, value);
+		
+		if (buffer.size() >= bufferSize)
+			flush();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * The tree is searched for the old value when the buffer does not have
+	 * one, so the put itself is still buffered.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public V put(K key, V value) {
+		Object old = buffer.get(key);
+		if (old == null && !buffer.containsKey(key))
+			old = super.get(key);
+		
+		bufferWrite(key, value);
+		return (old == TOMBSTONE) ? null : (V)old;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * A key that is not in the buffer or the tree is not written at all, so
+	 * removing missing keys does not fill the buffer with tombstones.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public V remove(Object key) {
+		Object old = buffer.get(key);
+		if (old == TOMBSTONE)
+			return null;
+		
+		if (old == null && !buffer.containsKey(key)) {
+			old = super.get(key);
+			if (old == null && !super.containsKey(key))
+				return null;
+		}
+		
+		bufferWrite((K)key, TOMBSTONE);
+		return (V)old;
+	}
+	
+	/**
+	 * Puts an entry without finding out what it replaces.  Unlike put, this
+	 * never searches the tree, so it is the fast way to write.
+	 * 
+	 * @param key    Key of the entry
+	 * @param value  New value
+	 */
+	public void blindPut(K key, V value) {
+		bufferWrite(key, value);
+	}
+	
+	/**
+	 * Removes an entry without finding out whether it was there.  Unlike
+	 * remove, this never searches the tree, so it is the fast way to write.
+	 * A tombstone is buffered even if the key is missing.
+	 * 
+	 * @param key  Key of the entry to remove
+	 */
+	public void blindRemove(K key) {
+		bufferWrite(key, TOMBSTONE);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public V get(Object key) {
+		Object value = buffer.get(key);
+		
+		if (value == null && !buffer.containsKey(key))
+			return super.get(key);
+		
+		return (value == TOMBSTONE) ? null : (V)value;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean containsKey(Object key) {
+		Object value = buffer.get(key);
+		
+		if (value == null && !buffer.containsKey(key))
+			return super.containsKey(key);
+		
+		return value != TOMBSTONE;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public Collection<Entry<K,V>> getFirstToKey(Object key) {
+		return merge(super.getFirstToKey(key), buffer.headMap((K)key, true));
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public Collection<Entry<K,V>> getKeyToLast(Object key) {
+		return merge(super.getKeyToLast(key), buffer.tailMap((K)key, true));
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public Collection<Entry<K,V>> getKeyToKey(Object key1, Object key2) {
+		if (((K)key1).compareTo((K)key2) > 0)
+			return super.getKeyToKey(key1, key2);
+		
+		return merge(super.getKeyToKey(key1, key2),
+				buffer.subMap((K)key1, true, (K)key2, true));
+	}
+	
+	/**
+	 * Merges sorted entries from the tree with the buffered writes for the
+	 * same range.  Buffered writes replace tree entries with the same key,
+	 * and tombstones drop them.
+	 * 
+	 * @param entries  Sorted entries from the tree
+	 * @param writes   Buffered writes in the same range
+	 * @return         Merged entries
+	 */
+	@SuppressWarnings("unchecked")
+	private Collection<Entry<K,V>> merge(Collection<Entry<K,V>> entries,
+			SortedMap<K,Object> writes) {
+		if (writes.isEmpty())
+			return entries;
+		
+		ArrayList<Entry<K,V>> merged = new ArrayList<Entry<K,V>>(
+				entries.size() + writes.size());
+		Iterator<Entry<K,V>> treeIt = entries.iterator();
+		Iterator<Map.Entry<K,Object>> bufferIt = writes.entrySet().iterator();
+		Entry<K,V> entry = treeIt.hasNext() ? treeIt.next() : null;
+		Map.Entry<K,Object> write = bufferIt.hasNext() ? bufferIt.next() : null;
+		
+		while (entry != null || write != null) {
+			int cmp;
+			if (entry == null)
+				cmp = 1;
+			else if (write == null)
+				cmp = -1;
+			else
+				cmp = entry.getKey().compareTo(write.getKey());
+			
+			if (cmp < 0) {
+				merged.add(entry);
+				entry = treeIt.hasNext() ? treeIt.next() : null;
+			} else {
+				if (write.getValue() != TOMBSTONE) {
+					merged.add(new TreeEntry(write.getKey(), (V)write.getValue()));
+				}
+				if (cmp == 0)
+					entry = treeIt.hasNext() ? treeIt.next() : null;
+				write = bufferIt.hasNext() ? bufferIt.next() : null;
+			}
+		}
+		
+		return merged;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void applyBufferedWrites() {
+		flush();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void discardBufferedWrites() {
+		buffer = new TreeMap<K,Object>();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * The old value is looked up with get and the new value is written with
+	 * put or remove, so the write is buffered like any other.
+	 */
+	@Override
+	protected V update(KeyVal<K,V> entry,
+			BiFunction<? super K, ? super V, ? extends V> remapping) {
+		K key = entry.getKey();
+		V oldValue = get(key);
+		V newValue = remapping.apply(key, oldValue);
+		entry.setValue(newValue);
+		
+		if (newValue == null) {
+			if (oldValue != null || containsKey(key))
+				remove(key);
+		}
+		else if (newValue != oldValue) {
+			put(key, newValue);
+		}
+		
+		return oldValue;
+	}
+}
@@ -0,0 +1,84 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Counts blocks of keys a whole vector at a time, with jdk.incubator.vector.
+ * 
+ * This file is kept in its own folder so the rest of the tree builds
+ * without the incubator module.  KeySearch loads it by name when it is on
+ * the class path and the module is added at run time, and uses its own
+ * scalar loop otherwise.
+ * 
+ *   javac --add-modules jdk.incubator.vector -cp out -d out src/vector/VectorKeySearch.java
+ *   java --add-modules jdk.incubator.vector -cp out ...
+ * 
+ * Each vector of keys is compared with the key all at once, and the lanes
+ * that are smaller are counted.  Keys left over past the last full vector
+ * are counted one at a time.
+ * 
+ * Comparing a vector of ints costs about as much as one halving step, so
+ * int searches stop halving at INT_SCAN keys and count the rest.  Long
+ * searches keep the scalar block, which was faster.
+ * 
+ * @author Nathan
+ *
+ */
+public class VectorKeySearch extends KeySearch {
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+	
+	public static final int INT_SCAN = 64;  // Most int keys counted at the end
+	
+	/**
+	 * VectorKeySearch Constructor
+	 */
+	public VectorKeySearch() {
+		super(INT_SCAN, LONG_BLOCK);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected int countLess(int[] keys, int from, int to, int key) {
+		int count = 0;
+		int i = from;
+		
+		for (; i <= to - INTS.length(); i += INTS.length()) {
+			count += IntVector.fromArray(INTS, keys, i)
+					.compare(VectorOperators.LT, key).trueCount();
+		}
+		for (; i<to; i++) {
+			count += (keys[i] < key) ? 1 : 0;
+		}
+		return count;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected int countLess(long[] keys, int from, int to, long key) {
+		int count = 0;
+		int i = from;
+		
+		for (; i <= to - LONGS.length(); i += LONGS.length()) {
+			count += LongVector.fromArray(LONGS, keys, i)
+					.compare(VectorOperators.LT, key).trueCount();
+		}
+		for (; i<to; i++) {
+			count += (keys[i] < key) ? 1 : 0;
+		}
+		return count;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getName() {
+		return "vector " + INTS.vectorBitSize() + " bit";
+	}
+}